@@ -0,0 +1,39 @@
+#!/bin/bash
+# 1台のマシンで、配信を分け合うノード（--serve + CLUSTER_DIR、詳しくはClusterNode）を何個か起動して試すスクリプト
+# 使い方: scripts/cluster-local.sh [ノード数（既定3）]
+#
+# ノードごとに
+#   ・ノードID node1, node2, ...（CLUSTER_NODE_ID）
+#   ・操作用のポート 8081, 8082, ...（CONTROL_PORT。CLUSTER_BASE_PORT で始まりを変えられる）
+#   ・作業ディレクトリ cluster-local/node1, ...（CSVなどの出力・使用量の帳簿・学習データ・ログ）
+# を分けて、共有ディレクトリ cluster-local/shared（CLUSTER_DIR で変えられる）を使うノードとして起動する。
+# どれか1つのノードの http://127.0.0.1:8081/ から配信を登録すると、空いているノードが引き受ける。
+# ノードを1つ kill -9 すると、リースの期限（CLUSTER_LEASE_SECONDS、既定30秒）が切れた後に他のノードが引き継ぐ。
+# Ctrl+Cで全ノードを止める（各ノードはリースを返し、分析中の配信の終了処理をしてから終わる）。
+#
+# YouTube・Azureの認証情報（YOUTUBE_TOKEN_FILE、AZURE_API_KEY など）は、このスクリプトの環境変数をそのまま渡す。
+# 起動には scripts/start.sh を使うので、先に mvn package（-Pappcds）でjarを作っておくこと
+
+ROOT="$(cd "$(dirname "$0")/.." && pwd)"
+NODES="${1:-3}"
+BASE_PORT="${CLUSTER_BASE_PORT:-8081}"
+WORK="$ROOT/cluster-local"
+export CLUSTER_DIR="${CLUSTER_DIR:-$WORK/shared}"
+
+mkdir -p "$CLUSTER_DIR"
+PIDS=()
+for i in $(seq 1 "$NODES"); do
+    NODE_DIR="$WORK/node$i"
+    mkdir -p "$NODE_DIR"
+    (cd "$NODE_DIR" && CLUSTER_NODE_ID="node$i" CONTROL_PORT=$((BASE_PORT + i - 1)) \
+        exec "$ROOT/scripts/start.sh" --serve > "$NODE_DIR/node.log" 2>&1) &
+    PIDS+=($!)
+    echo "node$i: http://127.0.0.1:$((BASE_PORT + i - 1))/  （ログ: $NODE_DIR/node.log）"
+done
+echo "共有ディレクトリ: $CLUSTER_DIR"
+echo "Ctrl+Cで全ノードを止めます"
+
+# 止める時はSIGTERMを送って、シャットダウンフック（リースを返す・終了処理）が終わるのを待つ
+trap 'kill -TERM "${PIDS[@]}" 2>/dev/null' INT TERM
+wait
+wait
@@ -0,0 +1,23 @@
+#!/bin/bash
+# YouTubeライブチャット感情分析の起動スクリプト
+# mvn package -Pappcds で作ったクラスのアーカイブ（target/commentanalyzer.jsa）があれば使って速く起動する。
+# 引数はそのまま渡す（例: scripts/start.sh --archive live_chat.json）
+#
+# アーカイブは作った時のjarと同じパスのjarでしか使えないので、jarは絶対パスで指定する。
+# jarを作り直したらアーカイブも作り直すこと（合わないアーカイブはJVMが警告を出して使わないだけで、起動はできる）
+
+ROOT="$(cd "$(dirname "$0")/.." && pwd)"
+JAR="$ROOT/target/commentanalyzer-1.0.0.jar"
+ARCHIVE="$ROOT/target/commentanalyzer.jsa"
+
+if [ ! -f "$JAR" ]; then
+    echo "jarがありません: $JAR（先に mvn package -Pappcds を実行してください）" >&2
+    exit 1
+fi
+
+JAVA_OPTS_CDS=()
+if [ -f "$ARCHIVE" ]; then
+    JAVA_OPTS_CDS=("-XX:SharedArchiveFile=$ARCHIVE")
+fi
+
+exec java "${JAVA_OPTS_CDS[@]}" $JAVA_OPTS -jar "$JAR" "$@"
@@ -12,6 +12,7 @@ import java.util.stream.Collectors;
 //JSON形式のデータをJavaオブジェクトに変換したり、その逆を行ったりする。
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.example.commentanalyzer.SharedClients;
 
 
 
@@ -37,8 +38,9 @@ public class YouTubeSentimentAnalyzer {
 
     // コンストラクタ
     public YouTubeSentimentAnalyzer() {
-        this.httpClient = HttpClient.newHttpClient();
-        this.objectMapper = new ObjectMapper();
+        // 統合版と同じHttpClient・ObjectMapperを共有する
+        this.httpClient = SharedClients.azureHttpClient();
+        this.objectMapper = SharedClients.objectMapper();
         this.comments = new ArrayList<>();
     }
     
@@ -0,0 +1,51 @@
+package com.example.commentanalyzer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+ //投稿者のチャンネルIDを0から始まる連番（int）に置き換える辞書
+ //CommentStoreには4バイトの連番だけを保存し、文字列は投稿者1人につき1回だけ持つ。
+ //表示名は変更できるので、キーには変わらないチャンネルIDを使う
+public class AuthorDictionary {
+
+    private final Map<String, Integer> idByChannel = new HashMap<>();
+    private final List<String> channelIds = new ArrayList<>();
+    private final List<String> displayNames = new ArrayList<>();
+
+    //チャンネルIDに対応する連番を返す。初めて見る投稿者なら新しい番号を割り当てる
+    //表示名は最後に見たものに更新しておく（表示用）
+    public synchronized int intern(String channelId, String displayName) {
+        String key = channelId != null ? channelId : displayName;
+        Integer id = idByChannel.get(key);
+        if (id == null) {
+            id = channelIds.size();
+            idByChannel.put(key, id);
+            channelIds.add(key);
+            displayNames.add(displayName);
+        } else if (displayName != null && !displayName.equals(displayNames.get(id))) {
+            displayNames.set(id, displayName);
+        }
+        return id;
+    }
+
+    //登録済みの投稿者なら連番、いなければ-1
+    public synchronized int find(String channelId) {
+        Integer id = idByChannel.get(channelId);
+        return id != null ? id : -1;
+    }
+
+    public synchronized String channelId(int id) {
+        return channelIds.get(id);
+    }
+
+    public synchronized String displayName(int id) {
+        return displayNames.get(id);
+    }
+
+    public synchronized int size() {
+        return channelIds.size();
+    }
+}
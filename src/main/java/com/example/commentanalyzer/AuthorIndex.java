@@ -0,0 +1,199 @@
+package com.example.commentanalyzer;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+ //投稿者ごとの集計をコメントが届くたびに更新していく索引
+ //投稿者はAuthorDictionaryの連番（チャンネルIDから割り当てた番号）で識別し、
+ //その番号を添字にしたプリミティブ配列に件数・スコア合計・スパチャ数・初回/最終投稿時刻を持つ。
+ //チャンネルID → 番号 の対応は辞書のHashMapが1つだけ持つので、投稿者1人あたり数十バイトで済む
+public class AuthorIndex {
+
+    // 平均スコアでランキングする時に必要な最低分析済み件数（1件だけの投稿者が上位を占めないように）
+    private static final int MIN_ANALYZED_FOR_MEAN = 5;
+
+    //ランキングの基準
+    public enum Metric { MESSAGES, SUPERCHATS, MEAN_SCORE }
+
+    private final AuthorDictionary dictionary;
+
+    private int[] messages = new int[1024];
+    private int[] analyzed = new int[1024];
+    private double[] scoreSum = new double[1024];
+    private int[] superchats = new int[1024];
+    private long[] firstSeen = new long[1024];
+    private long[] lastSeen = new long[1024];
+    private int authorCount = 0;
+
+    public AuthorIndex(AuthorDictionary dictionary) {
+        this.dictionary = dictionary;
+    }
+
+    //コメントが届いた時に呼ぶ
+    public synchronized void onMessage(int authorId, long publishedAtMillis, MessageType type) {
+        ensureCapacity(authorId);
+        if (messages[authorId] == 0) {
+            firstSeen[authorId] = publishedAtMillis;
+        }
+        messages[authorId]++;
+        if (type.paid) superchats[authorId]++;
+        // ポーリングの都合で古いコメントが後から届くこともあるので大きい方を残す
+        lastSeen[authorId] = Math.max(lastSeen[authorId], publishedAtMillis);
+        firstSeen[authorId] = Math.min(firstSeen[authorId], publishedAtMillis);
+    }
+
+    //感情スコアが付いた時に呼ぶ
+    public synchronized void onScore(int authorId, double score) {
+        ensureCapacity(authorId);
+        analyzed[authorId]++;
+        scoreSum[authorId] += score;
+    }
+
+    //削除・BANでコメントが取り消された時に呼ぶ。scoreは未分析ならNaN
+    public synchronized void onRetract(int authorId, MessageType type, double score) {
+        ensureCapacity(authorId);
+        messages[authorId]--;
+        if (type.paid) superchats[authorId]--;
+        if (!Double.isNaN(score)) {
+            analyzed[authorId]--;
+            scoreSum[authorId] -= score;
+        }
+    }
+
+    //投稿者番号が配列に収まるように、足りなければ2倍に広げる
+    private void ensureCapacity(int authorId) {
+        if (authorId >= messages.length) {
+            int newLength = Math.max(messages.length * 2, authorId + 1);
+            messages = Arrays.copyOf(messages, newLength);
+            analyzed = Arrays.copyOf(analyzed, newLength);
+            scoreSum = Arrays.copyOf(scoreSum, newLength);
+            superchats = Arrays.copyOf(superchats, newLength);
+            firstSeen = Arrays.copyOf(firstSeen, newLength);
+            lastSeen = Arrays.copyOf(lastSeen, newLength);
+        }
+        authorCount = Math.max(authorCount, authorId + 1);
+    }
+
+    public synchronized int size() {
+        return authorCount;
+    }
+
+    //コメントを1件以上投稿した（取り消された分を除く）投稿者の数
+    public synchronized int activeAuthors() {
+        int count = 0;
+        for (int i = 0; i < authorCount; i++) {
+            if (messages[i] > 0) count++;
+        }
+        return count;
+    }
+
+    public synchronized double meanScore(int authorId) {
+        return analyzed[authorId] == 0 ? 0.0 : scoreSum[authorId] / analyzed[authorId];
+    }
+
+
+     //1人分の集計のコピー（ランキング結果やCSV出力用）
+    public static class AuthorStats {
+        public final int id;
+        public final String channelId;
+        public final String displayName;
+        public final int messages;
+        public final int analyzed;
+        public final double meanScore;
+        public final int superchats;
+        public final long firstSeenMillis;
+        public final long lastSeenMillis;
+
+        AuthorStats(int id, String channelId, String displayName, int messages, int analyzed,
+                    double meanScore, int superchats, long firstSeenMillis, long lastSeenMillis) {
+            this.id = id;
+            this.channelId = channelId;
+            this.displayName = displayName;
+            this.messages = messages;
+            this.analyzed = analyzed;
+            this.meanScore = meanScore;
+            this.superchats = superchats;
+            this.firstSeenMillis = firstSeenMillis;
+            this.lastSeenMillis = lastSeenMillis;
+        }
+    }
+
+    private AuthorStats snapshot(int id) {
+        return new AuthorStats(id, dictionary.channelId(id), dictionary.displayName(id), messages[id], analyzed[id],
+                meanScore(id), superchats[id], firstSeen[id], lastSeen[id]);
+    }
+
+    private double metricValue(Metric metric, int id) {
+        switch (metric) {
+            case SUPERCHATS: return superchats[id];
+            case MEAN_SCORE: return meanScore(id);
+            default: return messages[id];
+        }
+    }
+
+
+    //指定した基準で上位k人を返す（多い順）。コメントの一覧は見ず、投稿者の配列だけを1回なめる
+    //サイズkの最小ヒープ（PriorityQueue）に「今の上位k人」を入れておき、
+    //ヒープの一番小さい人より大きい投稿者が来たら入れ替える。計算量は 投稿者数 × log k
+    public synchronized List<AuthorStats> topK(int k, Metric metric) {
+        PriorityQueue<Integer> heap = new PriorityQueue<>(
+                (a, b) -> Double.compare(metricValue(metric, a), metricValue(metric, b)));
+        for (int id = 0; id < authorCount; id++) {
+            if (messages[id] == 0) continue;
+            if (metric == Metric.MEAN_SCORE && analyzed[id] < MIN_ANALYZED_FOR_MEAN) continue;
+            if (metric == Metric.SUPERCHATS && superchats[id] == 0) continue;
+            if (heap.size() < k) {
+                heap.add(id);
+            } else if (metricValue(metric, id) > metricValue(metric, heap.peek())) {
+                heap.poll();
+                heap.add(id);
+            }
+        }
+        List<AuthorStats> result = new ArrayList<>();
+        for (int id : heap) {
+            result.add(snapshot(id));
+        }
+        result.sort((a, b) -> Double.compare(metricValue(metric, b.id), metricValue(metric, a.id)));
+        return result;
+    }
+
+
+    //投稿者ごとの集計をCSVに出力する（コメント数の多い順）
+    public void exportToCSV(String filename) {
+        List<AuthorStats> rows = new ArrayList<>();
+        synchronized (this) {
+            for (int id = 0; id < authorCount; id++) {
+                if (messages[id] > 0) rows.add(snapshot(id));
+            }
+        }
+        rows.sort((a, b) -> Integer.compare(b.messages, a.messages));
+
+        try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
+            writer.println("チャンネルID,表示名,コメント数,分析済み数,平均感情スコア,スパチャ数,初回投稿,最終投稿");
+            for (AuthorStats stats : rows) {
+                writer.printf("%s,%s,%d,%d,%.3f,%d,%s,%s%n",
+                        stats.channelId, escapeCsv(stats.displayName), stats.messages, stats.analyzed,
+                        stats.meanScore, stats.superchats,
+                        StreamClock.formatWallClock(stats.firstSeenMillis), StreamClock.formatWallClock(stats.lastSeenMillis));
+            }
+            System.out.println("投稿者別CSVファイルを出力しました: " + filename);
+        } catch (IOException e) {
+            System.err.println("投稿者別CSV出力エラー: " + e.getMessage());
+        }
+    }
+
+    //表示名にカンマやダブルクォートが含まれていてもCSVの列がずれないように囲む
+    private static String escapeCsv(String value) {
+        if (value == null) return "";
+        if (value.contains(",") || value.contains("\"") || value.contains("\n")) {
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        }
+        return value;
+    }
+}
@@ -0,0 +1,383 @@
+package com.example.commentanalyzer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.http.HttpClient;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+
+ //複数のAzureエンドポイント（リージョン）に感情分析を振り分けるクラス
+ //以前は AZURE_ENDPOINT の1か所だけに送っていたので、そのリージョンが遅い時間帯はコメントが届いてから
+ //スコアが付くまでがそのまま延びていた。ここでは次の2つで、遅い応答に引きずられないようにする:
+ //  1. 振り分け: エンドポイントごとに最近の応答時間の平均（指数移動平均）と送信中の数を覚えておき、
+ //     「平均 × (送信中 + 1)」がいちばん小さいところに送る。遅いところ・混んでいるところには自然と送らなくなる
+ //  2. ヘッジ（保険の二重送信）: 送ってから、最近の応答時間の95パーセンタイル（p95）を過ぎても返ってこなければ、
+ //     同じリクエストを別のエンドポイントにも送る。先に返ってきた方を使い、もう片方は取り消す。
+ //     二重に送るのは遅い方から5%程度だけなので、料金はほとんど増えずに、p99の待ち時間がp50に近づく。
+ //     念のため、二重送信はリクエスト全体の HEDGE_BUDGET_PERCENT までにする（Azure全体が遅い時に倍払わないように）
+ //通信エラー・429・5xxが返ってきた時は、まだ別のエンドポイントに送っていなければすぐそちらに送り直す。
+ //400などリクエストの中身が原因のエラーはどこに送っても同じで、送り直すと料金だけかかるので、そのまま失敗にする。
+ //ヘッジのタイマーは専用のスレッドで動かす（トークンの更新などで待たされると、p95で送るはずの二重送信が遅れるため）。
+ //エンドポイントが1つならヘッジはせず、AzureSentimentClientをそのまま使うのと同じ動きになる
+public class AzureEndpointPool {
+
+    // 応答時間の記録が少ないうちに使うヘッジまでの待ち時間（ミリ秒）
+    private static final long INITIAL_HEDGE_DELAY_MILLIS = 1000;
+    // p95がどれだけ小さくても、これより早くは二重送信しない（ミリ秒）
+    private static final long MIN_HEDGE_DELAY_MILLIS = 50;
+    // p95を計算するのに使う直近の応答時間の件数と、計算し直す間隔
+    private static final int LATENCY_WINDOW = 256;
+    private static final int PERCENTILE_REFRESH_INTERVAL = 32;
+    private static final int MIN_SAMPLES_FOR_PERCENTILE = 20;
+    // 呼び出し側から見た待ち時間のヒストグラム。区間の幅を5%ずつ広げていくので、
+    // 何日分・何百万件になっても配列の大きさは変わらず、パーセンタイルの誤差は5%以内に収まる（300区間で約38分まで）
+    private static final double HISTOGRAM_GROWTH = 1.05;
+    private static final int HISTOGRAM_BUCKETS = 300;
+    // 二重送信してよいのはリクエスト全体の何%までか
+    private static final int HEDGE_BUDGET_PERCENT = 10;
+    // 指数移動平均の重み（新しい1件をどれだけ効かせるか）
+    private static final double EWMA_WEIGHT = 0.2;
+    // エラーを返したエンドポイントは、平均応答時間をこれだけ悪く見積もって避ける（ミリ秒）
+    private static final double ERROR_PENALTY_MILLIS = 2000;
+
+    //1つのエンドポイントと、その最近の様子
+    private static class Endpoint {
+        final String url;
+        final AzureSentimentClient client;
+        double averageMillis = 0;   // 応答時間の指数移動平均（0はまだ記録なし）
+        int inFlight = 0;
+        long requests = 0;
+        long wins = 0;              // 二重送信した時に先に返ってきた回数
+        long errors = 0;
+
+        Endpoint(String url, AzureSentimentClient client) {
+            this.url = url;
+            this.client = client;
+        }
+    }
+
+    // ヘッジのタイマー専用のスレッド（全部のプールで共有する。タイマーの処理は送信を始めるだけなので1本で足りる）
+    private static final ScheduledExecutorService HEDGE_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "azure-hedge");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final List<Endpoint> endpoints;
+    private final boolean hedging;
+    // 送った文書のテキストレコード数を付ける先（nullなら数えない）。二重送信した分も課金されるので数える
+    private final CostLedger.Session costs;
+
+    // 直近の応答時間（リングバッファ）と、そこから計算したp95
+    private final long[] latencyWindow = new long[LATENCY_WINDOW];
+    private int latencyCount = 0;
+    private long hedgeDelayMillis = INITIAL_HEDGE_DELAY_MILLIS;
+
+    // 呼び出し側から見た待ち時間（ヘッジの効果を見るため、セッション全体の分をヒストグラムで持つ）
+    private final long[] observedHistogram = new long[HISTOGRAM_BUCKETS];
+    private long observedCount = 0;
+    private long totalRequests = 0;
+    private long hedgedRequests = 0;
+    private long hedgeWins = 0;
+
+    //endpointsとapiKeysは同じ並び。キーが1つだけなら全部のエンドポイントで同じキーを使う
+    public AzureEndpointPool(List<String> endpointUrls, List<String> apiKeys, boolean hedging,
+                             HttpClient httpClient, ObjectMapper objectMapper, CostLedger.Session costs) {
+        if (apiKeys.size() != 1 && apiKeys.size() != endpointUrls.size()) {
+            throw new IllegalArgumentException("APIキーの数（" + apiKeys.size() + "）がエンドポイントの数（"
+                    + endpointUrls.size() + "）と合いません。キーは1つか、エンドポイントと同じ数だけ指定してください");
+        }
+        List<Endpoint> list = new ArrayList<>();
+        for (int i = 0; i < endpointUrls.size(); i++) {
+            String key = apiKeys.get(apiKeys.size() == 1 ? 0 : i);
+            list.add(new Endpoint(endpointUrls.get(i),
+                    new AzureSentimentClient(endpointUrls.get(i), key, httpClient, objectMapper)));
+        }
+        this.endpoints = List.copyOf(list);
+        this.hedging = hedging && endpoints.size() > 1;
+        this.costs = costs;
+    }
+
+    //環境変数 AZURE_ENDPOINT・AZURE_API_KEY（どちらもカンマ区切りで複数指定できる）と
+    //AZURE_HEDGE（"off"なら二重送信しない）から作る
+    public static AzureEndpointPool fromEnvironment(String endpointValue, String apiKeyValue,
+                                                    HttpClient httpClient, ObjectMapper objectMapper,
+                                                    CostLedger.Session costs) {
+        boolean hedging = !"off".equalsIgnoreCase(System.getenv("AZURE_HEDGE"));
+        return new AzureEndpointPool(splitList(endpointValue), splitList(apiKeyValue), hedging,
+                httpClient, objectMapper, costs);
+    }
+
+    private static List<String> splitList(String value) {
+        List<String> items = new ArrayList<>();
+        for (String item : value.split(",")) {
+            if (!item.isBlank()) items.add(item.trim());
+        }
+        return items;
+    }
+
+    public List<String> endpointUrls() {
+        List<String> urls = new ArrayList<>();
+        for (Endpoint endpoint : endpoints) urls.add(endpoint.url);
+        return urls;
+    }
+
+    public boolean hedging() {
+        return hedging;
+    }
+
+    //全部のエンドポイントに先に接続だけ張っておく
+    public void warmUp() {
+        for (Endpoint endpoint : endpoints) {
+            endpoint.client.warmUp();
+        }
+    }
+
+
+    //本文を送り、結果が返ってくるまで待つ（ライブ分析用）。裏ではscoreAsyncと同じく振り分け・ヘッジをする
+    public double[] score(List<String> texts, List<String> languages) throws IOException, InterruptedException {
+        try {
+            return scoreAsync(texts, languages).get();
+        } catch (ExecutionException e) {
+            throw asIOException(e.getCause());
+        }
+    }
+
+    //本文を送り、結果を待たずにすぐ戻る（アーカイブ分析用）
+    public CompletableFuture<double[]> scoreAsync(List<String> texts, List<String> languages) {
+        HedgedCall call = new HedgedCall(texts, languages);
+        call.start();
+        return call.result;
+    }
+
+
+    //1回の感情分析の呼び出し。最初の送信と、必要なら2つ目の送信（ヘッジ・エラー時の送り直し）をまとめて扱う
+    private class HedgedCall {
+        final List<String> texts;
+        final List<String> languages;
+        final CompletableFuture<double[]> result = new CompletableFuture<>();
+        final long startNanos = System.nanoTime();
+        // 送信中のリクエスト（勝った方が決まったら残りを取り消す）。このオブジェクトをロックにして触る
+        final List<CompletableFuture<double[]>> attempts = new ArrayList<>(2);
+        final long records;
+        Endpoint first;
+        Endpoint second;
+        int running = 0;
+        ScheduledFuture<?> hedgeTimer;
+
+        HedgedCall(List<String> texts, List<String> languages) {
+            this.texts = texts;
+            this.languages = languages;
+            long count = 0;
+            for (String text : texts) count += CostLedger.records(text);
+            this.records = count;
+        }
+
+        void start() {
+            Endpoint endpoint = choose(null);
+            boolean hedgeAllowed;
+            long delay;
+            synchronized (AzureEndpointPool.this) {
+                totalRequests++;
+                hedgeAllowed = hedging && hedgedRequests * 100 < (long) HEDGE_BUDGET_PERCENT * totalRequests;
+                delay = hedgeDelayMillis;
+            }
+            synchronized (this) {
+                first = endpoint;
+                send(endpoint);
+                if (hedgeAllowed && !result.isDone()) {
+                    hedgeTimer = HEDGE_TIMER.schedule(this::hedge, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        //p95を過ぎてもまだ返ってこない時に、別のエンドポイントにも送る
+        void hedge() {
+            synchronized (this) {
+                if (result.isDone() || second != null) return;
+                second = choose(first);
+                synchronized (AzureEndpointPool.this) {
+                    hedgedRequests++;
+                }
+                send(second);
+            }
+        }
+
+        //1つのエンドポイントに送る（呼び出し側でthisをロックしている）
+        private void send(Endpoint endpoint) {
+            long sentNanos = System.nanoTime();
+            synchronized (AzureEndpointPool.this) {
+                endpoint.inFlight++;
+                endpoint.requests++;
+            }
+            running++;
+            if (costs != null) costs.chargeAzure(records);
+            CompletableFuture<double[]> attempt = endpoint.client.scoreAsync(texts, languages);
+            attempts.add(attempt);
+            attempt.whenComplete((scores, error) -> finished(endpoint, sentNanos, scores, error));
+        }
+
+        private void finished(Endpoint endpoint, long sentNanos, double[] scores, Throwable error) {
+            long elapsedMillis = (System.nanoTime() - sentNanos) / 1_000_000;
+            boolean cancelled = unwrap(error) instanceof CancellationException;
+            recordAttempt(endpoint, elapsedMillis, error == null, cancelled);
+            if (cancelled) return;
+
+            List<CompletableFuture<double[]>> losers = null;
+            boolean retry = false;
+            boolean retryable = error == null || retryable(unwrap(error));
+            synchronized (this) {
+                running--;
+                if (result.isDone()) return;
+                if (error == null || !retryable) {
+                    // 成功した時も、送り直しても同じ結果になるエラーの時も、ここで決着させて残りは取り消す
+                    losers = new ArrayList<>(attempts);
+                    if (error == null && second != null) recordHedgeWinner(endpoint, endpoint == second);
+                } else if (second == null && endpoints.size() > 1) {
+                    // まだ1か所にしか送っていなければ、待たずに別のエンドポイントへ送り直す
+                    retry = true;
+                } else if (running > 0) {
+                    return; // もう片方の結果を待つ
+                }
+            }
+            if (retry) {
+                if (hedgeTimer != null) hedgeTimer.cancel(false);
+                synchronized (this) {
+                    if (second == null) {
+                        second = choose(endpoint);
+                        send(second);
+                    }
+                }
+                return;
+            }
+            if (error != null) {
+                if (!result.completeExceptionally(unwrap(error))) return;
+            } else {
+                if (!result.complete(scores)) return;
+                recordObserved((System.nanoTime() - startNanos) / 1_000_000);
+            }
+            if (hedgeTimer != null) hedgeTimer.cancel(false);
+            // 負けた方は取り消す（HttpClientが接続上のそのリクエストを打ち切る）
+            if (losers == null) return;
+            for (CompletableFuture<double[]> loser : losers) {
+                if (!loser.isDone()) loser.cancel(true);
+            }
+        }
+    }
+
+
+    //「平均応答時間 × (送信中 + 1)」がいちばん小さいエンドポイント。まだ記録がないところは先に試す
+    private synchronized Endpoint choose(Endpoint exclude) {
+        Endpoint best = null;
+        double bestCost = Double.MAX_VALUE;
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint == exclude && endpoints.size() > 1) continue;
+            double cost = endpoint.averageMillis * (endpoint.inFlight + 1);
+            if (best == null || cost < bestCost) {
+                best = endpoint;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    //送信1回分の結果を、そのエンドポイントの平均とp95の計算に入れる
+    //取り消された方は「少なくともこれだけかかった」ことしか分からないが、遅かった印として平均には入れる
+    private synchronized void recordAttempt(Endpoint endpoint, long elapsedMillis, boolean success, boolean cancelled) {
+        endpoint.inFlight--;
+        double sample = elapsedMillis;
+        if (!success && !cancelled) {
+            endpoint.errors++;
+            sample += ERROR_PENALTY_MILLIS;
+        }
+        endpoint.averageMillis = endpoint.averageMillis == 0
+                ? sample
+                : endpoint.averageMillis + EWMA_WEIGHT * (sample - endpoint.averageMillis);
+        if (success) {
+            latencyWindow[latencyCount % LATENCY_WINDOW] = elapsedMillis;
+            latencyCount++;
+            if (latencyCount >= MIN_SAMPLES_FOR_PERCENTILE && latencyCount % PERCENTILE_REFRESH_INTERVAL == 0) {
+                long[] sorted = Arrays.copyOf(latencyWindow, Math.min(latencyCount, LATENCY_WINDOW));
+                Arrays.sort(sorted);
+                hedgeDelayMillis = Math.max(MIN_HEDGE_DELAY_MILLIS, percentile(sorted, 95));
+            }
+        }
+    }
+
+    private synchronized void recordHedgeWinner(Endpoint winner, boolean hedgeWon) {
+        winner.wins++;
+        if (hedgeWon) hedgeWins++;
+    }
+
+    private synchronized void recordObserved(long millis) {
+        int bucket = (int) (Math.log1p(Math.max(0, millis)) / Math.log(HISTOGRAM_GROWTH));
+        observedHistogram[Math.min(bucket, HISTOGRAM_BUCKETS - 1)]++;
+        observedCount++;
+    }
+
+    //ヒストグラムからパーセンタイルを求める（その件が入っている区間の上端を返すので、実際より最大5%大きめ）
+    private long observedPercentile(int percent) {
+        if (observedCount == 0) return 0;
+        long target = Math.max(1, (long) Math.ceil(percent / 100.0 * observedCount));
+        long cumulative = 0;
+        int bucket = 0;
+        while (bucket < HISTOGRAM_BUCKETS - 1) {
+            cumulative += observedHistogram[bucket];
+            if (cumulative >= target) break;
+            bucket++;
+        }
+        return Math.round(Math.expm1((bucket + 1) * Math.log(HISTOGRAM_GROWTH)));
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        if (sorted.length == 0) return 0;
+        int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    //別のエンドポイントに送り直して意味があるエラーか（通信エラー・429・5xx）
+    private static boolean retryable(Throwable error) {
+        if (error instanceof AzureSentimentClient.StatusException) {
+            return ((AzureSentimentClient.StatusException) error).retryable();
+        }
+        return error instanceof IOException;
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        while ((error instanceof CompletionException || error instanceof UncheckedIOException) && error.getCause() != null) {
+            error = error.getCause();
+        }
+        return error;
+    }
+
+    private static IOException asIOException(Throwable error) {
+        error = unwrap(error);
+        return error instanceof IOException ? (IOException) error : new IOException(error.getMessage(), error);
+    }
+
+
+    //待ち時間のパーセンタイルと、エンドポイントごとの様子
+    public synchronized String summary() {
+        StringBuilder builder = new StringBuilder(String.format(
+                "待ち時間 p50 %dms / p95 %dms / p99 %dms、二重送信 %d件（全体の%.1f%%、うち後から送った方が勝った %d件）",
+                observedPercentile(50), observedPercentile(95), observedPercentile(99), hedgedRequests,
+                totalRequests == 0 ? 0.0 : 100.0 * hedgedRequests / totalRequests, hedgeWins));
+        for (Endpoint endpoint : endpoints) {
+            builder.append(String.format("%n  %s: 送信 %d件 / エラー %d件 / 平均 %.0fms",
+                    endpoint.url, endpoint.requests, endpoint.errors, endpoint.averageMillis));
+        }
+        return builder.toString();
+    }
+}
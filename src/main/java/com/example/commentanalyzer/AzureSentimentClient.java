@@ -0,0 +1,226 @@
+package com.example.commentanalyzer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+
+ //Azure Text Analytics の感情分析APIを呼び出すクラス
+ //ライブ分析では1回ずつ結果を待つscore()、アーカイブ分析では結果を待たずに次々送るscoreAsync()を使う。
+ //どちらも最大10件の本文を受け取り、同じ並びのスコア（-1.0〜1.0）の配列を返す。
+ //言語（"ja", "en"…）は文書ごとに指定できるので、1つのリクエストに違う言語のコメントが混ざっていてよい。
+ //Azure側でエラーになった文書（対応していない言語など）のスコアはNaN
+public class AzureSentimentClient {
+
+    // Azure APIが1リクエストで受け付けるドキュメント数の上限
+    public static final int MAX_DOCUMENTS = 10;
+    // 言語を指定しなかった時の言語
+    public static final String DEFAULT_LANGUAGE = "ja";
+
+    private final String apiUrl;
+    private final String apiKey;
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper;
+
+    //Azureが200以外のステータスを返した時の例外。送り直して意味があるか（429・5xx）を呼び出し側が判断できるように、ステータスを持たせる
+    public static class StatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public final int statusCode;
+
+        StatusException(int statusCode, String body) {
+            super("ステータス " + statusCode + " レスポンス: " + body);
+            this.statusCode = statusCode;
+        }
+
+        //混雑（429）やサーバー側の一時的なエラー（5xx）ならtrue。400などはリクエストの中身が原因なので、どこに送っても同じ
+        public boolean retryable() {
+            return statusCode == 429 || statusCode >= 500;
+        }
+    }
+
+    public AzureSentimentClient(String endpoint, String apiKey, HttpClient httpClient, ObjectMapper objectMapper) {
+        this.apiUrl = endpoint + "/text/analytics/v3.1/sentiment";
+        this.apiKey = apiKey;
+        this.httpClient = httpClient;
+        this.objectMapper = objectMapper;
+    }
+
+
+    //本文を送り、結果が返ってくるまで待つ（全部日本語として送る）
+    public double[] score(List<String> texts) throws IOException, InterruptedException {
+        return score(texts, null);
+    }
+
+    //本文を送り、結果が返ってくるまで待つ。languagesはtextsと同じ並びの言語コード（nullなら全部日本語）
+    //200以外が返ってきたらIOException（呼び出し側で分析待ちに残して後で再挑戦する）
+    public double[] score(List<String> texts, List<String> languages) throws IOException, InterruptedException {
+        HttpRequest request = buildRequest(texts, languages);
+
+        //sendメソッドの呼び出しと二つの引数。
+        //HttpResponse.BodyHandlers.ofString():
+        //これは、サーバーから返ってきたレスポンスのボディ（本体）をどのように扱いたいかを
+        //httpClientに伝えるための指示。BodyHandlersは、レスポンスボディを特定の形式で処理するためのヘルパークラス。
+        //.ofString()というメソッドは、「サーバーからの応答ボディを文字列として読み取ってください」という命令。
+        //これにより受け取ったデータがそのままString型の変数に格納できるようになる。
+
+        //つまりこの1文で
+        //リクエスト送信: requestオブジェクトに従って、ネットワーク経由でAzureの感情分析APIサーバーにデータを送信。
+        //応答待機: サーバーからの応答が返ってくるまで処理を一時停止。
+        //応答受信と処理: サーバーから応答が届くと、ofString()の指示に従ってレスポンスボディを文字列として読み込みます。
+        //結果の返却: 最終的に、読み込んだボディを<String>型のHttpResponseオブジェクトに格納し、
+        //そのオブジェクトを返す。この戻り値がresponse変数に代入され、次の処理で使えるようになる。
+        //これらのことが行われている。
+        HttpResponse<String> response = httpClient.send(request, 
+                                                      HttpResponse.BodyHandlers.ofString());
+        return handleResponse(response, texts.size());
+    }
+
+
+    //本文を送り、結果を待たずにすぐ戻る。結果はCompletableFutureで受け取る
+    //アーカイブ分析では複数のリクエストを同時に飛ばすことで、Azureの応答待ちの時間を重ねて短縮する
+    public CompletableFuture<double[]> scoreAsync(List<String> texts) {
+        return scoreAsync(texts, null);
+    }
+
+    //返したCompletableFutureをcancel()すると、送信中のリクエストも打ち切る（AzureEndpointPoolが二重送信の負けた方に使う）
+    public CompletableFuture<double[]> scoreAsync(List<String> texts, List<String> languages) {
+        HttpRequest request = buildRequest(texts, languages);
+        CompletableFuture<HttpResponse<String>> sending = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+        CompletableFuture<double[]> result = sending.thenApply(response -> {
+                    try {
+                        return handleResponse(response, texts.size());
+                    } catch (IOException e) {
+                        // thenApplyの中ではチェック例外を投げられないので包んで投げる
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        // thenApplyで作った方を取り消しても元の送信は止まらないので、取り消されたら元も取り消す
+        result.whenComplete((scores, error) -> {
+            if (result.isCancelled()) sending.cancel(true);
+        });
+        return result;
+    }
+
+
+    //接続（TCP + TLS + HTTP/2の開始）だけを先に済ませておく。返ってくる内容は使わない
+    //HttpClientは接続を張ったまま使い回すので、本番の最初のリクエストから接続済みの状態で送れる
+    public void warmUp() {
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(apiUrl))
+            .method("HEAD", HttpRequest.BodyPublishers.noBody())
+            .build();
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+            .exceptionally(error -> null);
+    }
+
+
+    private HttpRequest buildRequest(List<String> texts, List<String> languages) {
+        String requestJson = createSentimentAnalysisRequest(texts, languages);
+
+        HttpRequest request = HttpRequest.newBuilder()
+            .uri(URI.create(apiUrl))
+            .header("Content-Type", "application/json")
+            .header("Ocp-Apim-Subscription-Key", apiKey)
+            .POST(HttpRequest.BodyPublishers.ofString(requestJson))
+            //HttpRequest.BodyPublishers.ofString(...)は「送る郵便物の中身は、このJSON文字列」と指定している。
+            .build();
+            //一連の設定が終わった後、最後に.build()を呼び出し、設定した情報に基づいて最終的なHttpRequestオブジェクトを生成。
+            //このオブジェクトは、次のステップで実際にサーバーに送信。
+        return request;
+    }
+
+    private double[] handleResponse(HttpResponse<String> response, int documentCount) throws IOException {
+        if (response.statusCode() != 200) {
+            throw new StatusException(response.statusCode(), response.body());
+        }
+        return parseSentimentResponse(response.body(), documentCount);
+    }
+
+
+    //Azure APIリクエスト用のJSONを作成
+    //以前はString.formatで文字列をつなげて作り、ダブルクォートだけをエスケープしていた。
+    //それだとバックスラッシュ（顔文字の \(^o^)/ など）や改行・制御文字の入ったコメントが1件あるだけで
+    //バッチ全体が壊れたJSONになり、Azureに400で断られていた。
+    //JSONの組み立てはJackson（ObjectMapper）に任せる。ObjectNodeはJSONオブジェクト、ArrayNodeはJSON配列をメモリ上で表したもので、
+    //文字列にする時（writeValueAsString）にJSONの決まりどおりのエスケープをしてくれる。
+    //できあがる形: {"documents": [{"id": "0", "language": "ja", "text": "..."}, ...]}
+    private String createSentimentAnalysisRequest(List<String> texts, List<String> languages) {
+        // Azure APIの制限確認
+        if (texts.size() > MAX_DOCUMENTS) {
+            System.err.println("警告: バッチサイズが10を超えています: " + texts.size());
+            texts = texts.subList(0, MAX_DOCUMENTS);
+        }
+        ObjectNode root = objectMapper.createObjectNode();
+        ArrayNode documents = root.putArray("documents");
+        for (int i = 0; i < texts.size(); i++) {
+            ObjectNode document = documents.addObject();
+            document.put("id", String.valueOf(i)); // 結果を元のコメントに戻すための番号（ループのインデックス）
+            document.put("language", languages != null ? languages.get(i) : DEFAULT_LANGUAGE); // コメントごとに判定した言語（LanguageDetector）
+            document.put("text", texts.get(i));
+        }
+        try {
+            return objectMapper.writeValueAsString(root);
+        } catch (JsonProcessingException e) {
+            // メモリ上のノードを文字列にするだけなので、ここに来ることはまずない
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    
+    //Azure APIのレスポンスを解析
+    //JsonNodeは、JSONデータをツリー構造で扱うためのクラスであり
+    //そのクラスのインスタンス（オブジェクト）を指す変数をrootという名前で宣言している。
+    //rootは、提供されたコードの中であなたが任意で名付けた変数です。JsonNodeは、JSONデータをツリー構造で扱うためのクラスであり、そのクラスのインスタンス（オブジェクト）を指す変数をrootという名前で宣言しています。
+    //JSONのデータ構造とJsonNode
+    //JSONデータは、テキストとして記述されるが、プログラムでこのテキストを直接操作するのは非常に手間がかかる。
+    //そこで、objectMapper.readTree()メソッドでこのテキスト群をメモリ上で操作しやすい階層的なデータ構造（ツリー）に変換
+    //その根をrootとしている
+    //readTree()メソッドは、引数として受け取ったJSONテキストを解析し、プログラムで扱いやすいツリー構造に変換するように設計されている。
+    //そして、そのツリー構造の一番上のノード（ルートノード）を返すのが、このメソッドの役割。
+    //これは、JSONライブラリが提供する基本的な機能であり、開発者が複雑な文字列操作をすることなく、
+    //階層的なJSONデータに簡単にアクセスできるようにするためのもの。
+    private double[] parseSentimentResponse(String responseBody, int documentCount) {
+        double[] scores = new double[documentCount];
+        Arrays.fill(scores, Double.NaN);
+        try {
+            JsonNode root = objectMapper.readTree(responseBody);
+            JsonNode documents = root.get("documents");//JSONツリーの中から特定のノード（"documents"というキーを持つノード）を取り出す処理。
+            
+            for (int i = 0; i < documents.size(); i++) {
+                JsonNode document = documents.get(i);
+                // Azureはエラーになった文書をdocumentsから除いて返すので、並び順ではなくidで対応させる
+                int index = Integer.parseInt(document.get("id").asText());
+                JsonNode confidenceScores = document.get("confidenceScores");
+                //confidenceScoresはAzure APIで定義されてるフィールド
+                
+                double positive = confidenceScores.get("positive").asDouble();
+                double neutral = confidenceScores.get("neutral").asDouble();
+                double negative = confidenceScores.get("negative").asDouble();
+                //confidenceScoresノードからポジティブ、ニュートラル、ネガティブの
+                //3つのスコアをそれぞれ取り出し、double型に変換。
+                
+                double sentimentScore = (positive * 1.0) + (neutral * 0.0) + (negative * -1.0);
+                scores[index] = sentimentScore;
+            }
+            
+        } catch (Exception e) {
+            System.err.println("レスポンス解析エラー: " + e.getMessage());
+        }
+        return scores;
+    }
+    
+    
+}
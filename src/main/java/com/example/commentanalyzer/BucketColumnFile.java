@@ -0,0 +1,253 @@
+package com.example.commentanalyzer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+
+ //10秒バケットの集計をバイナリの列指向ファイル（*.ytsb）に書き出し・読み込むクラス
+ //CSVは日時や小数を文字にしているので、何百本分も読み直すと文字→数値の変換だけで時間がかかる。
+ //このファイルは列ごとに同じ型の値をすき間なく並べただけなので、読む側はファイルをメモリにマップ（mmap）して
+ //「i行目の平均スコア = 平均スコア列の先頭 + i × 4バイト」と直接読める。変換もコピーも起きない。
+ //
+ //ファイルの中身（数値はすべてリトルエンディアン）
+ //  ヘッダー32バイト: 'YTSB' / バージョン / 列数 / 行数 / 配信開始時刻(long) / バケットの長さ(ミリ秒) / 予備
+ //  その後にColumnの順番で列が続く。各列は 行数 × 型の幅 バイトで、次の列が8バイト境界から始まるように詰め物をする
+public class BucketColumnFile {
+
+    public static final String EXTENSION = ".ytsb";
+    private static final int MAGIC = 0x42535459; // "YTSB"（リトルエンディアンで書くとファイル先頭がこの4文字になる）
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+
+    //列の型。幅はバイト数
+    public enum Type {
+        LONG(8), INT(4), FLOAT(4), DOUBLE(8);
+
+        public final int width;
+
+        Type(int width) {
+            this.width = width;
+        }
+    }
+
+    //列の一覧。並び順がファイル上の順番なので、途中に足さずに末尾に足してVERSIONを上げること
+    public enum Column {
+        START_MILLIS(Type.LONG),      // バケット開始時刻（エポックミリ秒）
+        MEAN(Type.FLOAT),             // 平均感情スコア
+        WEIGHTED_MEAN(Type.FLOAT),    // スパチャ金額で重み付けした平均
+        ESTIMATE(Type.FLOAT),         // 推定平均（サンプリング時）
+        CI_LOW(Type.FLOAT),           // 95%信頼区間の下限
+        CI_HIGH(Type.FLOAT),          // 95%信頼区間の上限
+        COMMENTS(Type.INT),
+        ANALYZED(Type.INT),
+        POSITIVE(Type.INT),
+        NEGATIVE(Type.INT),
+        SUPERCHATS(Type.INT),
+        REVENUE(Type.DOUBLE),         // 売上（円換算）
+        NEW_MEMBERS(Type.INT),        // メンバー加入 + メンバー継続
+        GIFTS(Type.INT),
+        STICKERS(Type.INT),
+        RETRACTED(Type.INT),
+        BANS(Type.INT),
+        FILTERED(Type.INT),
+        POPULATION(Type.INT);         // サンプリング時の母集団数
+
+        public final Type type;
+
+        Column(Type type) {
+            this.type = type;
+        }
+    }
+
+    private static final Column[] COLUMNS = Column.values();
+
+
+    // ---- 書き込み ----
+
+    //バケットを時間順に書き出す。FileChannelに1回で書くので、ファイルの中身が中途半端に見える時間は短い
+    public static void write(Path path, Collection<SentimentBucket> buckets, long streamStartMillis, boolean stratified) throws IOException {
+        int rows = buckets.size();
+        long[] offsets = columnOffsets(rows);
+        ByteBuffer buffer = ByteBuffer.allocate((int) offsets[COLUMNS.length]).order(ByteOrder.LITTLE_ENDIAN);
+
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(COLUMNS.length).putInt(rows)
+                .putLong(streamStartMillis).putInt((int) StreamClock.BUCKET_MILLIS).putInt(0);
+
+        int row = 0;
+        for (SentimentBucket bucket : buckets) {
+            SentimentBucket.Estimate estimate = bucket.estimate(stratified);
+            putLong(buffer, offsets, Column.START_MILLIS, row, bucket.startMillis);
+            putFloat(buffer, offsets, Column.MEAN, row, bucket.averageScore());
+            putFloat(buffer, offsets, Column.WEIGHTED_MEAN, row, bucket.weightedAverageScore());
+            putFloat(buffer, offsets, Column.ESTIMATE, row, estimate.mean);
+            putFloat(buffer, offsets, Column.CI_LOW, row, estimate.low);
+            putFloat(buffer, offsets, Column.CI_HIGH, row, estimate.high);
+            putInt(buffer, offsets, Column.COMMENTS, row, bucket.commentCount);
+            putInt(buffer, offsets, Column.ANALYZED, row, bucket.analyzedCount);
+            putInt(buffer, offsets, Column.POSITIVE, row, bucket.positiveCount);
+            putInt(buffer, offsets, Column.NEGATIVE, row, bucket.negativeCount);
+            putInt(buffer, offsets, Column.SUPERCHATS, row, bucket.superchatCount);
+            buffer.putDouble((int) (offsets[Column.REVENUE.ordinal()] + (long) row * 8), bucket.revenue);
+            putInt(buffer, offsets, Column.NEW_MEMBERS, row,
+                    bucket.eventCount(MessageType.NEW_SPONSOR) + bucket.eventCount(MessageType.MEMBER_MILESTONE));
+            putInt(buffer, offsets, Column.GIFTS, row, bucket.eventCount(MessageType.GIFT_MEMBERSHIP_RECEIVED));
+            putInt(buffer, offsets, Column.STICKERS, row, bucket.eventCount(MessageType.SUPER_STICKER));
+            putInt(buffer, offsets, Column.RETRACTED, row, bucket.retractedCount);
+            putInt(buffer, offsets, Column.BANS, row, bucket.eventCount(MessageType.USER_BANNED));
+            putInt(buffer, offsets, Column.FILTERED, row, bucket.filteredCount);
+            putInt(buffer, offsets, Column.POPULATION, row, estimate.population);
+            row++;
+        }
+
+        buffer.rewind();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    //各列の開始位置（バイト）。最後の要素はファイル全体の大きさ
+    private static long[] columnOffsets(int rows) {
+        long[] offsets = new long[COLUMNS.length + 1];
+        long position = HEADER_BYTES;
+        for (int i = 0; i < COLUMNS.length; i++) {
+            offsets[i] = position;
+            position += (long) rows * COLUMNS[i].type.width;
+            position = (position + 7) & ~7L; // 8バイト境界にそろえる
+        }
+        offsets[COLUMNS.length] = position;
+        return offsets;
+    }
+
+    private static void putLong(ByteBuffer buffer, long[] offsets, Column column, int row, long value) {
+        buffer.putLong((int) (offsets[column.ordinal()] + (long) row * 8), value);
+    }
+
+    private static void putInt(ByteBuffer buffer, long[] offsets, Column column, int row, int value) {
+        buffer.putInt((int) (offsets[column.ordinal()] + (long) row * 4), value);
+    }
+
+    private static void putFloat(ByteBuffer buffer, long[] offsets, Column column, int row, double value) {
+        buffer.putFloat((int) (offsets[column.ordinal()] + (long) row * 4), (float) value);
+    }
+
+
+    // ---- 読み込み ----
+
+    private final Path path;
+    private final MappedByteBuffer data;
+    private final int rows;
+    private final long streamStartMillis;
+    private final int bucketMillis;
+    private final long[] offsets;
+
+    private BucketColumnFile(Path path, MappedByteBuffer data) throws IOException {
+        this.path = path;
+        this.data = data;
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.capacity() < HEADER_BYTES || data.getInt(0) != MAGIC) {
+            throw new IOException("ytsbファイルではありません: " + path);
+        }
+        int version = data.getInt(4);
+        int columnCount = data.getInt(8);
+        if (version != VERSION || columnCount != COLUMNS.length) {
+            throw new IOException("対応していないバージョンです（" + version + "）: " + path);
+        }
+        this.rows = data.getInt(12);
+        this.streamStartMillis = data.getLong(16);
+        this.bucketMillis = data.getInt(24);
+        this.offsets = columnOffsets(rows);
+        if (data.capacity() < offsets[COLUMNS.length]) {
+            throw new IOException("ファイルが途中で切れています: " + path);
+        }
+    }
+
+    //ファイルを読み取り専用でメモリにマップする。マップした後はチャネルを閉じても読める
+    //実際にディスクから読まれるのはアクセスしたページだけなので、大量のファイルを開いても一瞬で終わる
+    public static BucketColumnFile open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return new BucketColumnFile(path, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    //ディレクトリ内の*.ytsbをすべて開く（1シーズン分の配信をまとめて読むときなど）
+    public static List<BucketColumnFile> openAll(Path directory) throws IOException {
+        List<BucketColumnFile> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path path : stream) {
+                files.add(open(path));
+            }
+        }
+        return files;
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    public int rowCount() {
+        return rows;
+    }
+
+    public long streamStartMillis() {
+        return streamStartMillis;
+    }
+
+    public int bucketMillis() {
+        return bucketMillis;
+    }
+
+    public long startMillis(int row) {
+        return getLong(Column.START_MILLIS, row);
+    }
+
+    public long getLong(Column column, int row) {
+        return data.getLong(position(column, Type.LONG, row));
+    }
+
+    public int getInt(Column column, int row) {
+        return data.getInt(position(column, Type.INT, row));
+    }
+
+    public float getFloat(Column column, int row) {
+        return data.getFloat(position(column, Type.FLOAT, row));
+    }
+
+    public double getDouble(Column column, int row) {
+        return data.getDouble(position(column, Type.DOUBLE, row));
+    }
+
+    private int position(Column column, Type expected, int row) {
+        if (column.type != expected) {
+            throw new IllegalArgumentException(column + " は " + column.type + " 型の列です");
+        }
+        if (row < 0 || row >= rows) {
+            throw new IndexOutOfBoundsException("行番号 " + row + " / 行数 " + rows);
+        }
+        return (int) (offsets[column.ordinal()] + (long) row * expected.width);
+    }
+
+    //開始時刻がfromMillis以上の最初の行（時刻の列は昇順なので二分探索できる）
+    public int lowerBound(long fromMillis) {
+        int low = 0;
+        int high = rows;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (startMillis(middle) < fromMillis) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+}
@@ -0,0 +1,115 @@
+package com.example.commentanalyzer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+ //Azureに送る前に手元で採点し、自信のあるものはその場で確定させるクラス（カスケード）
+ //「888」「かわいい」「おめでとう」のように誰が見てもポジティブ（またはネガティブ）なコメントまで
+ //1件ずつお金を払ってAzureに送っていたので、次の順に試して、どれでも決まらなかったものだけAzureに回す:
+ //  1. 決まり文句の辞書（本文から記号を除いて完全一致したものだけ）
+ //  2. ローカルモデル（LocalSentimentModel）。スコアの絶対値が閾値以上（はっきりポジティブ/ネガティブ）の時だけ採用する。
+ //     学習データが少ないうちのモデルは当てにならないので、MIN_MODEL_EXAMPLES件以上で学習したものだけ使う
+ //中立っぽいコメントや、モデルが迷うコメント（スコアが0付近）はAzureに送る。
+ //閾値を上げるほどAzureに送る割合が増えて精度はAzureに近づき、下げるほど安くなる。
+ //どの閾値でどのくらい一致するかは --eval-model の表で確かめられる
+public class CascadeScorer {
+
+    public static final double DEFAULT_THRESHOLD = 0.8;
+    private static final long MIN_MODEL_EXAMPLES = 2000;
+
+    // 決まり文句 → スコア。キーは本文と同じ正規化（NFKC・小文字・同じ文字は2つまで）をして記号を除いたもの
+    private static final Map<String, Float> LEXICON = new HashMap<>();
+    static {
+        phrases(0.9f, "888", "８８８８", "パチパチ", "かわいい", "かわいいー", "可愛い", "かわよ", "おめでとう",
+                "おめでとうございます", "おめ", "最高", "さいこう", "神", "神回", "すごい", "すごーい", "えらい",
+                "好き", "大好き", "きれい", "綺麗", "てぇてぇ", "尊い", "congrats", "congratulations", "cute",
+                "love", "love it", "so cute", "amazing", "awesome", "nice", "gg", "yay");
+        phrases(0.8f, "ありがとう", "ありがとうございます", "ありがと", "thank you", "thanks", "楽しかった", "楽しい");
+        phrases(-0.8f, "最悪", "つまらない", "つまらん", "きもい", "嫌い", "ひどい", "うるさい", "boring", "worst", "cringe");
+    }
+
+    private static void phrases(float score, String... list) {
+        for (String phrase : list) {
+            LEXICON.put(lexiconKey(phrase), score);
+        }
+    }
+
+    private final LocalSentimentModel model; // nullなら辞書だけ
+    private final double threshold;
+    private long lexiconHits;
+    private long modelHits;
+    private long remote;
+
+    public CascadeScorer(LocalSentimentModel model, double threshold) {
+        this.model = model != null && model.trainedExamples() >= MIN_MODEL_EXAMPLES ? model : null;
+        this.threshold = threshold;
+        if (model != null && this.model == null) {
+            System.out.println("ローカルモデルの学習データが" + MIN_MODEL_EXAMPLES + "件未満なので、カスケードでは辞書だけ使います");
+        }
+    }
+
+    //環境変数 CASCADE_THRESHOLD（省略時は0.8、"off"ならカスケードしない＝全部Azure）で作る
+    public static CascadeScorer fromEnvironment(LocalSentimentModel model) {
+        String value = System.getenv("CASCADE_THRESHOLD");
+        if ("off".equalsIgnoreCase(value)) return null;
+        double threshold = DEFAULT_THRESHOLD;
+        if (value != null && !value.isBlank()) {
+            try {
+                threshold = Double.parseDouble(value.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("CASCADE_THRESHOLD が数値ではありません: " + value);
+            }
+        }
+        return new CascadeScorer(model, threshold);
+    }
+
+
+    //手元で確定できればそのスコア、できなければNaN（Azureに送る）
+    public synchronized double tryScore(String text) {
+        Float phrase = LEXICON.get(lexiconKey(text));
+        if (phrase != null) {
+            lexiconHits++;
+            return phrase;
+        }
+        if (model != null) {
+            double score = model.predict(text);
+            if (Math.abs(score) >= threshold) {
+                modelHits++;
+                return score;
+            }
+        }
+        remote++;
+        return Double.NaN;
+    }
+
+    //Azureを待てなくなったコメント（締め切り超過）の代わりのスコア。閾値は問わず、辞書かモデルで採点できなければNaN
+    //件数はカスケードの集計には入れない（呼び出し側で数える）
+    public double fallbackScore(String text) {
+        Float phrase = LEXICON.get(lexiconKey(text));
+        if (phrase != null) return phrase;
+        return model != null ? model.predict(text) : Double.NaN;
+    }
+
+    //Azureに回した割合（0〜1）
+    public synchronized double remoteShare() {
+        long total = lexiconHits + modelHits + remote;
+        return total == 0 ? 0.0 : (double) remote / total;
+    }
+
+    public synchronized String summary() {
+        return String.format("閾値 %.2f / 辞書で確定 %d件 / モデルで確定 %d件 / Azureへ %d件（Azureに送った割合 %.1f%%）",
+                threshold, lexiconHits, modelHits, remote, 100.0 * remoteShare());
+    }
+
+    //辞書を引くためのキー: モデルと同じ正規化をしてから、文字と数字以外（記号・絵文字・空白）を除く
+    private static String lexiconKey(String text) {
+        String normalized = LocalSentimentModel.normalize(text);
+        StringBuilder key = new StringBuilder(normalized.length());
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (Character.isLetterOrDigit(c)) key.append(c);
+        }
+        return key.toString();
+    }
+}
@@ -0,0 +1,150 @@
+package com.example.commentanalyzer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.services.youtube.YouTube;
+import com.google.api.services.youtube.model.LiveChatMessage;
+import com.google.api.services.youtube.model.LiveChatMessageListResponse;
+import com.google.api.services.youtube.model.VideoListResponse;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+ //AppCDS（クラスデータ共有）のアーカイブを作るための練習走行（--cds-training）
+ //JVMは起動のたびにjarからクラスを読み込み・検証するが、google-api-client・Jackson・Gson・HttpClientなど
+ //数千クラスあるので、再起動のたびに数百ミリ秒かかる。
+ //  java -XX:ArchiveClassesAtExit=app.jsa -jar ... --cds-training
+ //で本番と同じクラスを一通り使ってから終了すると、読み込み済みのクラスがapp.jsaに保存され、
+ //次からは -XX:SharedArchiveFile=app.jsa でそれをメモリに写すだけで済む。
+ //
+ //外部には一切つながない。YouTubeはレスポンスのJSONを読むところまで、Azureは同じプロセスに立てた
+ //ダミーのサーバーに本物のクライアントで送る。ファイルは一時フォルダに書いて最後に消す
+public class CdsTraining {
+
+    private static final String SAMPLE_CHAT_RESPONSE = "{\"nextPageToken\":\"t\",\"pollingIntervalMillis\":2000,\"items\":["
+            + "{\"id\":\"m1\",\"snippet\":{\"type\":\"textMessageEvent\",\"publishedAt\":\"2024-01-01T12:00:01.000Z\","
+            + "\"textMessageDetails\":{\"messageText\":\"こんばんは！\"}},"
+            + "\"authorDetails\":{\"channelId\":\"UCa\",\"displayName\":\"a\",\"isChatSponsor\":true}},"
+            + "{\"id\":\"m2\",\"snippet\":{\"type\":\"superChatEvent\",\"publishedAt\":\"2024-01-01T12:00:02.000Z\","
+            + "\"superChatDetails\":{\"amountMicros\":\"1000000000\",\"currency\":\"JPY\",\"userComment\":\"応援してます\"}},"
+            + "\"authorDetails\":{\"channelId\":\"UCb\",\"displayName\":\"b\"}},"
+            + "{\"id\":\"m3\",\"snippet\":{\"type\":\"messageDeletedEvent\",\"publishedAt\":\"2024-01-01T12:00:03.000Z\","
+            + "\"messageDeletedDetails\":{\"deletedMessageId\":\"m1\"}},"
+            + "\"authorDetails\":{\"channelId\":\"UCc\",\"displayName\":\"c\"}}]}";
+    private static final String SAMPLE_VIDEO_RESPONSE = "{\"items\":[{\"id\":\"v\",\"snippet\":{\"channelId\":\"UCx\",\"title\":\"t\"},"
+            + "\"liveStreamingDetails\":{\"actualStartTime\":\"2024-01-01T12:00:00.000Z\",\"activeLiveChatId\":\"c\"}}]}";
+    private static final String SAMPLE_SENTIMENT_RESPONSE = "{\"documents\":[{\"id\":\"0\",\"sentiment\":\"positive\","
+            + "\"confidenceScores\":{\"positive\":0.9,\"neutral\":0.05,\"negative\":0.05}}],\"errors\":[]}";
+
+    public static void run() throws Exception {
+        long started = System.nanoTime();
+        Path directory = Files.createTempDirectory("cds-training");
+        try {
+            List<ChatEvent> events = youtubeClasses();
+            azureClasses();
+            sessionClasses(directory, events);
+        } finally {
+            try (var files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(directory);
+        }
+        System.out.println("CDS練習走行が終わりました（" + (System.nanoTime() - started) / 1_000_000 + " ms）");
+    }
+
+
+    //YouTube APIクライアントを組み立て、リクエストを作り、レスポンスのJSONを読むところまで（送信はしない）
+    private static List<ChatEvent> youtubeClasses() throws Exception {
+        GsonFactory jsonFactory = GsonFactory.getDefaultInstance();
+        YouTube youtube = new YouTube.Builder(SharedClients.youtubeTransport(), jsonFactory, request -> { })
+                .setApplicationName("cds-training")
+                .build();
+        youtube.videos().list(Arrays.asList("snippet", "liveStreamingDetails")).setId(Arrays.asList("v"));
+        youtube.liveChatMessages().list("c", Arrays.asList("snippet", "authorDetails")).setPageToken("t");
+
+        VideoListResponse videos = jsonFactory.fromString(SAMPLE_VIDEO_RESPONSE, VideoListResponse.class);
+        StreamClock.toEpochMillis(videos.getItems().get(0).getLiveStreamingDetails().getActualStartTime());
+        LiveChatMessageListResponse response = jsonFactory.fromString(SAMPLE_CHAT_RESPONSE, LiveChatMessageListResponse.class);
+        List<ChatEvent> events = new ArrayList<>();
+        for (LiveChatMessage message : response.getItems()) {
+            events.add(ChatEvent.fromLiveChatMessage(message));
+        }
+        return events;
+    }
+
+
+    //本物のAzureSentimentClient（HTTP/2のHttpClient・Jackson）で、ダミーのサーバーに同期・非同期の両方で送る
+    private static void azureClasses() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            exchange.getRequestBody().readAllBytes();
+            byte[] body = SAMPLE_SENTIMENT_RESPONSE.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        try {
+            AzureSentimentClient client = new AzureSentimentClient(
+                    "http://127.0.0.1:" + server.getAddress().getPort(), "cds-training",
+                    SharedClients.azureHttpClient(), SharedClients.objectMapper());
+            client.score(List.of("楽しい"));
+            client.scoreAsync(List.of("楽しい")).join();
+        } finally {
+            server.stop(0);
+        }
+    }
+
+
+    //取り込み・スパム判定・集計・ファイル出力（チャット記録・.ytsb）
+    private static void sessionClasses(Path directory, List<ChatEvent> events) throws IOException {
+        ObjectMapper objectMapper = SharedClients.objectMapper();
+        Path logPath = directory.resolve("training_chat.jsonl");
+        try (ChatEventLog log = new ChatEventLog(logPath, objectMapper)) {
+            log.writeHeader("v", "UCx", "t", events.get(0).publishedAtMillis);
+            for (ChatEvent event : events) {
+                log.append(event);
+            }
+        }
+
+        StreamClock clock = new StreamClock();
+        AuthorDictionary authors = new AuthorDictionary();
+        CommentStore store = new CommentStore();
+        SpamFilter spamFilter = new SpamFilter();
+        try (ChatArchiveReader reader = new ChatArchiveReader(logPath, objectMapper)) {
+            clock.setStreamStart(reader.streamStartMillis());
+            ChatEvent event;
+            while ((event = reader.next()) != null) {
+                int author = authors.intern(event.authorChannelId, event.authorName);
+                int row = store.append(event.publishedAtMillis, event.type, author, event.amountMicros / 1_000_000f);
+                if (event.hasText() && spamFilter.check(author, event.publishedAtMillis, event.text) == SpamFilter.Verdict.PASS) {
+                    store.setScore(row, 0.5f);
+                }
+            }
+        }
+
+        SessionAggregate aggregate = SessionAggregate.compute(store, clock);
+        for (SentimentBucket bucket : aggregate.buckets.values()) {
+            bucket.estimate(false);
+        }
+        Path binary = directory.resolve("training" + BucketColumnFile.EXTENSION);
+        BucketColumnFile.write(binary, aggregate.buckets.values(), clock.streamStartMillis(), false);
+        BucketColumnFile file = BucketColumnFile.open(binary);
+        file.getFloat(BucketColumnFile.Column.MEAN, 0);
+        spamFilter.summary();
+    }
+}
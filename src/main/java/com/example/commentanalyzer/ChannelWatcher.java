@@ -0,0 +1,275 @@
+package com.example.commentanalyzer;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BooleanSupplier;
+
+import com.google.api.services.youtube.YouTube;
+import com.google.api.services.youtube.model.PlaylistItem;
+import com.google.api.services.youtube.model.PlaylistItemListResponse;
+import com.google.api.services.youtube.model.Video;
+import com.google.api.services.youtube.model.VideoListResponse;
+
+
+ //チャンネルを見張って、ライブ配信が始まったら自動で分析を始めるクラス（--watch）
+ //以前は配信のたびに誰かが YOUTUBE_VIDEO_ID を設定して起動していたので、始まって数分のコメントを取りこぼしがちだった。
+ //
+ //YouTubeのクォータをなるべく使わないように、2種類の問い合わせを別の間隔で行う:
+ //  1. 新しい動画を探す（既定5分ごと）: チャンネルの「アップロード」再生リスト（チャンネルIDの先頭UCをUUにしたもの）の
+ //     新しい方から数件を playlistItems.list で見る。1チャンネル1ユニット。予約された配信もここに出てくる
+ //  2. 候補の状態を確かめる（既定1分ごと、予定時刻の10分前から1時間後までは15秒ごと）: 候補の動画をまとめて videos.list で見る。
+ //     50件まで1回（1ユニット）で済む。ライブ中（liveBroadcastContent = live）でチャットがあれば分析を始め、
+ //     予約中（upcoming）なら候補に残し、それ以外（普通の動画・終わった配信）は候補から外して二度と見ない
+ //分析はSessionManagerに渡す（--serve と一緒に動かす時は、HTTPの窓口から始めた分析と同じスレッドを分け合う）。
+ //チャットが閉じたらSessionManagerが終了処理（CSVなどの出力）までする。
+ //クラスタで動かす時（setCluster）は、見つけた配信をクラスタに登録するだけにして、どのノードで分析するかはClusterNodeに任せる
+public class ChannelWatcher {
+
+    // videos.listに1回で渡せる動画IDの上限
+    private static final int MAX_IDS_PER_REQUEST = 50;
+    // アップロード再生リストの新しい方から何件見るか
+    private static final long RECENT_UPLOADS = 5;
+    private static final long DEFAULT_DISCOVERY_SECONDS = 300;
+    private static final long CHECK_SECONDS = 60;
+    private static final long FAST_CHECK_SECONDS = 15;
+    // 予定時刻のこれだけ前から細かく確かめる
+    private static final long FAST_CHECK_WINDOW_MILLIS = 10 * 60 * 1000L;
+    // 予定を過ぎてもこれだけの間は細かく確かめ続ける。それを過ぎたら普通の間隔に戻す
+    // （フリーチャット用の待機所や、中止されて消されていない予約は「予約中」のまま残り続けるので、
+    //  いつまでも15秒ごとに確かめると1日で5,000ユニット以上使ってしまう）
+    private static final long FAST_CHECK_LATE_MILLIS = 60 * 60 * 1000L;
+    // 候補から外した動画IDを覚えておく件数（古いものから忘れる）
+    private static final int DECIDED_HISTORY = 2000;
+    // クォータが残り少ない時に、問い合わせの間隔を何倍にするか
+    private static final int SAVING_MULTIPLIER = 4;
+
+    //ライブになるかもしれない動画
+    private static class Candidate {
+        final String channelId;
+        long scheduledStartMillis = Long.MIN_VALUE; // 分からなければLong.MIN_VALUE
+
+        Candidate(String channelId) {
+            this.channelId = channelId;
+        }
+    }
+
+    private final YouTube youtube;
+    private final SessionManager manager;
+    private ClusterNode cluster; // nullなら自分のSessionManagerで分析する
+    private final List<String> channelIds;
+    private final long discoveryMillis;
+    private final CostLedger.Session costs = SharedClients.costLedger().openSession();
+    private final Map<String, Candidate> candidates = new LinkedHashMap<>();
+    // このクラスが始めた分析中の配信（動画ID → セッション）
+    private final Map<String, SessionManager.ManagedSession> sessions = new LinkedHashMap<>();
+    private final Map<String, Boolean> decided = new LinkedHashMap<String, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+            return size() > DECIDED_HISTORY;
+        }
+    };
+
+    public ChannelWatcher(YouTube youtube, SessionManager manager, List<String> channelIds, long discoverySeconds) {
+        this.youtube = youtube;
+        this.manager = manager;
+        this.channelIds = List.copyOf(channelIds);
+        this.discoveryMillis = discoverySeconds * 1000L;
+    }
+
+    //チャンネルIDのリスト（カンマ区切り）と、環境変数 WATCH_DISCOVERY_SECONDS（新しい動画を探す間隔）から作る
+    public static ChannelWatcher create(YouTube youtube, SessionManager manager, String channelList) {
+        List<String> channelIds = new ArrayList<>();
+        for (String id : channelList.split(",")) {
+            if (!id.isBlank()) channelIds.add(id.trim());
+        }
+        long discoverySeconds = DEFAULT_DISCOVERY_SECONDS;
+        String value = System.getenv("WATCH_DISCOVERY_SECONDS");
+        if (value != null && !value.isBlank()) {
+            try {
+                discoverySeconds = Math.max(30, Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                System.err.println("WATCH_DISCOVERY_SECONDS が数値ではありません: " + value);
+            }
+        }
+        return new ChannelWatcher(youtube, manager, channelIds, discoverySeconds);
+    }
+
+
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    //止められるまで見張り続ける。問い合わせの失敗は次の回にやり直す
+    public void run() throws InterruptedException {
+        run(() -> true);
+    }
+
+    //keepRunningがfalseを返したら見張るのをやめて戻る（クラスタで監視のリースを失った時）
+    public void run(BooleanSupplier keepRunning) throws InterruptedException {
+        System.out.println("チャンネル監視を開始します: " + String.join(", ", channelIds));
+        long nextDiscovery = 0;
+        long nextCheck = 0;
+        while (keepRunning.getAsBoolean()) {
+            reapFinishedSessions();
+            int level = costs.youtubeLevel();
+            if (level == CostLedger.EXHAUSTED) {
+                // 分析中の配信はそのまま続け、新しい配信を探すのだけやめる
+                System.out.println("YouTube APIの使用量が上限に達したため、新しい配信の監視を止めます。");
+                joinSessions();
+                return;
+            }
+            long multiplier = level == CostLedger.SAVING ? SAVING_MULTIPLIER : 1;
+            long now = System.currentTimeMillis();
+            if (now >= nextDiscovery) {
+                discover();
+                nextDiscovery = now + discoveryMillis * multiplier;
+                nextCheck = now; // 見つけた候補はすぐ確かめる
+            }
+            if (now >= nextCheck) {
+                check();
+                nextCheck = now + checkIntervalMillis(now) * multiplier;
+            }
+            SharedClients.costLedger().flush();
+            // クラスタでは監視のリースを失ったらすぐ気付けるように、長くても5秒ずつ待つ
+            long wait = Math.max(1000, Math.min(nextDiscovery, nextCheck) - System.currentTimeMillis());
+            Thread.sleep(cluster != null ? Math.min(wait, 5000) : wait);
+        }
+        System.out.println("チャンネル監視を他のノードに任せます");
+    }
+
+    //予定時刻の10分前から1時間後までの候補があれば細かく確かめる
+    private long checkIntervalMillis(long now) {
+        for (Candidate candidate : candidates.values()) {
+            if (candidate.scheduledStartMillis != Long.MIN_VALUE
+                    && candidate.scheduledStartMillis - now <= FAST_CHECK_WINDOW_MILLIS
+                    && now - candidate.scheduledStartMillis <= FAST_CHECK_LATE_MILLIS) {
+                return FAST_CHECK_SECONDS * 1000L;
+            }
+        }
+        return CHECK_SECONDS * 1000L;
+    }
+
+
+    //各チャンネルのアップロード再生リストの新しい方から、まだ見ていない動画を候補に加える
+    private void discover() {
+        for (String channelId : channelIds) {
+            try {
+                costs.chargeYouTube(CostLedger.LIST_UNITS);
+                PlaylistItemListResponse response = youtube.playlistItems()
+                        .list(Arrays.asList("contentDetails"))
+                        .setPlaylistId(uploadsPlaylistId(channelId))
+                        .setMaxResults(RECENT_UPLOADS)
+                        .execute();
+                for (PlaylistItem item : response.getItems()) {
+                    String videoId = item.getContentDetails().getVideoId();
+                    if (videoId == null || decided.containsKey(videoId)
+                            || candidates.containsKey(videoId) || sessions.containsKey(videoId)) continue;
+                    candidates.put(videoId, new Candidate(channelId));
+                }
+            } catch (IOException e) {
+                System.err.println("チャンネルの動画一覧を取得できませんでした（" + channelId + "）: " + e.getMessage());
+            }
+        }
+    }
+
+    //チャンネルIDの先頭 "UC" を "UU" にしたものがアップロード再生リストのID（channels.listを呼ばずに済む）
+    static String uploadsPlaylistId(String channelId) {
+        return channelId.startsWith("UC") ? "UU" + channelId.substring(2) : channelId;
+    }
+
+    //候補を50件ずつまとめて videos.list で確かめ、ライブ中のものは分析を始める
+    private void check() {
+        List<String> ids = new ArrayList<>(candidates.keySet());
+        for (int start = 0; start < ids.size(); start += MAX_IDS_PER_REQUEST) {
+            List<String> chunk = ids.subList(start, Math.min(ids.size(), start + MAX_IDS_PER_REQUEST));
+            VideoListResponse response;
+            try {
+                costs.chargeYouTube(CostLedger.LIST_UNITS);
+                response = youtube.videos()
+                        .list(Arrays.asList("snippet", "liveStreamingDetails"))
+                        .setId(chunk)
+                        .execute();
+            } catch (IOException e) {
+                System.err.println("配信の状態を取得できませんでした: " + e.getMessage());
+                continue;
+            }
+            List<String> returned = new ArrayList<>();
+            for (Video video : response.getItems()) {
+                returned.add(video.getId());
+                classify(video);
+            }
+            // 削除・非公開になった動画は返ってこないので、候補から外す
+            for (String id : chunk) {
+                if (!returned.contains(id)) decide(id);
+            }
+        }
+    }
+
+    private void classify(Video video) {
+        String videoId = video.getId();
+        String state = video.getSnippet() != null ? video.getSnippet().getLiveBroadcastContent() : null;
+        if ("live".equals(state) && video.getLiveStreamingDetails() != null
+                && video.getLiveStreamingDetails().getActiveLiveChatId() != null) {
+            if (startSession(videoId, video.getSnippet().getTitle())) candidates.remove(videoId);
+        } else if ("live".equals(state) || "upcoming".equals(state)) {
+            // 予約中（またはライブになったばかりでチャットがまだない）。予定時刻を覚えて待つ
+            Candidate candidate = candidates.get(videoId);
+            if (candidate != null && video.getLiveStreamingDetails() != null
+                    && video.getLiveStreamingDetails().getScheduledStartTime() != null) {
+                candidate.scheduledStartMillis = video.getLiveStreamingDetails().getScheduledStartTime().getValue();
+            }
+        } else {
+            decide(videoId);
+        }
+    }
+
+    private void decide(String videoId) {
+        candidates.remove(videoId);
+        decided.put(videoId, Boolean.TRUE);
+    }
+
+
+    //SessionManagerに分析を始めてもらう（上限はSessionManagerの既定のまま）。クラスタなら登録だけする
+    //クラスタに登録できなかった時はfalse（候補に残して次の確認でやり直す）
+    private boolean startSession(String videoId, String title) {
+        System.out.println("ライブ配信を検出しました: " + (title != null ? title : videoId) + "（" + videoId + "）");
+        if (cluster != null) {
+            try {
+                cluster.submit(videoId, -1, -1, false);
+                decide(videoId); // 終わるまでの面倒はクラスタが見る
+            } catch (IOException e) {
+                // 候補に残して次の確認でやり直す
+                System.err.println("配信をクラスタに登録できませんでした（" + videoId + "）: " + e.getMessage());
+                return false;
+            }
+            return true;
+        }
+        try {
+            sessions.put(videoId, manager.start(videoId, -1, -1));
+        } catch (IllegalStateException e) {
+            // HTTPの窓口からすでに始められていた
+            decide(videoId);
+        }
+        return true;
+    }
+
+    //終わった配信を一覧から外す（同じ動画はdecidedに入れて、二度と始めない）
+    private void reapFinishedSessions() {
+        sessions.entrySet().removeIf(entry -> {
+            if (!entry.getValue().isFinished()) return false;
+            decided.put(entry.getKey(), Boolean.TRUE);
+            System.out.println("配信の分析を終了しました: " + entry.getKey());
+            return true;
+        });
+    }
+
+    private void joinSessions() throws InterruptedException {
+        for (SessionManager.ManagedSession session : sessions.values()) {
+            manager.await(session);
+        }
+    }
+}
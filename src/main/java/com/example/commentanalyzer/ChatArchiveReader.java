@@ -0,0 +1,274 @@
+package com.example.commentanalyzer;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+
+ //チャットのアーカイブファイルを1行ずつ読み、ChatEventにして返すクラス
+ //ファイル全体をメモリに読み込まないので、10時間配信のアーカイブでも使うメモリは一定。
+ //対応している形式（1行ごとに判定するので混ざっていてもよい）
+ //  1. このツールのChatEventLogが書いた記録（*_chat.jsonl）
+ //  2. yt-dlpなどでダウンロードしたチャットリプレイ（live_chat.json）
+ //     1行が1つのreplayChatItemActionで、中に1件以上のチャットの操作が入っている
+public class ChatArchiveReader implements Closeable {
+
+    private static final Pattern VIDEO_ID_IN_FILE_NAME = Pattern.compile("(?:^|[^a-zA-Z0-9_-])([a-zA-Z0-9_-]{11})\\.live_chat\\.json");
+
+    private final BufferedReader reader;
+    private final ObjectMapper objectMapper;
+    // 1行に複数のイベントが入っていることがあるので、読んだ分をここに溜めて1件ずつ返す
+    private final ArrayDeque<ChatEvent> buffered = new ArrayDeque<>();
+    private long streamStartMillis = Long.MIN_VALUE;
+    private String videoId;
+    private String channelId;
+    private String title;
+    // 削除・BANの操作には時刻が付いていないので、直前のイベントの時刻を使う
+    private long lastPublishedAtMillis = 0L;
+    private long lineNumber = 0;
+    private long skippedLines = 0;
+
+    public ChatArchiveReader(Path path, ObjectMapper objectMapper) throws IOException {
+        this.reader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+        this.objectMapper = objectMapper;
+        // yt-dlpはリプレイを「<動画ID>.live_chat.json」という名前で保存するので、ファイル名から動画IDを推測しておく
+        Matcher matcher = VIDEO_ID_IN_FILE_NAME.matcher(path.getFileName().toString());
+        if (matcher.find()) videoId = matcher.group(1);
+    }
+
+    //配信の情報（記録ファイルのヘッダーかファイル名から分かったもの）。分からなければnull
+    //ヘッダー行は先頭にあるので、最初のnext()の後に呼べば値が入っている
+    public String videoId() {
+        return videoId;
+    }
+
+    public String channelId() {
+        return channelId;
+    }
+
+    public String title() {
+        return title;
+    }
+
+    //ファイルから分かった配信開始時刻（分からなければLong.MIN_VALUE）
+    //ChatEventLogならヘッダー行、リプレイなら「投稿時刻 - 配信開始からの経過時間」から求める
+    public long streamStartMillis() {
+        return streamStartMillis;
+    }
+
+    //読めなかった行の数（壊れた行は飛ばして続ける）
+    public long skippedLines() {
+        return skippedLines;
+    }
+
+
+    //次のイベントを返す。ファイルの終わりならnull
+    public ChatEvent next() throws IOException {
+        while (buffered.isEmpty()) {
+            String line = reader.readLine();
+            if (line == null) return null;
+            lineNumber++;
+            if (line.isBlank()) continue;
+            try {
+                parseLine(objectMapper.readTree(line));
+            } catch (IOException | RuntimeException e) {
+                skippedLines++;
+                if (skippedLines <= 5) {
+                    System.err.println("アーカイブの" + lineNumber + "行目を読めませんでした: " + e.getMessage());
+                }
+            }
+        }
+        return buffered.pollFirst();
+    }
+
+    private void parseLine(JsonNode node) {
+        if (node.has("replayChatItemAction")) {
+            JsonNode replay = node.get("replayChatItemAction");
+            long offsetMillis = replay.path("videoOffsetTimeMsec").asLong(Long.MIN_VALUE);
+            for (JsonNode action : replay.path("actions")) {
+                parseReplayAction(action, offsetMillis);
+            }
+        } else if (node.has("videoId")) {
+            // ChatEventLogのヘッダー行
+            if (node.has("streamStartMillis")) streamStartMillis = node.get("streamStartMillis").asLong();
+            videoId = textOrNull(node, "videoId");
+            channelId = textOrNull(node, "channelId");
+            title = textOrNull(node, "title");
+        } else if (node.has("type") && node.has("publishedAt")) {
+            buffered.addLast(parseLogEntry(node));
+        } else {
+            throw new IllegalArgumentException("知らない形式の行です");
+        }
+    }
+
+
+    // ---- ChatEventLogの形式 ----
+
+    private static ChatEvent parseLogEntry(JsonNode node) {
+        ChatEvent event = new ChatEvent();
+        event.id = textOrNull(node, "id");
+        event.type = MessageType.valueOf(node.get("type").asText());
+        event.publishedAtMillis = node.get("publishedAt").asLong();
+        event.authorChannelId = textOrNull(node, "authorChannelId");
+        event.authorName = textOrNull(node, "authorName");
+        event.member = node.path("member").asBoolean(false);
+        event.text = textOrNull(node, "text");
+        event.amountMicros = node.path("amountMicros").asLong(0L);
+        event.currency = textOrNull(node, "currency");
+        event.targetMessageId = textOrNull(node, "targetMessageId");
+        event.targetChannelId = textOrNull(node, "targetChannelId");
+        return event;
+    }
+
+    private static String textOrNull(JsonNode node, String field) {
+        JsonNode value = node.get(field);
+        return value == null || value.isNull() ? null : value.asText();
+    }
+
+
+    // ---- チャットリプレイの形式 ----
+    //YouTubeの画面に表示するためのデータなので、APIのtypeの代わりに「レンダラー」の名前で種類を見分ける
+
+    private void parseReplayAction(JsonNode action, long offsetMillis) {
+        if (action.has("addChatItemAction")) {
+            JsonNode item = action.get("addChatItemAction").path("item");
+            ChatEvent event = parseReplayItem(item);
+            if (event != null) {
+                if (streamStartMillis == Long.MIN_VALUE && offsetMillis != Long.MIN_VALUE && offsetMillis >= 0) {
+                    streamStartMillis = event.publishedAtMillis - offsetMillis;
+                }
+                buffered.addLast(event);
+            }
+        } else if (action.has("markChatItemAsDeletedAction")) {
+            ChatEvent event = new ChatEvent();
+            event.type = MessageType.MESSAGE_DELETED;
+            event.targetMessageId = action.get("markChatItemAsDeletedAction").path("targetItemId").asText(null);
+            event.publishedAtMillis = lastPublishedAtMillis;
+            buffered.addLast(event);
+        } else if (action.has("markChatItemsByAuthorAsDeletedAction")) {
+            ChatEvent event = new ChatEvent();
+            event.type = MessageType.USER_BANNED;
+            event.targetChannelId = action.get("markChatItemsByAuthorAsDeletedAction").path("externalChannelId").asText(null);
+            event.publishedAtMillis = lastPublishedAtMillis;
+            buffered.addLast(event);
+        }
+    }
+
+    private ChatEvent parseReplayItem(JsonNode item) {
+        MessageType type;
+        JsonNode renderer;
+        if ((renderer = item.get("liveChatTextMessageRenderer")) != null) {
+            type = MessageType.TEXT;
+        } else if ((renderer = item.get("liveChatPaidMessageRenderer")) != null) {
+            type = MessageType.SUPERCHAT;
+        } else if ((renderer = item.get("liveChatPaidStickerRenderer")) != null) {
+            type = MessageType.SUPER_STICKER;
+        } else if ((renderer = item.get("liveChatMembershipItemRenderer")) != null) {
+            // 本文付きならメンバー継続のお祝い、なければ新規メンバー加入
+            type = renderer.has("message") ? MessageType.MEMBER_MILESTONE : MessageType.NEW_SPONSOR;
+        } else if ((renderer = item.get("liveChatSponsorshipsGiftPurchaseAnnouncementRenderer")) != null) {
+            type = MessageType.MEMBERSHIP_GIFTING;
+            // ギフトの購入者情報は一段深いところにある
+            renderer = renderer.path("header").path("liveChatSponsorshipsHeaderRenderer");
+        } else if ((renderer = item.get("liveChatSponsorshipsGiftRedemptionAnnouncementRenderer")) != null) {
+            type = MessageType.GIFT_MEMBERSHIP_RECEIVED;
+        } else {
+            return null; // 表示用の通知（プレースホルダーなど）は読み飛ばす
+        }
+
+        ChatEvent event = new ChatEvent();
+        event.type = type;
+        event.id = item.findPath("id").asText(null);
+        // timestampUsecはマイクロ秒の文字列
+        JsonNode timestamp = item.findPath("timestampUsec");
+        event.publishedAtMillis = timestamp.isMissingNode() ? lastPublishedAtMillis : timestamp.asLong() / 1000L;
+        lastPublishedAtMillis = event.publishedAtMillis;
+        event.authorChannelId = renderer.path("authorExternalChannelId").asText(null);
+        event.authorName = renderer.path("authorName").path("simpleText").asText(null);
+        event.member = hasMemberBadge(renderer);
+        if (renderer.has("message")) {
+            event.text = joinRuns(renderer.get("message"));
+        }
+        if (type.paid) {
+            setAmount(event, renderer.path("purchaseAmountText").path("simpleText").asText(""));
+        }
+        return event;
+    }
+
+    //本文は文字と絵文字の断片（runs）に分かれているのでつなげる。絵文字はショートカット（:smile:など）にする
+    private static String joinRuns(JsonNode message) {
+        StringBuilder sb = new StringBuilder();
+        for (JsonNode run : message.path("runs")) {
+            if (run.has("text")) {
+                sb.append(run.get("text").asText());
+            } else if (run.has("emoji")) {
+                JsonNode shortcuts = run.get("emoji").path("shortcuts");
+                if (shortcuts.size() > 0) sb.append(shortcuts.get(0).asText());
+            }
+        }
+        return sb.toString();
+    }
+
+    //メンバーバッジはチャンネル独自の画像（customThumbnail）を持っている。モデレーターなどのバッジはアイコンだけ
+    private static boolean hasMemberBadge(JsonNode renderer) {
+        for (JsonNode badge : renderer.path("authorBadges")) {
+            if (badge.path("liveChatAuthorBadgeRenderer").has("customThumbnail")) return true;
+        }
+        return false;
+    }
+
+
+    // 金額表示の記号 → 通貨コード。記号のない「PHP 100.00」のような表示はそのまま通貨コードとして扱う
+    private static final Map<String, String> CURRENCY_SYMBOLS = new HashMap<>();
+    static {
+        CURRENCY_SYMBOLS.put("¥", "JPY");
+        CURRENCY_SYMBOLS.put("￥", "JPY");
+        CURRENCY_SYMBOLS.put("$", "USD");
+        CURRENCY_SYMBOLS.put("US$", "USD");
+        CURRENCY_SYMBOLS.put("€", "EUR");
+        CURRENCY_SYMBOLS.put("£", "GBP");
+        CURRENCY_SYMBOLS.put("₩", "KRW");
+        CURRENCY_SYMBOLS.put("NT$", "TWD");
+        CURRENCY_SYMBOLS.put("HK$", "HKD");
+        CURRENCY_SYMBOLS.put("CN¥", "CNY");
+        CURRENCY_SYMBOLS.put("CA$", "CAD");
+        CURRENCY_SYMBOLS.put("A$", "AUD");
+        CURRENCY_SYMBOLS.put("SGD", "SGD");
+        CURRENCY_SYMBOLS.put("₱", "PHP");
+        CURRENCY_SYMBOLS.put("₹", "INR");
+        CURRENCY_SYMBOLS.put("R$", "BRL");
+        CURRENCY_SYMBOLS.put("MX$", "MXN");
+    }
+
+    //「¥1,000」「$5.00」のような表示から金額（マイクロ単位）と通貨コードを取り出す
+    static void setAmount(ChatEvent event, String display) {
+        int firstDigit = 0;
+        while (firstDigit < display.length() && !Character.isDigit(display.charAt(firstDigit))) firstDigit++;
+        if (firstDigit == display.length()) return;
+        String symbol = display.substring(0, firstDigit).trim();
+        String number = display.substring(firstDigit).replace(",", "").trim();
+        try {
+            event.amountMicros = new BigDecimal(number).movePointRight(6).longValue();
+        } catch (NumberFormatException e) {
+            return;
+        }
+        event.currency = CURRENCY_SYMBOLS.getOrDefault(symbol, symbol.toUpperCase());
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
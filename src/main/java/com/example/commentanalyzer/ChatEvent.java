@@ -0,0 +1,99 @@
+package com.example.commentanalyzer;
+
+import com.google.api.services.youtube.model.LiveChatMemberMilestoneChatDetails;
+import com.google.api.services.youtube.model.LiveChatMessage;
+import com.google.api.services.youtube.model.LiveChatMessageAuthorDetails;
+import com.google.api.services.youtube.model.LiveChatMessageDeletedDetails;
+import com.google.api.services.youtube.model.LiveChatMessageSnippet;
+import com.google.api.services.youtube.model.LiveChatSuperChatDetails;
+import com.google.api.services.youtube.model.LiveChatSuperStickerDetails;
+import com.google.api.services.youtube.model.LiveChatTextMessageDetails;
+import com.google.api.services.youtube.model.LiveChatUserBannedMessageDetails;
+
+
+ //ライブチャットの1イベントを種類付きで表すクラス
+ //LiveChatMessageはtypeごとに別々のdetailsオブジェクトを持っていて扱いにくいので
+ //分析に必要な値だけをここに取り出してそろえる。本文がないイベント（メンバー加入など）も捨てない
+public class ChatEvent {
+    public String id;                 // メッセージID（削除イベントの対象を探すのに使う）
+    public MessageType type;
+    public long publishedAtMillis;    // サーバーの投稿時刻（エポックミリ秒）
+    public String authorChannelId;
+    public String authorName;
+    public boolean member;            // 投稿者がメンバー（チャンネルスポンサー）かどうか
+    public String text;               // 感情分析する本文。ないイベントはnull
+    public long amountMicros;         // スパチャ・スーパーステッカーの金額（マイクロ単位）
+    public String currency;
+    public String targetMessageId;    // messageDeletedEventで削除されたメッセージのID
+    public String targetChannelId;    // userBannedEventでBANされた投稿者のチャンネルID
+
+    //YouTube APIのLiveChatMessageから作る
+    public static ChatEvent fromLiveChatMessage(LiveChatMessage message) {
+        LiveChatMessageSnippet snippet = message.getSnippet();
+        LiveChatMessageAuthorDetails authorDetails = message.getAuthorDetails();
+
+        ChatEvent event = new ChatEvent();
+        event.id = message.getId();
+        event.type = MessageType.fromApiType(snippet.getType());
+        event.publishedAtMillis = snippet.getPublishedAt() != null
+                ? StreamClock.toEpochMillis(snippet.getPublishedAt())
+                : System.currentTimeMillis();
+        if (authorDetails != null) {
+            event.authorChannelId = authorDetails.getChannelId();
+            event.authorName = authorDetails.getDisplayName();
+            event.member = Boolean.TRUE.equals(authorDetails.getIsChatSponsor());
+        } else {
+            event.authorChannelId = snippet.getAuthorChannelId();
+        }
+
+        // typeがあってもdetailsが付いていないイベントがある。その時は本文や対象をnullのままにする
+        // （1件のために例外を出すと、ポーリングのループごとセッションが終わってしまう）
+        switch (event.type) {
+            case TEXT:
+                LiveChatTextMessageDetails textDetails = snippet.getTextMessageDetails();
+                event.text = textDetails != null ? textDetails.getMessageText() : null;
+                break;
+            case SUPERCHAT:
+                LiveChatSuperChatDetails sc = snippet.getSuperChatDetails();
+                if (sc == null) break;
+                event.text = sc.getUserComment();
+                // 金額はBigIntegerで来るのでlongにしておく（スパチャの上限額ならlongで十分収まる）
+                event.amountMicros = sc.getAmountMicros() != null ? sc.getAmountMicros().longValue() : 0L;
+                event.currency = sc.getCurrency();
+                break;
+            case SUPER_STICKER:
+                LiveChatSuperStickerDetails sticker = snippet.getSuperStickerDetails();
+                if (sticker == null) break;
+                event.amountMicros = sticker.getAmountMicros() != null ? sticker.getAmountMicros().longValue() : 0L;
+                event.currency = sticker.getCurrency();
+                break;
+            case MEMBER_MILESTONE:
+                // メンバー継続のお祝いメッセージには本文が付いていることがある
+                LiveChatMemberMilestoneChatDetails milestone = snippet.getMemberMilestoneChatDetails();
+                event.text = milestone != null ? milestone.getUserComment() : null;
+                break;
+            case MESSAGE_DELETED:
+                LiveChatMessageDeletedDetails deleted = snippet.getMessageDeletedDetails();
+                event.targetMessageId = deleted != null ? deleted.getDeletedMessageId() : null;
+                break;
+            case USER_BANNED:
+                LiveChatUserBannedMessageDetails banned = snippet.getUserBannedDetails();
+                event.targetChannelId = banned != null && banned.getBannedUserDetails() != null
+                        ? banned.getBannedUserDetails().getChannelId() : null;
+                break;
+            default:
+                break;
+        }
+        return event;
+    }
+
+    //感情分析に回す本文があるかどうか
+    public boolean hasText() {
+        return text != null && !text.trim().isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ChatEvent{type=%s, author='%s', text='%s'}", type.label, authorName, text);
+    }
+}
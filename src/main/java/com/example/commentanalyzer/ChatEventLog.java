@@ -0,0 +1,80 @@
+package com.example.commentanalyzer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+ //取り込んだチャットイベントを1行1件のJSON（JSON Lines）でファイルに書き残すクラス
+ //配信が終わるとライブチャットAPIからは取れなくなるので、この記録があれば後からアーカイブ分析
+ //（--archive）でスコアの付け直しや設定を変えた集計ができる。
+ //1行目は配信の情報（動画ID・チャンネルID・タイトル・配信開始時刻）、2行目以降がChatEventのフィールドそのまま
+public class ChatEventLog implements Closeable {
+
+    private final ObjectMapper objectMapper;
+    private final BufferedWriter writer;
+    private final Path path;
+
+    public ChatEventLog(Path path, ObjectMapper objectMapper) throws IOException {
+        this.path = path;
+        this.objectMapper = objectMapper;
+        this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    //配信の情報を書く。分からない値はnull、streamStartMillisが分からなければLong.MIN_VALUE
+    public synchronized void writeHeader(String videoId, String channelId, String title, long streamStartMillis) throws IOException {
+        ObjectNode node = objectMapper.createObjectNode();
+        node.put("videoId", videoId);
+        if (channelId != null) node.put("channelId", channelId);
+        if (title != null) node.put("title", title);
+        if (streamStartMillis != Long.MIN_VALUE) {
+            node.put("streamStartMillis", streamStartMillis);
+        }
+        writeLine(node);
+    }
+
+    //イベントを1件書く。書き込みはバッファに溜まるだけなので、ポーリングごとにflush()する
+    public synchronized void append(ChatEvent event) throws IOException {
+        ObjectNode node = objectMapper.createObjectNode();
+        node.put("id", event.id);
+        node.put("type", event.type.name());
+        node.put("publishedAt", event.publishedAtMillis);
+        node.put("authorChannelId", event.authorChannelId);
+        node.put("authorName", event.authorName);
+        if (event.member) node.put("member", true);
+        if (event.text != null) node.put("text", event.text);
+        if (event.amountMicros != 0) {
+            node.put("amountMicros", event.amountMicros);
+            node.put("currency", event.currency);
+        }
+        if (event.targetMessageId != null) node.put("targetMessageId", event.targetMessageId);
+        if (event.targetChannelId != null) node.put("targetChannelId", event.targetChannelId);
+        writeLine(node);
+    }
+
+    private void writeLine(ObjectNode node) throws IOException {
+        writer.write(objectMapper.writeValueAsString(node));
+        writer.newLine();
+    }
+
+    public synchronized void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,610 @@
+package com.example.commentanalyzer;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+ //複数のプロセス（ノード）で配信の分析を分け合うためのクラス（--serve で環境変数 CLUSTER_DIR を設定した時）
+ //1台では事務所の配信が一斉に始まった時にポーリングも採点も追いつかないので、マシンを足せばその分だけ多く分析できるようにする。
+ //調整役のサーバーは置かず、全ノードから読み書きできる共有ディレクトリ（同じマシンならただのディレクトリ、複数台ならNFSなど）だけを使う:
+ //  streams/<動画ID>.properties  分析してほしい配信（どのノードのHTTPの窓口やチャンネル監視からでも登録できる）
+ //  leases/<動画ID>.lease        その配信を分析しているノードと、リースの期限。期限内は他のノードは手を出さない
+ //  nodes/<ノードID>.properties  各ノードの負荷（同時に分析できる数・分析中・待機中）。リースの更新のたびに書く
+ //  done/<動画ID>.properties     終わった配信（チャンネル監視が同じ配信をもう一度登録しないように）
+ //
+ //各ノードは数秒ごと（リースの期限の1/3ごと）に:
+ //  1. 自分のリースを延長する。他のノードが持っていると確かめられ、しかも延長できない状態がリースの期限より長く続いたら、
+ //     その配信の分析を止める（共有ディレクトリが一時的に読み書きできないだけなら止めない）
+ //  2. 終わった配信を「終わった」にし、登録が取り消された配信の分析を止める
+ //  3. 空きがあれば、まだ誰も分析していない配信（リースがないか期限切れのもの）を登録の古い順に引き受ける。
+ //     ただし他に自分より空いているノードがある間は引き受けない（負荷が均等になるように）
+ //ノードが落ちるとリースが延長されなくなり、期限が切れた時点で他のノードが引き受ける（フェイルオーバー）。
+ //引き受けたノードはその時点から分析し直す（出力ファイルはノードごとに分かれる）。
+ //Ctrl+Cで止めた時はリースを返すので、他のノードがすぐに引き受ける。
+ //
+ //リースを作るのは「一時ファイルに書いてからハードリンクを張る」で行う。ハードリンクは同じ名前があれば必ず失敗するので、
+ //同時に同じ配信を引き受けようとしても1つのノードしか成功しない（NFSでも使える昔からの方法）。
+ //期限はノードの時計で比べるので、複数台で動かす時は時計を合わせておく（NTP）こと。
+ //チャンネル監視も、リース（leases/_watcher.lease）を持っている1つのノードだけが動かす（YouTubeのクォータを重ねて使わない）。
+ //使用量の帳簿（COST_LEDGER）と学習データ（TRAINING_DATA）はノードごとのファイルに書く。指定しなければ既定のファイル名に
+ //ノードIDを付けたもの（costs/ledger-<ノードID>.tsv など）になるので、同じ作業ディレクトリで何ノード動かしても重ならない。
+ //再起動しても同じ日の使用量を引き継ぐように、CLUSTER_NODE_ID はノードごとに決めた名前にしておく（省略時の名前はプロセスIDを含む）。
+ //帳簿がノードごとなので、1日の上限はノードの数で割って設定する。
+ //ローカルモデルの学習（--train-model）は data= でノードのファイルを指定する（全ノード分を使う時はつなげてから）。
+ //1台で何ノードか試す時は scripts/cluster-local.sh で起動できる
+public class ClusterNode {
+
+    public static final long DEFAULT_LEASE_SECONDS = 30;
+
+    //リースを取りに行った結果
+    //  HELD   取れた（または延長できた）
+    //  TAKEN  他のノードが期限内のリースを持っていると確かめられた
+    //  ERROR  共有ディレクトリを読み書きできず、どちらか分からない
+    enum LeaseResult { HELD, TAKEN, ERROR }
+    // チャンネル監視のリースの名前（動画IDは11文字なので重ならない）
+    static final String WATCHER_LEASE = "_watcher";
+    // 終わった配信の印を残しておく日数
+    private static final long DONE_KEEP_MILLIS = 7L * 24 * 60 * 60 * 1000;
+    // 落ちたノードのファイルを残しておく時間（GET /cluster で落ちたことが分かるように、すぐには消さない）
+    private static final long DEAD_NODE_KEEP_MILLIS = 60L * 60 * 1000;
+
+    private final Path streamsDirectory;
+    private final Path leasesDirectory;
+    private final Path nodesDirectory;
+    private final Path doneDirectory;
+    private final String nodeId;
+    private final SessionManager manager;
+    private final long leaseMillis;
+    // このノードが引き受けた配信（動画ID → セッション）。HTTPの窓口やシャットダウンフックのスレッドからも見る
+    private final Map<String, SessionManager.ManagedSession> owned = new ConcurrentHashMap<>();
+    // 誰も分析していない配信を、このノードが最初にそう見た時刻（動画ID → ミリ秒）。タイマーのスレッドだけが使う
+    private final Map<String, Long> waitingSince = new LinkedHashMap<>();
+    private final ScheduledExecutorService timer;
+    private volatile boolean watching = false; // チャンネル監視を動かすノードの候補か
+    private volatile boolean holdsWatcher = false;
+    // リース（動画IDか監視）を最後に取れた・延長できた時刻。延長の失敗がどれだけ続いているかを見るのに使う
+    private final Map<String, Long> lastRenewed = new ConcurrentHashMap<>();
+    private volatile boolean shuttingDown = false;
+
+    public ClusterNode(Path directory, String nodeId, SessionManager manager, long leaseSeconds) {
+        this.streamsDirectory = directory.resolve("streams");
+        this.leasesDirectory = directory.resolve("leases");
+        this.nodesDirectory = directory.resolve("nodes");
+        this.doneDirectory = directory.resolve("done");
+        this.nodeId = nodeId;
+        this.manager = manager;
+        this.leaseMillis = leaseSeconds * 1000L;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "cluster");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //環境変数 CLUSTER_DIR（共有ディレクトリ）・CLUSTER_NODE_ID（省略時は ホスト名-プロセスID）・
+    //CLUSTER_LEASE_SECONDS（リースの期限、既定30秒）から作る。CLUSTER_DIRがなければnull（1台で動かす）
+    public static ClusterNode fromEnvironment(SessionManager manager) {
+        String directory = System.getenv("CLUSTER_DIR");
+        String nodeId = nodeIdFromEnvironment();
+        if (nodeId == null) return null;
+        long leaseSeconds = DEFAULT_LEASE_SECONDS;
+        String value = System.getenv("CLUSTER_LEASE_SECONDS");
+        if (value != null && !value.isBlank()) {
+            try {
+                leaseSeconds = Math.max(3, Long.parseLong(value.trim()));
+            } catch (NumberFormatException e) {
+                System.err.println("CLUSTER_LEASE_SECONDS が数値ではありません: " + value);
+            }
+        }
+        return new ClusterNode(Path.of(directory.trim()), nodeId, manager, leaseSeconds);
+    }
+
+    //このプロセスのノードID（CLUSTER_DIRがなければnull）
+    //ファイル名に使うので、英数字と . _ - 以外は置き換える
+    static String nodeIdFromEnvironment() {
+        String directory = System.getenv("CLUSTER_DIR");
+        if (directory == null || directory.isBlank()) return null;
+        String nodeId = System.getenv("CLUSTER_NODE_ID");
+        if (nodeId == null || nodeId.isBlank()) {
+            String host;
+            try {
+                host = InetAddress.getLocalHost().getHostName();
+            } catch (IOException e) {
+                host = "node";
+            }
+            nodeId = host + "-" + ProcessHandle.current().pid();
+        }
+        return nodeId.trim().replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    //ノードごとに分けるファイルの既定のパス。クラスタで動かす時は拡張子の前にノードIDを付ける
+    //（costs/ledger.tsv → costs/ledger-<ノードID>.tsv）。1台で動かす時はそのまま
+    static String pathForNode(String path) {
+        String nodeId = nodeIdFromEnvironment();
+        if (nodeId == null) return path;
+        int slash = path.lastIndexOf('/');
+        int dot = path.lastIndexOf('.');
+        return dot > slash ? path.substring(0, dot) + "-" + nodeId + path.substring(dot) : path + "-" + nodeId;
+    }
+
+    public String nodeId() {
+        return nodeId;
+    }
+
+    //このノードでもチャンネル監視を動かせる（YOUTUBE_CHANNEL_IDSがある）時に呼ぶ。監視のリースを取りに行くようになる
+    public void setWatching(boolean watching) {
+        this.watching = watching;
+    }
+
+    //チャンネル監視を動かしてよいか（監視のリースを持っているか）
+    public boolean holdsWatcher() {
+        return holdsWatcher && !shuttingDown;
+    }
+
+    public void start() throws IOException {
+        for (Path directory : List.of(streamsDirectory, leasesDirectory, nodesDirectory, doneDirectory)) {
+            Files.createDirectories(directory);
+        }
+        removeOldDone();
+        long interval = Math.max(1000, leaseMillis / 3);
+        timer.scheduleWithFixedDelay(this::tick, 0, interval, TimeUnit.MILLISECONDS);
+        System.out.println("クラスタに参加しました: ノード " + nodeId + "（" + streamsDirectory.getParent() + "）");
+    }
+
+    //止める前に呼ぶ（シャットダウンフックから）。リースを返して、他のノードにすぐ引き継がせる
+    //分析中のセッションの終了処理はこの後で SessionManager.finalizeAll() が行う
+    public void shutdown() {
+        shuttingDown = true;
+        timer.shutdown();
+        try {
+            timer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (String videoId : owned.keySet()) {
+            release(videoId);
+        }
+        if (holdsWatcher) release(WATCHER_LEASE);
+        try {
+            Files.deleteIfExists(nodesDirectory.resolve(nodeId + ".properties"));
+        } catch (IOException e) {
+            // 書けなくても、更新が止まったノードは負荷の計算から外れる
+        }
+        System.out.println("クラスタから抜けました: ノード " + nodeId);
+    }
+
+
+    //分析してほしい配信を登録する（どのノードが引き受けるかは後で決まる）
+    //force=falseなら、登録済み・終わった配信は登録しない（チャンネル監視用）。登録したらtrue
+    public boolean submit(String videoId, long azureRecords, long youtubeUnits, boolean force) throws IOException {
+        Path spec = streamsDirectory.resolve(videoId + ".properties");
+        Path done = doneDirectory.resolve(videoId + ".properties");
+        if (!force && (Files.exists(spec) || Files.exists(done))) return false;
+        Properties properties = new Properties();
+        properties.setProperty("videoId", videoId);
+        properties.setProperty("azureRecords", String.valueOf(azureRecords));
+        properties.setProperty("youtubeUnits", String.valueOf(youtubeUnits));
+        properties.setProperty("requestedAt", String.valueOf(System.currentTimeMillis()));
+        properties.setProperty("requestedBy", nodeId);
+        writeReplacing(spec, properties);
+        Files.deleteIfExists(done);
+        return true;
+    }
+
+    //登録を取り消す。分析しているノードが次の確認で止める
+    public boolean withdraw(String videoId) throws IOException {
+        return Files.deleteIfExists(streamsDirectory.resolve(videoId + ".properties"));
+    }
+
+
+    //定期的な処理（リースの延長 → 終わった配信の片付け → 負荷の報告 → 引き受け）。例外でタイマーが止まらないようにする
+    private void tick() {
+        if (shuttingDown) return;
+        try {
+            renewLeases();
+            reapSessions();
+            writeHeartbeat();
+            removeDeadNodes();
+            claimStreams();
+            if (watching) updateWatcher();
+        } catch (Exception e) {
+            System.err.println("クラスタの処理でエラー: " + e.getMessage());
+        }
+    }
+
+    //自分のリースを延長する
+    //他のノードが持っていると確かめられ、しかも最後に延長できてからリースの期限より長くたっている時だけ、そのノードに任せて分析を止める。
+    //読み書きのエラー（NFSの一時的な不調など）では止めない（その間にリースが切れて他のノードが引き受ければ、次の回にTAKENになる）
+    private void renewLeases() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<String, SessionManager.ManagedSession>> iterator = owned.entrySet().iterator();
+                iterator.hasNext(); ) {
+            Map.Entry<String, SessionManager.ManagedSession> entry = iterator.next();
+            String videoId = entry.getKey();
+            if (entry.getValue().isFinished()) continue; // 片付けはreapSessionsで
+            LeaseResult result = acquire(videoId);
+            if (result == LeaseResult.HELD) continue;
+            long failingMillis = now - lastRenewed.getOrDefault(videoId, now);
+            if (result == LeaseResult.TAKEN && failingMillis > leaseMillis) {
+                System.out.println("配信 " + videoId + " は他のノードが引き継いだので、このノードでの分析を止めます");
+                manager.stop(entry.getValue().id);
+                lastRenewed.remove(videoId);
+                iterator.remove();
+            } else {
+                System.err.println("配信 " + videoId + " のリースを延長できませんでした（"
+                        + (result == LeaseResult.TAKEN ? "他のノードが持っています" : "読み書きのエラー")
+                        + "、" + failingMillis / 1000 + "秒）。分析は続けます");
+            }
+        }
+    }
+
+    //監視のリースを取る・延長する。読み書きのエラーの間は、最後に延長できてから期限内なら持っているものとして扱う
+    private void updateWatcher() {
+        LeaseResult result = acquire(WATCHER_LEASE);
+        if (result == LeaseResult.HELD) {
+            holdsWatcher = true;
+        } else if (result == LeaseResult.TAKEN) {
+            holdsWatcher = false;
+        } else {
+            holdsWatcher = holdsWatcher
+                    && System.currentTimeMillis() - lastRenewed.getOrDefault(WATCHER_LEASE, 0L) <= leaseMillis;
+        }
+    }
+
+    //終わったセッションの配信を「終わった」にして登録とリースを消す。登録が取り消された配信は止める（次の回に片付く）
+    private void reapSessions() throws IOException {
+        for (Iterator<Map.Entry<String, SessionManager.ManagedSession>> iterator = owned.entrySet().iterator();
+                iterator.hasNext(); ) {
+            Map.Entry<String, SessionManager.ManagedSession> entry = iterator.next();
+            String videoId = entry.getKey();
+            SessionManager.ManagedSession session = entry.getValue();
+            if (session.isFinished()) {
+                Properties properties = new Properties();
+                properties.setProperty("videoId", videoId);
+                properties.setProperty("node", nodeId);
+                properties.setProperty("finishedAt", String.valueOf(System.currentTimeMillis()));
+                String endReason = session.analyzer.endReason();
+                if (endReason != null) properties.setProperty("endReason", endReason);
+                writeReplacing(doneDirectory.resolve(videoId + ".properties"), properties);
+                Files.deleteIfExists(streamsDirectory.resolve(videoId + ".properties"));
+                release(videoId);
+                lastRenewed.remove(videoId);
+                iterator.remove();
+            } else if (!Files.exists(streamsDirectory.resolve(videoId + ".properties"))) {
+                manager.stop(session.id);
+            }
+        }
+    }
+
+    //負荷をノードのファイルに書く（他のノードが引き受けるかどうかを決めるのに使う）
+    private void writeHeartbeat() throws IOException {
+        int[] load = localLoad();
+        Properties properties = new Properties();
+        properties.setProperty("node", nodeId);
+        properties.setProperty("capacity", String.valueOf(manager.workerCount()));
+        properties.setProperty("running", String.valueOf(load[0]));
+        properties.setProperty("queued", String.valueOf(load[1]));
+        properties.setProperty("streams", String.join(",", owned.keySet()));
+        properties.setProperty("watcher", String.valueOf(holdsWatcher));
+        properties.setProperty("updatedAt", String.valueOf(System.currentTimeMillis()));
+        writeReplacing(nodesDirectory.resolve(nodeId + ".properties"), properties);
+    }
+
+    //このノードの {分析中, 待機中} のセッション数
+    private int[] localLoad() {
+        int running = 0;
+        int queued = 0;
+        for (SessionManager.ManagedSession session : manager.list()) {
+            if (session.state() == SessionManager.State.QUEUED) queued++;
+            else if (!session.isFinished()) running++;
+        }
+        return new int[] {running, queued};
+    }
+
+    //まだ誰も分析していない配信を、空きの分だけ登録の古い順に引き受ける
+    //他の生きているノードのうちいちばん空いているものより自分の方が混んでいる間は引き受けない（そのノードに任せる）。
+    //ただしリースの期限以上のあいだ誰も引き受けない配信は、空きがあれば引き受ける（取り残さないため）
+    private void claimStreams() throws IOException {
+        long now = System.currentTimeMillis();
+        List<Properties> waiting = waitingStreams();
+        List<String> waitingIds = new ArrayList<>();
+        for (Properties spec : waiting) {
+            waitingIds.add(spec.getProperty("videoId"));
+            waitingSince.putIfAbsent(spec.getProperty("videoId"), now);
+        }
+        waitingSince.keySet().retainAll(waitingIds);
+        int capacity = manager.workerCount();
+        int[] load = localLoad();
+        int active = load[0] + load[1];
+        if (active >= capacity) return;
+        double otherLowest = lowestOtherLoad();
+        for (Properties spec : waiting) {
+            if (active >= capacity) break;
+            String videoId = spec.getProperty("videoId");
+            if (owned.containsKey(videoId)) continue;
+            boolean leastLoaded = (double) active / capacity <= otherLowest;
+            if (!leastLoaded && now - waitingSince.get(videoId) < leaseMillis) continue;
+            if (acquire(videoId) != LeaseResult.HELD) continue;
+            try {
+                SessionManager.ManagedSession session = manager.start(videoId,
+                        parseLong(spec.getProperty("azureRecords"), -1), parseLong(spec.getProperty("youtubeUnits"), -1));
+                owned.put(videoId, session);
+                active++;
+                System.out.println("配信 " + videoId + " を引き受けました（ノード " + nodeId + "）");
+            } catch (IllegalStateException e) {
+                // 前に持っていた時のセッションがまだ終了処理中。次の回にやり直す
+                release(videoId);
+            }
+        }
+    }
+
+    //他の生きている（リースの期限内にファイルを更新した）ノードの中で、いちばん低い負荷（持っているリースの数 / 同時に分析できる数）
+    //リースは引き受けた瞬間に作られるので、数秒ごとに書くノードのファイルの分析中の数より新しい。
+    //他にノードがなければ無限大（自分が全部引き受ける）
+    private double lowestOtherLoad() throws IOException {
+        long now = System.currentTimeMillis();
+        Map<String, Integer> leaseCounts = new LinkedHashMap<>();
+        try (Stream<Path> files = Files.list(leasesDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(".lease") || name.equals(WATCHER_LEASE + ".lease")) continue;
+                Properties lease = read(file);
+                if (lease == null || parseLong(lease.getProperty("expiresAt"), 0) <= now) continue;
+                leaseCounts.merge(lease.getProperty("node", ""), 1, Integer::sum);
+            }
+        }
+        double lowest = Double.POSITIVE_INFINITY;
+        for (Properties node : readAll(nodesDirectory)) {
+            String id = node.getProperty("node");
+            if (nodeId.equals(id)) continue;
+            if (now - parseLong(node.getProperty("updatedAt"), 0) > leaseMillis) continue;
+            long capacity = parseLong(node.getProperty("capacity"), 0);
+            if (capacity <= 0) continue;
+            lowest = Math.min(lowest, (double) leaseCounts.getOrDefault(id, 0) / capacity);
+        }
+        return lowest;
+    }
+
+    //登録されていて、リースがない（または期限切れの）配信。登録の古い順
+    private List<Properties> waitingStreams() throws IOException {
+        long now = System.currentTimeMillis();
+        List<Properties> waiting = new ArrayList<>();
+        for (Properties spec : readAll(streamsDirectory)) {
+            String videoId = spec.getProperty("videoId");
+            if (videoId == null) continue;
+            Properties lease = read(leasesDirectory.resolve(videoId + ".lease"));
+            if (lease != null && parseLong(lease.getProperty("expiresAt"), 0) > now) continue;
+            waiting.add(spec);
+        }
+        waiting.sort(Comparator.comparingLong(spec -> parseLong(spec.getProperty("requestedAt"), 0)));
+        return waiting;
+    }
+
+
+    //リースを取る（自分のものなら延長する）
+    //期限切れのリースは、まず別の名前に移してから作り直す。移せるのは1つのノードだけなので、同時に取りに来ても重ならない
+    private LeaseResult acquire(String name) {
+        Path lease = leasesDirectory.resolve(name + ".lease");
+        long now = System.currentTimeMillis();
+        try {
+            Properties current = read(lease);
+            LeaseResult result;
+            if (current == null) {
+                result = create(lease, leaseProperties(now)) ? LeaseResult.HELD : LeaseResult.TAKEN;
+            } else if (nodeId.equals(current.getProperty("node"))) {
+                result = renew(lease, now);
+            } else if (parseLong(current.getProperty("expiresAt"), 0) > now) {
+                result = LeaseResult.TAKEN;
+            } else {
+                result = takeOver(name, lease, now);
+            }
+            if (result == LeaseResult.HELD) lastRenewed.put(name, now);
+            return result;
+        } catch (IOException e) {
+            System.err.println("リースを読み書きできませんでした（" + name + "）: " + e.getMessage());
+            return LeaseResult.ERROR;
+        }
+    }
+
+    //自分のリースを延長する。置き換える直前にもう一度読んで自分のものか確かめ、置き換えた後にも読み直す
+    //（読んでから置き換えるまでの間に他のノードが作ったリースを、黙って上書きしたままにしない）
+    private LeaseResult renew(Path lease, long now) throws IOException {
+        Properties renewed = leaseProperties(now);
+        Path temporary = writeTemporary(lease, renewed);
+        try {
+            Properties current = read(lease);
+            if (current == null) return create(lease, renewed) ? LeaseResult.HELD : LeaseResult.TAKEN;
+            if (!nodeId.equals(current.getProperty("node"))) return LeaseResult.TAKEN;
+            Files.move(temporary, lease, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        Properties after = read(lease);
+        if (after != null && nodeId.equals(after.getProperty("node"))
+                && renewed.getProperty("expiresAt").equals(after.getProperty("expiresAt"))) {
+            return LeaseResult.HELD;
+        }
+        // 置き換えの直前に他のノードが書いていた。そのノードの延長の時にも同じ確認をするので、どちらか一方だけが残る
+        return LeaseResult.TAKEN;
+    }
+
+    //期限切れの他のノードのリースを引き継ぐ
+    private LeaseResult takeOver(String name, Path lease, long now) throws IOException {
+        Path aside = leasesDirectory.resolve(name + "." + nodeId + ".expired");
+        try {
+            Files.move(lease, aside, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            return LeaseResult.TAKEN; // 他のノードが先に移した
+        }
+        Properties moved = read(aside);
+        if (moved != null && parseLong(moved.getProperty("expiresAt"), 0) > now) {
+            // 読んでから移すまでの間に、他のノードが新しいリースを作っていた。元に戻して手を引く
+            try {
+                Files.createLink(lease, aside);
+            } catch (FileAlreadyExistsException e) {
+                // さらに別のノードが作った。先に作った方はリースの延長の時に気付いて手を引く
+            }
+            Files.deleteIfExists(aside);
+            return LeaseResult.TAKEN;
+        }
+        Files.deleteIfExists(aside);
+        return create(lease, leaseProperties(now)) ? LeaseResult.HELD : LeaseResult.TAKEN;
+    }
+
+    private Properties leaseProperties(long now) {
+        Properties properties = new Properties();
+        properties.setProperty("node", nodeId);
+        properties.setProperty("expiresAt", String.valueOf(now + leaseMillis));
+        return properties;
+    }
+
+    //自分のリースなら消す
+    private void release(String name) {
+        Path lease = leasesDirectory.resolve(name + ".lease");
+        try {
+            Properties current = read(lease);
+            if (current != null && nodeId.equals(current.getProperty("node"))) {
+                Files.deleteIfExists(lease);
+            }
+        } catch (IOException e) {
+            // 消せなくても期限が切れれば他のノードが取れる
+        }
+        lastRenewed.remove(name);
+        if (name.equals(WATCHER_LEASE)) holdsWatcher = false;
+    }
+
+
+    //クラスタの様子（HTTPの窓口の GET /cluster 用）
+    public Map<String, Object> describe() throws IOException {
+        long now = System.currentTimeMillis();
+        List<Map<String, Object>> nodes = new ArrayList<>();
+        for (Properties node : readAll(nodesDirectory)) {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("node", node.getProperty("node"));
+            status.put("alive", now - parseLong(node.getProperty("updatedAt"), 0) <= leaseMillis);
+            status.put("capacity", parseLong(node.getProperty("capacity"), 0));
+            status.put("running", parseLong(node.getProperty("running"), 0));
+            status.put("queued", parseLong(node.getProperty("queued"), 0));
+            status.put("watcher", Boolean.parseBoolean(node.getProperty("watcher")));
+            status.put("streams", node.getProperty("streams", ""));
+            status.put("updatedAt", parseLong(node.getProperty("updatedAt"), 0));
+            nodes.add(status);
+        }
+        List<Map<String, Object>> streams = new ArrayList<>();
+        for (Properties spec : readAll(streamsDirectory)) {
+            String videoId = spec.getProperty("videoId");
+            if (videoId == null) continue;
+            Properties lease = read(leasesDirectory.resolve(videoId + ".lease"));
+            boolean leased = lease != null && parseLong(lease.getProperty("expiresAt"), 0) > now;
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("videoId", videoId);
+            status.put("node", leased ? lease.getProperty("node") : null);
+            status.put("requestedAt", parseLong(spec.getProperty("requestedAt"), 0));
+            streams.add(status);
+        }
+        Map<String, Object> cluster = new LinkedHashMap<>();
+        cluster.put("node", nodeId);
+        cluster.put("nodes", nodes);
+        cluster.put("streams", streams);
+        return cluster;
+    }
+
+    private void removeDeadNodes() throws IOException {
+        long oldest = System.currentTimeMillis() - DEAD_NODE_KEEP_MILLIS;
+        for (Properties node : readAll(nodesDirectory)) {
+            if (parseLong(node.getProperty("updatedAt"), 0) < oldest && node.getProperty("node") != null) {
+                Files.deleteIfExists(nodesDirectory.resolve(node.getProperty("node") + ".properties"));
+            }
+        }
+    }
+
+    private void removeOldDone() throws IOException {
+        long oldest = System.currentTimeMillis() - DONE_KEEP_MILLIS;
+        try (Stream<Path> files = Files.list(doneDirectory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (Files.getLastModifiedTime(file).toMillis() < oldest) Files.deleteIfExists(file);
+            }
+        }
+    }
+
+
+    //一時ファイルに書いてから置き換える（読む側が書きかけを読まないように）
+    private void writeReplacing(Path path, Properties properties) throws IOException {
+        Path temporary = writeTemporary(path, properties);
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    //同じ名前がなければ作る。一時ファイルに書いてからハードリンクを張るので、作れるのは1つのノードだけ
+    private boolean create(Path path, Properties properties) throws IOException {
+        Path temporary = writeTemporary(path, properties);
+        try {
+            Files.createLink(path, temporary);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    private Path writeTemporary(Path path, Properties properties) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + "." + nodeId + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            properties.store(writer, null);
+        }
+        return temporary;
+    }
+
+    //なければnull
+    private static Properties read(Path path) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return properties;
+    }
+
+    //ディレクトリの *.properties をすべて読む（読んでいる間に消えたものは飛ばす）
+    private static List<Properties> readAll(Path directory) throws IOException {
+        List<Properties> all = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!file.getFileName().toString().endsWith(".properties")) continue;
+                Properties properties = read(file);
+                if (properties != null) all.add(properties);
+            }
+        }
+        return all;
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        if (value == null) return defaultValue;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
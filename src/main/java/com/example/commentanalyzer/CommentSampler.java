@@ -0,0 +1,191 @@
+package com.example.commentanalyzer;
+
+import com.example.commentanalyzer.IntegratedYouTubeSentimentAnalyzer.CommentData;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+
+
+ //コメントが多すぎて全件を感情分析できない配信のためのサンプリング
+ //10秒バケットごとに決まった件数（予算）だけを選んでAzureに送り、残りは分析しない。
+ //選び方は2通り（環境変数 SAMPLING_MODE で指定、未指定なら全件分析）
+ //  reservoir  : バケット内の全コメントから均等な確率で選ぶ（リザーバーサンプリング）
+ //  stratified : 種類（通常コメント/メンバー継続など）ごとに分けて、件数の比率どおりに選ぶ（層化抽出）
+ //               スパチャ・スーパーステッカーは件数が少なく重みも大きいので全件分析する
+ //選ばれなかったコメントはストアに印を付けておき、CSVでは標本から推定した平均と95%信頼区間を出す
+public class CommentSampler {
+
+    public enum Mode { RESERVOIR, STRATIFIED }
+
+    // 1バケット（10秒）あたりの分析件数の既定値
+    private static final int DEFAULT_BUDGET = 20;
+
+    private final Mode mode;
+    private final int budget;
+    private final CommentStore store;
+    private final SplittableRandom random = new SplittableRandom();
+
+    // まだ締め切っていないバケットの標本。キーはバケット番号
+    private final TreeMap<Long, BucketSample> samples = new TreeMap<>();
+    // この番号までのバケットは締め切り済み（遅れて届いたコメントは標本に入れない）
+    private long releasedThrough = Long.MIN_VALUE;
+
+    private long offeredCount;
+    private long sampledOutCount;
+
+    public CommentSampler(Mode mode, int budget, CommentStore store) {
+        this.mode = mode;
+        this.budget = budget;
+        this.store = store;
+    }
+
+    //環境変数 SAMPLING_MODE / SAMPLING_BUDGET から作る。サンプリングしない設定ならnull
+    public static CommentSampler fromEnvironment(CommentStore store) {
+        String modeName = System.getenv("SAMPLING_MODE");
+        if (modeName == null || modeName.isBlank() || modeName.equalsIgnoreCase("off")) {
+            return null;
+        }
+        Mode mode;
+        try {
+            mode = Mode.valueOf(modeName.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("SAMPLING_MODE が不正です（reservoir / stratified / off）: " + modeName + " → 全件分析します");
+            return null;
+        }
+        int budget = DEFAULT_BUDGET;
+        String budgetValue = System.getenv("SAMPLING_BUDGET");
+        if (budgetValue != null && !budgetValue.isBlank()) {
+            try {
+                budget = Math.max(1, Integer.parseInt(budgetValue.trim()));
+            } catch (NumberFormatException e) {
+                System.err.println("SAMPLING_BUDGET が数値ではありません: " + budgetValue + " → " + DEFAULT_BUDGET + "件にします");
+            }
+        }
+        System.out.printf("サンプリング: %s / 1バケットあたり%d件まで分析%n", mode.name().toLowerCase(), budget);
+        return new CommentSampler(mode, budget, store);
+    }
+
+    public boolean isStratified() {
+        return mode == Mode.STRATIFIED;
+    }
+
+
+    //1バケット・1層分の標本（リザーバー）
+    private static class Reservoir {
+        final ArrayList<CommentData> items = new ArrayList<>();
+        int seen; // この層に届いたコメント数（母集団の大きさ）
+    }
+
+    private static class BucketSample {
+        final Reservoir[] strata = new Reservoir[MessageType.COUNT];
+    }
+
+
+    //分析対象のコメントを1件渡す
+    //すぐに分析待ちに入れてよいならtrue（層化抽出のスパチャなど全件分析するもの）
+    //falseなら標本として預かったか、選ばれなかった（どちらもrelease()までは分析しない）
+    public synchronized boolean offer(long bucketIndex, CommentData comment) {
+        offeredCount++;
+        if (mode == Mode.STRATIFIED && comment.messageType.paid) {
+            return true;
+        }
+        if (bucketIndex <= releasedThrough) {
+            // 締め切り後に遅れて届いたコメントは母集団にだけ数える
+            drop(comment);
+            return false;
+        }
+
+        BucketSample sample = samples.computeIfAbsent(bucketIndex, k -> new BucketSample());
+        int stratum = mode == Mode.STRATIFIED ? comment.messageType.code : 0;
+        Reservoir reservoir = sample.strata[stratum];
+        if (reservoir == null) {
+            reservoir = sample.strata[stratum] = new Reservoir();
+        }
+
+        // リザーバーサンプリング（Algorithm R）: 予算までは全部入れ、それ以降はn件目を確率 予算/n で入れ替える
+        // 届いた順番に関係なく、どのコメントも同じ確率で最終的な標本に残る
+        reservoir.seen++;
+        if (reservoir.items.size() < budget) {
+            reservoir.items.add(comment);
+        } else {
+            int j = random.nextInt(reservoir.seen);
+            if (j < budget) {
+                drop(reservoir.items.set(j, comment));
+            } else {
+                drop(comment);
+            }
+        }
+        return false;
+    }
+
+
+    //throughBucketIndex以前のバケットを締め切り、選ばれたコメントを返す（呼び出し側で分析待ちに入れる）
+    //層化抽出では、層ごとの件数の比率で予算を配分し、配分を超えた分をここで落とす
+    public synchronized List<CommentData> release(long throughBucketIndex) {
+        List<CommentData> selected = new ArrayList<>();
+        Map<Long, BucketSample> closing = samples.headMap(throughBucketIndex, true);
+        for (BucketSample sample : closing.values()) {
+            int population = 0;
+            for (Reservoir reservoir : sample.strata) {
+                if (reservoir != null) population += reservoir.seen;
+            }
+            for (Reservoir reservoir : sample.strata) {
+                if (reservoir == null || reservoir.items.isEmpty()) continue;
+                int allocation = reservoir.items.size();
+                if (mode == Mode.STRATIFIED) {
+                    // 比例配分。小さな層も最低1件は分析する（0件だとその層の平均が出せない）
+                    allocation = (int) Math.max(1, Math.round((double) budget * reservoir.seen / population));
+                    allocation = Math.min(allocation, reservoir.items.size());
+                }
+                // 標本からさらに均等に選ぶ（Fisher–Yatesシャッフルの前半だけ）
+                List<CommentData> items = reservoir.items;
+                for (int i = 0; i < allocation; i++) {
+                    int j = i + random.nextInt(items.size() - i);
+                    CommentData swap = items.get(i);
+                    items.set(i, items.get(j));
+                    items.set(j, swap);
+                    selected.add(items.get(i));
+                }
+                for (int i = allocation; i < items.size(); i++) {
+                    drop(items.get(i));
+                }
+            }
+        }
+        closing.clear();
+        releasedThrough = Math.max(releasedThrough, throughBucketIndex);
+        return selected;
+    }
+
+
+    //標本として預かっている間に削除・BANされたコメントを外す（母集団からも除く）
+    public synchronized void retract(int row) {
+        for (BucketSample sample : samples.values()) {
+            for (Reservoir reservoir : sample.strata) {
+                if (reservoir == null) continue;
+                for (int i = 0; i < reservoir.items.size(); i++) {
+                    if (reservoir.items.get(i).row == row) {
+                        reservoir.items.remove(i);
+                        reservoir.seen--;
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    //選ばれなかったコメントに印を付ける（母集団には数えるが分析はしない）
+    private void drop(CommentData comment) {
+        store.markSampledOut(comment.row);
+        sampledOutCount++;
+    }
+
+    public synchronized String summary() {
+        long analyzed = offeredCount - sampledOutCount;
+        return String.format("%s / 1バケット%d件まで: 対象%d件のうち%d件を分析 (%.1f%%)",
+                mode.name().toLowerCase(), budget, offeredCount, analyzed,
+                offeredCount == 0 ? 0.0 : 100.0 * analyzed / offeredCount);
+    }
+}
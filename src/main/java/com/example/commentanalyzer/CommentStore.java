@@ -0,0 +1,134 @@
+package com.example.commentanalyzer;
+
+
+ //全コメントを列（カラム）ごとのプリミティブ配列で保存するクラス
+ //CommentDataオブジェクトを1件ずつ持つと、String2つ・LocalDateTime・参照やヘッダーで
+ //1件あたり数百バイトになるが、ここでは1件あたり
+ //  投稿時刻 long(8) + スコア float(4) + 種類 byte(1) + 投稿者番号 int(4) + 金額 float(4) = 21バイト
+ //しか使わない。コメント本文は感情分析が終わるまでCommentData側で持ち、ここには保存しない。
+ //
+ //配列は16384件ずつの塊（チャンク）で確保する。ArrayListのように全体をコピーして
+ //作り直すことがないので、数百万件になっても追加のコストは一定
+public class CommentStore {
+
+    private static final int CHUNK_SHIFT = 14;
+    public static final int CHUNK_SIZE = 1 << CHUNK_SHIFT; // 16384件
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    // 種類コードの上位ビットを印に使う（列を増やさずに済む）
+    // 最上位ビット: 削除・BANで取り消された / その次: スパム・連投として感情分析から除外された
+    // 3番目: サンプリングで選ばれず分析しなかった
+    private static final byte RETRACTED_FLAG = (byte) 0x80;
+    private static final byte FILTERED_FLAG = (byte) 0x40;
+    private static final byte SAMPLED_OUT_FLAG = (byte) 0x20;
+    private static final byte FLAG_MASK = RETRACTED_FLAG | FILTERED_FLAG | SAMPLED_OUT_FLAG;
+
+    private long[][] publishedAt = new long[16][];
+    private float[][] scores = new float[16][];
+    private byte[][] types = new byte[16][];
+    private int[][] authors = new int[16][];
+    private float[][] amounts = new float[16][]; // スパチャ金額（円換算）。通常コメントは0
+
+    // 追加済みの件数。volatileなので、別スレッド（シャットダウンフックなど）からの集計でも
+    // sizeまでの行は書き込み済みの状態で見える
+    private volatile int size = 0;
+
+    //1件追加して行番号を返す。スコアは未分析を表すNaNで初期化する
+    public synchronized int append(long publishedAtMillis, MessageType type, int authorId, float amount) {
+        int row = size;
+        int chunk = row >>> CHUNK_SHIFT;
+        if (chunk == publishedAt.length) {
+            growChunkTable();
+        }
+        if (publishedAt[chunk] == null) {
+            publishedAt[chunk] = new long[CHUNK_SIZE];
+            scores[chunk] = new float[CHUNK_SIZE];
+            types[chunk] = new byte[CHUNK_SIZE];
+            authors[chunk] = new int[CHUNK_SIZE];
+            amounts[chunk] = new float[CHUNK_SIZE];
+        }
+        int offset = row & CHUNK_MASK;
+        publishedAt[chunk][offset] = publishedAtMillis;
+        scores[chunk][offset] = Float.NaN;
+        types[chunk][offset] = type.code;
+        authors[chunk][offset] = authorId;
+        amounts[chunk][offset] = amount;
+        size = row + 1;
+        return row;
+    }
+
+    //チャンクの一覧（外側の配列）だけを2倍にする。中身のチャンクはコピーしない
+    private void growChunkTable() {
+        int newLength = publishedAt.length * 2;
+        publishedAt = java.util.Arrays.copyOf(publishedAt, newLength);
+        scores = java.util.Arrays.copyOf(scores, newLength);
+        types = java.util.Arrays.copyOf(types, newLength);
+        authors = java.util.Arrays.copyOf(authors, newLength);
+        amounts = java.util.Arrays.copyOf(amounts, newLength);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void setScore(int row, float score) {
+        scores[row >>> CHUNK_SHIFT][row & CHUNK_MASK] = score;
+    }
+
+    public long publishedAt(int row) {
+        return publishedAt[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    //未分析ならNaN
+    public float score(int row) {
+        return scores[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    public boolean isScored(int row) {
+        return !Float.isNaN(score(row));
+    }
+
+    public MessageType type(int row) {
+        return MessageType.fromCode((byte) (types[row >>> CHUNK_SHIFT][row & CHUNK_MASK] & ~FLAG_MASK));
+    }
+
+    //削除・BANされたコメントに印を付ける。集計からは除かれる
+    public void markRetracted(int row) {
+        types[row >>> CHUNK_SHIFT][row & CHUNK_MASK] |= RETRACTED_FLAG;
+    }
+
+    public boolean isRetracted(int row) {
+        return (types[row >>> CHUNK_SHIFT][row & CHUNK_MASK] & RETRACTED_FLAG) != 0;
+    }
+
+    //スパム・連投として感情分析から除外したコメントに印を付ける
+    public void markFiltered(int row) {
+        types[row >>> CHUNK_SHIFT][row & CHUNK_MASK] |= FILTERED_FLAG;
+    }
+
+    public boolean isFiltered(int row) {
+        return (types[row >>> CHUNK_SHIFT][row & CHUNK_MASK] & FILTERED_FLAG) != 0;
+    }
+
+    //サンプリングで選ばれなかったコメントに印を付ける（平均の推定で母集団の大きさに使う）
+    public void markSampledOut(int row) {
+        types[row >>> CHUNK_SHIFT][row & CHUNK_MASK] |= SAMPLED_OUT_FLAG;
+    }
+
+    public boolean isSampledOut(int row) {
+        return (types[row >>> CHUNK_SHIFT][row & CHUNK_MASK] & SAMPLED_OUT_FLAG) != 0;
+    }
+
+    public int author(int row) {
+        return authors[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    //スパチャ金額（円換算）。通常コメントは0
+    public float amount(int row) {
+        return amounts[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    //1件あたりのおおよそのメモリ使用量（バイト）。最終サマリーの表示用
+    public static int bytesPerRow() {
+        return Long.BYTES + Float.BYTES + Byte.BYTES + Integer.BYTES + Float.BYTES;
+    }
+}
@@ -0,0 +1,368 @@
+package com.example.commentanalyzer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+
+ //ブラウザやスクリプトから分析を操作するためのHTTPの窓口（--serve）
+ //JDK付属のHttpServerだけで動かす（ライブラリを増やさない）。中身はSessionManagerに任せ、ここはURLの振り分けとJSONの出し入れだけ。
+ //
+ //  GET  /                                 分析を始めるフォームとセッション一覧のページ（エンジニアでなくても使えるように）
+ //  GET  /sessions                         セッションの一覧
+ //  POST /sessions                         分析を始める。videoId（動画IDかURL）、azureRecords・youtubeUnits（このセッションの上限、省略可）
+ //                                         JSONでもフォーム（application/x-www-form-urlencoded）でもよい
+ //  GET  /sessions/{id}                    セッションの様子
+ //  POST /sessions/{id}/stop               止める（DELETE /sessions/{id} でも同じ）。終了処理をしてCSVなどを出力する
+ //  GET  /sessions/{id}/exports            出力ファイルの一覧
+ //  GET  /sessions/{id}/exports/{ファイル名} 出力ファイルのダウンロード
+ //クラスタで動かす時（CLUSTER_DIR、ClusterNode）は POST /sessions は配信をクラスタに登録するだけで（202）、
+ //どのノードが分析するかはClusterNodeが決める。/sessions はこのノードで動いているセッションだけを返す
+ //  GET  /cluster                          ノードごとの負荷と、登録された配信を分析しているノード
+ //  POST /cluster/streams/{動画ID}/stop     どのノードで分析中でも止める（DELETE /cluster/streams/{動画ID} でも同じ）
+ //
+ //既定では同じマシンからだけ受け付ける（CONTROL_BIND=127.0.0.1）。外から使う時は CONTROL_TOKEN を設定し、
+ //Authorizationヘッダー（Bearer トークン）か ?token=トークン を付けたリクエストだけ受け付ける。
+ //トークンなしで 127.0.0.1 以外に公開しようとした時は起動しない。
+ //同じマシンからでも、ブラウザで開いた別のサイトのページがフォームを送りつけて分析を始めたり止めたりできてしまう（CSRF）ので、
+ //Origin・Refererヘッダーがこのサーバー以外を指しているリクエストは断る（スクリプトのようにどちらも付けなければ受け付ける）。
+ //127.0.0.1で待つ時はHostヘッダーも確かめ、別の名前でこのサーバーを指させる手口（DNSリバインディング）も断る
+public class ControlServer {
+
+    public static final int DEFAULT_PORT = 8080;
+
+    private final SessionManager manager;
+    private final ObjectMapper objectMapper;
+    private final String token; // nullなら確認しない
+    private final boolean loopbackOnly;
+    private ClusterNode cluster; // nullなら1台で動かす
+    private final HttpServer server;
+
+    public ControlServer(SessionManager manager, String bindAddress, int port, String token) throws IOException {
+        this.manager = manager;
+        this.objectMapper = SharedClients.objectMapper();
+        this.token = token;
+        InetSocketAddress address = new InetSocketAddress(bindAddress, port);
+        this.loopbackOnly = address.getAddress() != null && address.getAddress().isLoopbackAddress();
+        if (!loopbackOnly && token == null) {
+            throw new IllegalStateException("CONTROL_BIND=" + bindAddress + " で外から操作できるようにするには CONTROL_TOKEN を設定してください");
+        }
+        this.server = HttpServer.create(address, 0);
+        // 窓口の処理は短いので数本のスレッドで足りる（分析そのものはSessionManagerのスレッドで動く）
+        server.setExecutor(Executors.newFixedThreadPool(4, runnable -> {
+            Thread thread = new Thread(runnable, "control-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.createContext("/", this::handle);
+    }
+
+    //環境変数 CONTROL_PORT・CONTROL_BIND・CONTROL_TOKEN から作る
+    public static ControlServer fromEnvironment(SessionManager manager) throws IOException {
+        int port = DEFAULT_PORT;
+        String portValue = System.getenv("CONTROL_PORT");
+        if (portValue != null && !portValue.isBlank()) {
+            try {
+                port = Integer.parseInt(portValue.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("CONTROL_PORT が数値ではありません: " + portValue);
+            }
+        }
+        String bind = System.getenv("CONTROL_BIND");
+        String token = System.getenv("CONTROL_TOKEN");
+        return new ControlServer(manager, bind == null || bind.isBlank() ? "127.0.0.1" : bind.trim(), port,
+                token == null || token.isBlank() ? null : token.trim());
+    }
+
+    public void setCluster(ClusterNode cluster) {
+        this.cluster = cluster;
+    }
+
+    public void start() {
+        server.start();
+        System.out.println("操作用のHTTPサーバーを起動しました: http://" + server.getAddress().getHostString()
+                + ":" + server.getAddress().getPort() + "/");
+    }
+
+    public void stop() {
+        server.stop(1);
+    }
+
+
+    //URLとメソッドで振り分ける。想定外のエラーは500にして、窓口のスレッドは止めない
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!sameOrigin(exchange)) {
+                sendJson(exchange, 403, error("このサーバー以外のページからのリクエストは受け付けません"));
+                return;
+            }
+            if (!authorized(exchange)) {
+                sendJson(exchange, 401, error("トークンが違います"));
+                return;
+            }
+            String method = exchange.getRequestMethod();
+            String[] parts = exchange.getRequestURI().getPath().replaceAll("^/+|/+$", "").split("/");
+            if (parts.length == 1 && parts[0].isEmpty()) {
+                if (method.equals("GET")) sendPage(exchange);
+                else sendJson(exchange, 405, error("GETだけ使えます"));
+                return;
+            }
+            if (parts[0].equals("cluster") && cluster != null) {
+                handleCluster(exchange, method, parts);
+                return;
+            }
+            if (!parts[0].equals("sessions")) {
+                sendJson(exchange, 404, error("見つかりません"));
+                return;
+            }
+            if (parts.length == 1) {
+                if (method.equals("GET")) listSessions(exchange);
+                else if (method.equals("POST")) startSession(exchange);
+                else sendJson(exchange, 405, error("GETかPOSTだけ使えます"));
+                return;
+            }
+            SessionManager.ManagedSession session = manager.get(parts[1]);
+            if (session == null) {
+                sendJson(exchange, 404, error("セッションが見つかりません: " + parts[1]));
+                return;
+            }
+            if (parts.length == 2 && method.equals("GET")) {
+                sendJson(exchange, 200, session.describe());
+            } else if ((parts.length == 2 && method.equals("DELETE"))
+                    || (parts.length == 3 && parts[2].equals("stop") && method.equals("POST"))) {
+                manager.stop(session.id);
+                respondAfterForm(exchange, 202, session.describe());
+            } else if (parts.length == 3 && parts[2].equals("exports") && method.equals("GET")) {
+                List<String> names = new ArrayList<>();
+                for (Path path : session.exports()) names.add(path.toString());
+                sendJson(exchange, 200, Map.of("id", session.id, "files", names));
+            } else if (parts.length == 4 && parts[2].equals("exports") && method.equals("GET")) {
+                sendExport(exchange, session, parts[3]);
+            } else {
+                sendJson(exchange, 404, error("見つかりません"));
+            }
+        } catch (Exception e) {
+            System.err.println("操作用HTTPサーバーのエラー: " + e.getMessage());
+            sendJson(exchange, 500, error(String.valueOf(e.getMessage())));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    //クラスタの様子と、登録された配信の取り消し
+    private void handleCluster(HttpExchange exchange, String method, String[] parts) throws IOException {
+        if (parts.length == 1 && method.equals("GET")) {
+            sendJson(exchange, 200, cluster.describe());
+        } else if (parts.length >= 3 && parts[1].equals("streams")
+                && ((parts.length == 3 && method.equals("DELETE"))
+                        || (parts.length == 4 && parts[3].equals("stop") && method.equals("POST")))) {
+            if (cluster.withdraw(parts[2])) {
+                respondAfterForm(exchange, 202, Map.of("videoId", parts[2], "withdrawn", true));
+            } else {
+                sendJson(exchange, 404, error("登録されていない配信です: " + parts[2]));
+            }
+        } else {
+            sendJson(exchange, 404, error("見つかりません"));
+        }
+    }
+
+    //ブラウザが付けるOrigin（なければReferer）が、このサーバー自身（http://Hostヘッダーの値）を指しているか
+    //127.0.0.1で待っている時は、Hostヘッダー自体もこのマシンの名前（localhost・127.0.0.1・[::1]）でなければ断る
+    private boolean sameOrigin(HttpExchange exchange) {
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        if (host == null) return false;
+        if (loopbackOnly) {
+            String name = host.replaceFirst(":\\d+$", "");
+            if (!name.equals("localhost") && !name.equals("127.0.0.1") && !name.equals("[::1]")) return false;
+        }
+        String own = "http://" + host;
+        String origin = exchange.getRequestHeaders().getFirst("Origin");
+        if (origin != null) return origin.equals(own);
+        String referer = exchange.getRequestHeaders().getFirst("Referer");
+        if (referer != null) return referer.equals(own) || referer.startsWith(own + "/") || referer.startsWith(own + "?");
+        return true;
+    }
+
+    private boolean authorized(HttpExchange exchange) {
+        if (token == null) return true;
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header != null && header.equals("Bearer " + token)) return true;
+        return token.equals(queryParameters(exchange).get("token"));
+    }
+
+    private void listSessions(HttpExchange exchange) throws IOException {
+        List<Map<String, Object>> sessions = new ArrayList<>();
+        for (SessionManager.ManagedSession session : manager.list()) {
+            sessions.add(session.describe());
+        }
+        sendJson(exchange, 200, Map.of("sessions", sessions));
+    }
+
+    private void startSession(HttpExchange exchange) throws IOException {
+        Map<String, String> parameters = requestParameters(exchange);
+        String videoId = YouTubeLiveSentimentMain.extractVideoId(parameters.get("videoId"));
+        // 出力ファイル名にも使うので、動画IDの形（11文字）になっていないものは受け付けない
+        if (videoId == null || !videoId.matches("[a-zA-Z0-9_-]{11}")) {
+            sendJson(exchange, 400, error("videoId（動画IDかURL）を指定してください"));
+            return;
+        }
+        long azureRecords = parseLimit(parameters.get("azureRecords"));
+        long youtubeUnits = parseLimit(parameters.get("youtubeUnits"));
+        if (cluster != null) {
+            cluster.submit(videoId, azureRecords, youtubeUnits, true);
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("videoId", videoId);
+            body.put("submitted", true);
+            respondAfterForm(exchange, 202, body);
+            return;
+        }
+        try {
+            SessionManager.ManagedSession session = manager.start(videoId, azureRecords, youtubeUnits);
+            respondAfterForm(exchange, 201, session.describe());
+        } catch (IllegalStateException e) {
+            sendJson(exchange, 409, error(e.getMessage()));
+        }
+    }
+
+    //上限の指定。空・数値でなければ-1（既定のまま）
+    private static long parseLimit(String value) {
+        if (value == null || value.isBlank()) return -1;
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    //出力ファイルを返す。そのセッションの出力ファイルの一覧にある名前だけ受け付ける（../ などで他のファイルを読ませない）
+    private void sendExport(HttpExchange exchange, SessionManager.ManagedSession session, String name) throws IOException {
+        Path file = null;
+        for (Path path : session.exports()) {
+            if (path.toString().equals(name)) file = path;
+        }
+        if (file == null) {
+            sendJson(exchange, 404, error("ファイルが見つかりません: " + name));
+            return;
+        }
+        String contentType = name.endsWith(".csv") ? "text/csv" : name.endsWith(".jsonl") ? "application/x-ndjson"
+                : "application/octet-stream";
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"" + name + "\"");
+        exchange.sendResponseHeaders(200, Files.size(file));
+        try (OutputStream out = exchange.getResponseBody()) {
+            Files.copy(file, out);
+        }
+    }
+
+
+    //ブラウザのフォームから送られてきたら一覧のページに戻し、それ以外（スクリプト）にはJSONを返す
+    private void respondAfterForm(HttpExchange exchange, int status, Object body) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith("application/x-www-form-urlencoded")) {
+            String query = exchange.getRequestURI().getRawQuery();
+            exchange.getResponseHeaders().set("Location", "/" + (query != null ? "?" + query : ""));
+            exchange.sendResponseHeaders(303, -1);
+            return;
+        }
+        sendJson(exchange, status, body);
+    }
+
+    private void sendJson(HttpExchange exchange, int status, Object body) throws IOException {
+        byte[] bytes = objectMapper.writeValueAsBytes(body);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static Map<String, Object> error(String message) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("error", message);
+        return body;
+    }
+
+    //本文のパラメータ。JSONならそのキー、フォームなら名前=値
+    private Map<String, String> requestParameters(HttpExchange exchange) throws IOException {
+        String body = new String(exchange.getRequestBody().readAllBytes(), StandardCharsets.UTF_8);
+        Map<String, String> parameters = new HashMap<>();
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        if (contentType != null && contentType.startsWith("application/json")) {
+            JsonNode root = objectMapper.readTree(body);
+            root.fields().forEachRemaining(field -> parameters.put(field.getKey(), field.getValue().asText()));
+        } else {
+            parameters.putAll(parseForm(body));
+        }
+        return parameters;
+    }
+
+    private static Map<String, String> queryParameters(HttpExchange exchange) {
+        String query = exchange.getRequestURI().getRawQuery();
+        return query == null ? Map.of() : parseForm(query);
+    }
+
+    private static Map<String, String> parseForm(String form) {
+        Map<String, String> parameters = new HashMap<>();
+        for (String pair : form.split("&")) {
+            if (pair.isEmpty()) continue;
+            int equals = pair.indexOf('=');
+            String key = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            parameters.put(key, value);
+        }
+        return parameters;
+    }
+
+
+    //分析を始めるフォームと、セッションの一覧（数秒ごとに /sessions を読み直す）だけの小さなページ
+    private void sendPage(HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+        String suffix = query != null ? "?" + query : ""; // トークンを付けて開いた時は、フォームと読み込みにも付ける
+        String html = "<!DOCTYPE html><html lang=\"ja\"><head><meta charset=\"utf-8\"><title>ライブチャット感情分析</title>"
+                + "<style>body{font-family:sans-serif;margin:2em}table{border-collapse:collapse}"
+                + "td,th{border:1px solid #ccc;padding:4px 8px}</style></head><body>"
+                + "<h1>ライブチャット感情分析</h1>"
+                + "<form method=\"post\" action=\"/sessions" + suffix + "\">"
+                + "動画IDかURL: <input name=\"videoId\" size=\"50\" required> "
+                + "Azureの上限（レコード、空なら既定）: <input name=\"azureRecords\" size=\"8\"> "
+                + "<button>分析を始める</button></form>"
+                + "<h2>セッション</h2><table><thead><tr><th>ID</th><th>配信</th><th>状態</th><th>コメント</th>"
+                + "<th>分析済み</th><th>平均</th><th>使用量</th><th></th></tr></thead><tbody id=\"rows\"></tbody></table>"
+                + (cluster == null ? "" : "<h2>クラスタ</h2><table><thead><tr><th>ノード</th><th>分析中</th><th>待機中</th>"
+                        + "<th>上限</th><th>配信</th></tr></thead><tbody id=\"nodes\"></tbody></table>")
+                + "<script>const q=" + objectMapper.writeValueAsString(suffix) + ";"
+                + "const esc=s=>String(s??'').replace(/[&<>\"]/g,c=>({'&':'&amp;','<':'&lt;','>':'&gt;','\"':'&quot;'}[c]));"
+                + "async function load(){const r=await fetch('/sessions'+q);const d=await r.json();"
+                + "document.getElementById('rows').innerHTML=d.sessions.map(s=>'<tr><td>'+s.id+'</td><td>'+esc(s.title||s.videoId)"
+                + "+'</td><td>'+esc(s.stateLabel)+(s.endReason?'（'+esc(s.endReason)+'）':'')+'</td><td>'+s.comments+'</td><td>'+s.analyzed"
+                + "+'</td><td>'+(s.averageScore==null?'-':s.averageScore.toFixed(3))+'</td><td>'+esc(s.usage)+'</td><td>'"
+                + "+(s.state==='finished'?'<a href=\"/sessions/'+s.id+'/exports'+q+'\">出力ファイル</a>'"
+                + ":'<form method=\"post\" action=\"/sessions/'+s.id+'/stop'+q+'\"><button>止める</button></form>')"
+                + "+'</td></tr>').join('');"
+                + (cluster == null ? "" : "const c=await (await fetch('/cluster'+q)).json();"
+                        + "document.getElementById('nodes').innerHTML=c.nodes.filter(n=>n.alive).map(n=>'<tr><td>'+esc(n.node)"
+                        + "+'</td><td>'+n.running+'</td><td>'+n.queued+'</td><td>'+n.capacity+'</td><td>'+esc(n.streams)+'</td></tr>').join('');")
+                + "}load();setInterval(load,5000);</script></body></html>";
+        byte[] bytes = html.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/html; charset=utf-8");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
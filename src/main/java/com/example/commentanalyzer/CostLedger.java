@@ -0,0 +1,240 @@
+package com.example.commentanalyzer;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+ //APIの使用量（お金とクォータ）の帳簿
+ //  ・Azure: 課金単位の「テキストレコード」（1文書の1000文字ごとに1レコード。二重送信した分も数える）
+ //  ・YouTube: APIのクォータのユニット（liveChatMessages.listは1回5、videos.listなどは1回1）
+ //以前はどちらも数えていなかったので、終了を忘れた長時間配信で予算を使い切っても気付けなかった。
+ //
+ //日ごとの合計はファイル（既定 costs/ledger.tsv、1行 = 日付・Azureレコード・YouTubeユニット）に書き、
+ //クラスタで動かす時の既定はノードごとの costs/ledger-<ノードID>.tsv（同じファイルを複数のプロセスで書くと合計を上書きし合う）。
+ //再起動しても同じ日の分を引き継ぐ。日付はYouTubeのクォータがリセットされる太平洋時間で区切る。
+ //アプリ全体で1つ（SharedClients.costLedger()）で、配信ごとの分はSessionで数える。
+ //
+ //上限（環境変数、省略時は上限なし。YouTubeの1日分だけは既定のクォータ10000）に近づくと、止めずに段階的に節約する:
+ //  SAVING（上限の80%以上）  Azure: 普通のコメントは手元のモデルで採点し、モデルがなければ一部だけAzureに送る
+ //                           YouTube: ポーリングの間隔を延ばす
+ //  EXHAUSTED（上限に到達）  Azure: 手元で採点できるものだけ採点し、Azureには送らない
+ //                           YouTube: ポーリングをやめて、そこまでの分でレポートを出す
+public class CostLedger {
+
+    public static final int NORMAL = 0;
+    public static final int SAVING = 1;
+    public static final int EXHAUSTED = 2;
+
+    // YouTube APIの呼び出しごとのクォータ消費
+    public static final int LIVE_CHAT_LIST_UNITS = 5;
+    public static final int LIST_UNITS = 1;
+    // Azureの1テキストレコードの文字数
+    private static final int RECORD_CHARACTERS = 1000;
+
+    public static final String DEFAULT_PATH = "costs/ledger.tsv";
+    private static final ZoneId QUOTA_ZONE = ZoneId.of("America/Los_Angeles");
+    private static final long DEFAULT_YOUTUBE_DAILY_UNITS = 10_000;
+    private static final double SAVING_FRACTION = 0.8;
+    // ファイルに残しておく日数
+    private static final int KEEP_DAYS = 90;
+
+    private final Path path; // nullならファイルに書かない
+    private final long azureDailyCap;
+    private final long azureSessionCap;
+    private final long youtubeDailyCap;
+    private final long youtubeSessionCap;
+    // 日付 → {Azureレコード, YouTubeユニット}
+    private final TreeMap<LocalDate, long[]> days = new TreeMap<>();
+    private boolean dirty = false;
+
+    //capは0なら上限なし
+    public CostLedger(Path path, long azureDailyCap, long azureSessionCap, long youtubeDailyCap, long youtubeSessionCap) {
+        this.path = path;
+        this.azureDailyCap = azureDailyCap;
+        this.azureSessionCap = azureSessionCap;
+        this.youtubeDailyCap = youtubeDailyCap;
+        this.youtubeSessionCap = youtubeSessionCap;
+        if (path != null && Files.exists(path)) {
+            try {
+                load();
+            } catch (IOException e) {
+                System.err.println("使用量の記録を読めませんでした（今日の分は0から数えます）: " + e.getMessage());
+            }
+        }
+    }
+
+    //環境変数 COST_LEDGER（ファイル、"off"なら書かない）・AZURE_DAILY_RECORDS・AZURE_SESSION_RECORDS・
+    //YOUTUBE_DAILY_QUOTA・YOUTUBE_SESSION_QUOTA（上限、0なら上限なし）から作る
+    public static CostLedger fromEnvironment() {
+        String value = System.getenv("COST_LEDGER");
+        Path path = "off".equalsIgnoreCase(value) ? null
+                : Path.of(value == null || value.isBlank() ? ClusterNode.pathForNode(DEFAULT_PATH) : value);
+        return new CostLedger(path,
+                capFromEnvironment("AZURE_DAILY_RECORDS", 0),
+                capFromEnvironment("AZURE_SESSION_RECORDS", 0),
+                capFromEnvironment("YOUTUBE_DAILY_QUOTA", DEFAULT_YOUTUBE_DAILY_UNITS),
+                capFromEnvironment("YOUTUBE_SESSION_QUOTA", 0));
+    }
+
+    private static long capFromEnvironment(String name, long defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isBlank()) return defaultValue;
+        try {
+            return Math.max(0, Long.parseLong(value.trim()));
+        } catch (NumberFormatException e) {
+            System.err.println(name + " が数値ではありません: " + value);
+            return defaultValue;
+        }
+    }
+
+    public Session openSession() {
+        return new Session();
+    }
+
+    //1文書のテキストレコード数
+    public static int records(String text) {
+        return Math.max(1, (text.length() + RECORD_CHARACTERS - 1) / RECORD_CHARACTERS);
+    }
+
+
+    //1つの配信（セッション）の使用量。日ごとの合計にも同時に足す
+    public class Session {
+        private long azureRecords = 0;
+        private long youtubeUnits = 0;
+        private int lastAzureLevel = NORMAL;
+        private int lastYouTubeLevel = NORMAL;
+        // このセッションだけの上限（最初は環境変数の値。SessionManagerがセッションごとに変える）
+        private long azureCap = azureSessionCap;
+        private long youtubeCap = youtubeSessionCap;
+
+        //このセッションの上限を変える。0なら上限なし（日ごとの上限は変わらない）
+        public void setLimits(long azureRecords, long youtubeUnits) {
+            synchronized (CostLedger.this) {
+                azureCap = azureRecords;
+                youtubeCap = youtubeUnits;
+            }
+        }
+
+        public void chargeAzure(long records) {
+            synchronized (CostLedger.this) {
+                azureRecords += records;
+                today()[0] += records;
+                dirty = true;
+            }
+        }
+
+        public void chargeYouTube(int units) {
+            synchronized (CostLedger.this) {
+                youtubeUnits += units;
+                today()[1] += units;
+                dirty = true;
+            }
+        }
+
+        //Azureの節約の段階（NORMAL / SAVING / EXHAUSTED）。段階が変わった時に1回だけ知らせる
+        public int azureLevel() {
+            synchronized (CostLedger.this) {
+                int level = level(azureRecords, azureCap, today()[0], azureDailyCap);
+                if (level != lastAzureLevel) {
+                    lastAzureLevel = level;
+                    announce("Azure", level);
+                }
+                return level;
+            }
+        }
+
+        public int youtubeLevel() {
+            synchronized (CostLedger.this) {
+                int level = level(youtubeUnits, youtubeCap, today()[1], youtubeDailyCap);
+                if (level != lastYouTubeLevel) {
+                    lastYouTubeLevel = level;
+                    announce("YouTube", level);
+                }
+                return level;
+            }
+        }
+
+        public String summary() {
+            synchronized (CostLedger.this) {
+                long[] today = today();
+                return String.format("このセッション Azure %,dレコード・YouTube %,dユニット / 今日の合計 Azure %,d%s・YouTube %,d%s",
+                        azureRecords, youtubeUnits, today[0], capLabel(azureDailyCap), today[1], capLabel(youtubeDailyCap));
+            }
+        }
+    }
+
+    private static int level(long sessionUsage, long sessionCap, long dayUsage, long dayCap) {
+        double fraction = Math.max(fraction(sessionUsage, sessionCap), fraction(dayUsage, dayCap));
+        if (fraction >= 1.0) return EXHAUSTED;
+        if (fraction >= SAVING_FRACTION) return SAVING;
+        return NORMAL;
+    }
+
+    private static double fraction(long usage, long cap) {
+        return cap <= 0 ? 0.0 : (double) usage / cap;
+    }
+
+    private static String capLabel(long cap) {
+        return cap <= 0 ? "" : String.format("（上限 %,d）", cap);
+    }
+
+    private static void announce(String api, int level) {
+        if (level == SAVING) {
+            System.out.println(api + "の使用量が上限の" + (int) (SAVING_FRACTION * 100) + "%を超えました。節約モードにします");
+        } else if (level == EXHAUSTED) {
+            System.out.println(api + "の使用量が上限に達しました。これ以上は使いません");
+        }
+    }
+
+    private long[] today() {
+        return days.computeIfAbsent(LocalDate.now(QUOTA_ZONE), date -> new long[2]);
+    }
+
+
+    //変わっていればファイルに書く。一時ファイルに書いてから置き換えるので、途中で落ちても前の内容が残る
+    public synchronized void flush() {
+        if (path == null || !dirty) return;
+        LocalDate oldest = LocalDate.now(QUOTA_ZONE).minusDays(KEEP_DAYS);
+        days.headMap(oldest).clear();
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                for (Map.Entry<LocalDate, long[]> entry : days.entrySet()) {
+                    writer.write(entry.getKey() + "\t" + entry.getValue()[0] + "\t" + entry.getValue()[1] + "\n");
+                }
+            }
+            Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        } catch (IOException e) {
+            System.err.println("使用量の記録を書けませんでした: " + e.getMessage());
+        }
+    }
+
+    private void load() throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length < 3) continue;
+                try {
+                    days.put(LocalDate.parse(fields[0]),
+                            new long[] {Long.parseLong(fields[1]), Long.parseLong(fields[2])});
+                } catch (RuntimeException e) {
+                    // 壊れた行は飛ばす
+                }
+            }
+        }
+    }
+}
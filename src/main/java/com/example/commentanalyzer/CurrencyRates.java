@@ -0,0 +1,79 @@
+package com.example.commentanalyzer;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+
+ //スーパーチャットの金額を1つの通貨（日本円）にそろえるための為替レート表
+ //配信中に外部APIへ問い合わせると遅くなったり失敗したりするので、手元の表だけで換算する。
+ //環境変数 CURRENCY_RATES_FILE にプロパティファイル（例: USD=150.0）を指定すると
+ //組み込みの目安レートを上書きできる
+public class CurrencyRates {
+
+    public static final String BASE_CURRENCY = "JPY";
+
+    // 1単位あたりの円換算（目安）。正確な売上が必要ならファイルで最新のレートを指定する
+    private final Map<String, Double> rates = new HashMap<>();
+    // 表にない通貨は1回だけ警告を出す
+    private final Set<String> warnedCurrencies = new HashSet<>();
+
+    public CurrencyRates() {
+        rates.put("JPY", 1.0);
+        rates.put("USD", 150.0);
+        rates.put("EUR", 160.0);
+        rates.put("GBP", 190.0);
+        rates.put("KRW", 0.11);
+        rates.put("TWD", 4.7);
+        rates.put("HKD", 19.0);
+        rates.put("CNY", 21.0);
+        rates.put("SGD", 110.0);
+        rates.put("AUD", 98.0);
+        rates.put("CAD", 110.0);
+        rates.put("PHP", 2.6);
+        rates.put("IDR", 0.0095);
+        rates.put("THB", 4.2);
+        rates.put("MYR", 32.0);
+        rates.put("INR", 1.8);
+        rates.put("BRL", 28.0);
+        rates.put("MXN", 8.5);
+
+        String file = System.getenv("CURRENCY_RATES_FILE");
+        if (file != null && !file.trim().isEmpty()) {
+            loadFile(file.trim());
+        }
+    }
+
+    private void loadFile(String file) {
+        Properties properties = new Properties();
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+            properties.load(reader);
+            for (String currency : properties.stringPropertyNames()) {
+                rates.put(currency.trim().toUpperCase(), Double.parseDouble(properties.getProperty(currency).trim()));
+            }
+            System.out.println("為替レートを読み込みました: " + file + " (" + properties.size() + "通貨)");
+        } catch (IOException | NumberFormatException e) {
+            System.err.println("為替レートファイル読み込みエラー: " + e.getMessage() + "（組み込みのレートを使います）");
+        }
+    }
+
+    //YouTubeの金額（マイクロ単位: 1円 = 1,000,000）を円に換算する。表にない通貨は0円として扱う
+    public synchronized double toBase(long amountMicros, String currency) {
+        if (amountMicros <= 0 || currency == null) return 0.0;
+        Double rate = rates.get(currency.toUpperCase());
+        if (rate == null) {
+            if (warnedCurrencies.add(currency)) {
+                System.err.println("為替レートが未登録の通貨です（売上に含めません）: " + currency);
+            }
+            return 0.0;
+        }
+        return amountMicros / 1_000_000.0 * rate;
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.commentanalyzer;
+
+
+ //10秒バケットの流れを1つずつ受け取り、切り抜き候補になりそうな盛り上がりを検出するクラス
+ //EWMA（指数加重移動平均）で「普段の平均」と「普段のばらつき（分散）」を覚えておき
+ //今のバケットが普段からどれだけ外れているかをzスコア（標準偏差何個分か）で判定する。
+ //過去のバケットを保持しないので、1バケットあたりの処理は常にO(1)
+public class HighlightDetector {
+
+    // EWMAの重み。0.05なら直近およそ20バケット（約3分）分を「普段」とみなす
+    private static final double ALPHA = 0.05;
+    // 普段の値が固まるまで（ウォームアップ）は判定しない
+    private static final int WARMUP_BUCKETS = 12;
+    // 平均スコアを判定に使うのに必要な分析済みコメント数
+    private static final int MIN_ANALYZED_FOR_SENTIMENT = 3;
+    // 1バケットにこの数以上のスパチャが来たら、普段の値に関係なくバーストとみなす
+    private static final int SUPERCHAT_BURST_MIN = 3;
+    // 盛り上がりが途切れてから何バケット待って確定させるか
+    private static final int COOLDOWN_BUCKETS = 1;
+
+    private final double zThreshold;
+
+    private final Ewma sentiment = new Ewma();
+    private final Ewma rate = new Ewma();
+    private final Ewma superchats = new Ewma();
+    private long bucketsSeen = 0;
+
+    // 検出中（まだ終わっていない）ハイライト
+    private Highlight open;
+    private int quietBuckets;
+
+    public HighlightDetector() {
+        this(3.0);
+    }
+
+    public HighlightDetector(double zThreshold) {
+        this.zThreshold = zThreshold;
+    }
+
+
+     //検出されたハイライト区間
+    public static class Highlight {
+        public final long startMillis;  // 開始時刻（エポックミリ秒）
+        public long endMillis;
+        public boolean sentimentSpike;  // 感情スコアの急変
+        public boolean rateSpike;       // コメント数の急増
+        public boolean superchatBurst;  // スパチャの集中
+        public double peakSentimentZ;   // 絶対値が最大だった感情zスコア（符号で正負がわかる）
+        public double peakRateZ;
+        public int comments;
+        public int superchatCount;
+
+        Highlight(long startMillis) {
+            this.startMillis = startMillis;
+        }
+
+        public String reasons() {
+            StringBuilder sb = new StringBuilder();
+            if (sentimentSpike) sb.append(peakSentimentZ >= 0 ? "感情+" : "感情-");
+            if (rateSpike) sb.append(sb.length() > 0 ? "|" : "").append("コメント急増");
+            if (superchatBurst) sb.append(sb.length() > 0 ? "|" : "").append("スパチャ");
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Highlight{%s - %s, %s, sentimentZ=%.2f, rateZ=%.2f}",
+                                 StreamClock.formatWallClock(startMillis), StreamClock.formatWallClock(endMillis),
+                                 reasons(), peakSentimentZ, peakRateZ);
+        }
+    }
+
+
+     //指数加重移動平均と分散を1つの値について保持する
+     //新しい値xが来るたびに mean と var を更新するだけなので、過去の値を覚えておかなくていい
+    private static class Ewma {
+        double mean;
+        double var;
+        boolean initialized;
+
+        double zScore(double x) {
+            if (!initialized) return 0.0;
+            // 分散がほぼ0の時にzが無限大にならないよう、最低限のばらつきを足しておく
+            return (x - mean) / Math.sqrt(var + 1e-4);
+        }
+
+        void update(double x) {
+            if (!initialized) {
+                mean = x;
+                initialized = true;
+                return;
+            }
+            double diff = x - mean;
+            double incr = ALPHA * diff;
+            mean += incr;
+            var = (1 - ALPHA) * (var + diff * incr);
+        }
+    }
+
+
+     //時間順に1バケットずつ渡す。ハイライトが確定した時だけそのハイライトを返し、それ以外はnull
+     //コメントが1件もない10秒間も空のバケットとして渡すこと（コメント数の基準が正しくならないため）
+    public Highlight onBucket(SentimentBucket bucket) {
+        boolean warmedUp = bucketsSeen >= WARMUP_BUCKETS;
+
+        double rateZ = rate.zScore(bucket.commentCount);
+        double scZ = superchats.zScore(bucket.superchatCount);
+        boolean hasSentiment = bucket.analyzedCount >= MIN_ANALYZED_FOR_SENTIMENT;
+        double sentimentZ = hasSentiment ? sentiment.zScore(bucket.averageScore()) : 0.0;
+
+        boolean sentimentSpike = warmedUp && Math.abs(sentimentZ) >= zThreshold;
+        boolean rateSpike = warmedUp && rateZ >= zThreshold;
+        boolean superchatBurst = bucket.superchatCount >= SUPERCHAT_BURST_MIN
+                || (warmedUp && bucket.superchatCount > 0 && scZ >= zThreshold);
+
+        // 判定が終わってから「普段の値」を更新する
+        rate.update(bucket.commentCount);
+        superchats.update(bucket.superchatCount);
+        if (hasSentiment) sentiment.update(bucket.averageScore());
+        bucketsSeen++;
+
+        if (sentimentSpike || rateSpike || superchatBurst) {
+            if (open == null) {
+                open = new Highlight(bucket.startMillis);
+            }
+            open.endMillis = bucket.endMillis();
+            open.sentimentSpike |= sentimentSpike;
+            open.rateSpike |= rateSpike;
+            open.superchatBurst |= superchatBurst;
+            if (Math.abs(sentimentZ) > Math.abs(open.peakSentimentZ)) open.peakSentimentZ = sentimentZ;
+            open.peakRateZ = Math.max(open.peakRateZ, rateZ);
+            open.comments += bucket.commentCount;
+            open.superchatCount += bucket.superchatCount;
+            quietBuckets = 0;
+            return null;
+        }
+
+        if (open != null && ++quietBuckets > COOLDOWN_BUCKETS) {
+            return flush();
+        }
+        return null;
+    }
+
+    //検出中のハイライトがあれば確定させて返す（配信終了時に呼ぶ）
+    public Highlight flush() {
+        Highlight closed = open;
+        open = null;
+        quietBuckets = 0;
+        return closed;
+    }
+
+    public boolean isHighlightOpen() {
+        return open != null;
+    }
+}
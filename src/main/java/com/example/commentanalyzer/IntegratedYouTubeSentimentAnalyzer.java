@@ -1,24 +1,27 @@
 package com.example.commentanalyzer;
 
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.services.youtube.YouTube;
 import com.google.api.services.youtube.model.LiveChatMessageListResponse;
 import com.google.api.services.youtube.model.LiveChatMessage;
-import com.google.api.services.youtube.model.LiveChatSuperChatDetails;
 import com.google.api.services.youtube.model.Video;
 import com.google.api.services.youtube.model.VideoLiveStreamingDetails;
 import com.google.api.services.youtube.model.VideoListResponse;
 
 import java.io.*;
-import java.net.URI;
 import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
-import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 
@@ -29,34 +32,168 @@ public class IntegratedYouTubeSentimentAnalyzer {
     // Azure Text Analytics API の設定
     private  final String API_KEY;
     private  final String ENDPOINT;
-    private  final String API_URL;
     
     // 感情分析のバッチサイズ（一度に分析するコメント数）
     private static final int ANALYSIS_BATCH_SIZE = 5;
+    // Azure APIが1リクエストで受け付けるドキュメント数の上限
+    private static final int AZURE_MAX_DOCUMENTS = AzureSentimentClient.MAX_DOCUMENTS;
+    // 終了時の分析でAPIエラーが何回続いたら諦めるか
+    private static final int MAX_FINAL_FAILURES = 3;
+    // 画面に表示する直近の分析結果の件数
+    private static final int RECENT_DISPLAY_COUNT = 5;
     
     private final HttpClient httpClient;
     private final ObjectMapper objectMapper;
-    private final List<CommentData> comments;
+    private final AzureEndpointPool sentimentClient;
     private final YouTube youtube;
-    
-    // バッチ処理用の未分析コメントカウンター
-    private int unanalyzedCount = 0;
+
+    // 全コメントの列指向ストア（投稿時刻・スコア・種類・投稿者番号だけをプリミティブ配列で持つ）
+    private final CommentStore store = new CommentStore();
+    // 投稿者チャンネルID → 連番の辞書
+    private final AuthorDictionary authors = new AuthorDictionary();
+    // 投稿者ごとの集計（コメントが届くたび・スコアが付くたびに更新）
+    private final AuthorIndex authorIndex = new AuthorIndex(authors);
+    // スパチャ金額を円にそろえるための為替レート表
+    private final CurrencyRates currencyRates = new CurrencyRates();
+    // 同じメッセージが2回届いても1回だけ取り込むための、取り込み済みメッセージIDの記録
+    private final SeenMessageIds seenMessageIds = new SeenMessageIds();
+    // ポーリングの失敗をこの回数まで続けて再試行する。これを超えたら分析を終える
+    private static final int MAX_POLL_RETRIES = 5;
+    // コメントの言語の判定と、分析する言語（環境変数 TARGET_LANGUAGES=ja,en のように指定。省略時は全部）
+    private final LanguageDetector languageDetector = LanguageDetector.fromEnvironment();
+    private final Set<String> targetLanguages = targetLanguagesFromEnvironment();
+    // 言語ごとのコメント数と、対象外の言語で分析しなかったコメント数（最終サマリー用）
+    private final Map<String, Integer> languageCounts = new TreeMap<>();
+    private long languageSkipped = 0;
+    // Azureのスコアを学習データとして書き足すファイル（TRAINING_DATA=off なら書かない。アプリ全体で1つ）
+    private final SentimentTrainingLog trainingLog = SharedClients.trainingLog();
+    // この配信で学習データに書いた件数（最終サマリー用）
+    private long trainingWritten = 0;
+    // 学習済みのローカルモデル（なければnull）。Azureに送ったコメントでは、Azureのスコアと並べて一致率も測る
+    private final LocalSentimentModel localModel = LocalSentimentModel.fromEnvironment();
+    // Azureに送る前に辞書とローカルモデルで採点し、自信のあるものはその場で確定させる（CASCADE_THRESHOLD=off なら全部Azure）
+    private final CascadeScorer cascade = CascadeScorer.fromEnvironment(localModel);
+    // この配信でのAPIの使用量（日ごとの合計と上限はアプリ全体で共有）
+    private final CostLedger.Session costs = SharedClients.costLedger().openSession();
+    // Azureの予算が残り少ない時に、普通のコメントを何件に1件だけAzureに送るか（手元のモデルがない場合）
+    private static final int BUDGET_SAMPLE_INTERVAL = 4;
+    // 予算のために手元で採点した件数と、採点しなかった件数
+    private long budgetLocal = 0;
+    private long budgetSkipped = 0;
+    private boolean trainingLogFailed = false;
+    private long localCompared = 0;
+    private long localAgreed = 0;
+    private double localAbsoluteErrorSum = 0.0;
+    // 感情分析の前に連投・コピペ洪水をはじくフィルタ（環境変数 SPAM_FILTER=off で無効）
+    private final SpamFilter spamFilter = "off".equalsIgnoreCase(System.getenv("SPAM_FILTER")) ? null : new SpamFilter();
+    // コメントが多すぎる配信向けのサンプリング（環境変数 SAMPLING_MODE、未指定ならnullで全件分析）
+    private final CommentSampler sampler = CommentSampler.fromEnvironment(store);
+    // サンプリングの締め切りをバケット終了からどれだけ待つか（ポーリングの遅れで届くコメントを待つ）
+    private static final int SAMPLE_RELEASE_DELAY_SECONDS = 5;
+    // 感情分析待ちのコメント（スパチャ・メンバー・通常の優先度つき）。本文を持っているのはここだけで、分析が終われば捨てる
+    private final ScoringQueue pending = new ScoringQueue();
+    // 通常・メンバーのコメントの採点の締め切り（バケットの終わりからの秒数）。BUCKET_MAX_WAIT_SECONDSで
+    // バケットが待ちきれずに閉じられる前に、締め切りを過ぎた分を手元のモデルで採点するか諦めてバケットを閉じられるようにする
+    private static final int SCORING_DEADLINE_SECONDS = 45;
+    // YouTubeのクォータが残り少ない時のポーリング間隔（APIが指定した間隔の何倍か、と最低の間隔）
+    private static final int SAVING_POLL_MULTIPLIER = 4;
+    private static final long SAVING_MIN_POLL_MILLIS = 20_000;
+    // 環境変数 SCORING_DEADLINE=off なら締め切りを設けず、どれだけ遅れても全部Azureで採点する
+    private final boolean scoringDeadlines = !"off".equalsIgnoreCase(System.getenv("SCORING_DEADLINE"));
+    // 締め切りを過ぎて、手元で代わりに採点した件数と諦めた件数
+    private long lateDowngraded = 0;
+    private long lateShed = 0;
+    // 表示用に直近の分析済みコメントだけを残しておく（新しい順）
+    private final ArrayDeque<CommentData> recentAnalyzed = new ArrayDeque<>();
+    // 分析済みスコアの合計と件数。全体平均を出すたびに全コメントを見直さなくて済む
+    private double analyzedScoreSum = 0.0;
+    private long analyzedTotal = 0;
+    // 削除・BANで取り消したコメント数
+    private long retractedTotal = 0;
+
+    // 削除イベントの対象を探すための メッセージID → ストアの行番号 の対応表
+    // 古いものから捨てる（LinkedHashMapのremoveEldestEntry）ので、長時間配信でもメモリは一定
+    private static final int MESSAGE_ID_HISTORY = 50_000;
+    private final Map<String, Integer> rowByMessageId = new LinkedHashMap<String, Integer>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > MESSAGE_ID_HISTORY;
+        }
+    };
+
+    // 10秒バケットを閉じるまでの猶予。スコアが揃っていればこの時間が過ぎた時点で閉じる
+    private static final int BUCKET_CLOSE_GRACE_SECONDS = 15;
+    // スコアが揃わなくても（API失敗など）この時間が過ぎたら閉じてしまう
+    private static final int BUCKET_MAX_WAIT_SECONDS = 60;
+
+    // 配信開始時刻を基準にした時間軸（バケット番号 = 配信開始からの経過時間 / 10秒）
+    private final StreamClock clock = new StreamClock();
+
+    // リアルタイムのハイライト検出用の10秒ごとの集計。キーはバケット番号で、TreeMapなので時間順に並ぶ
+    // 検出器に渡し終わったバケットは削除するので、ここに残るのは直近の数個だけ
+    private final TreeMap<Long, SentimentBucket> openBuckets = new TreeMap<>();
+    private final HighlightDetector highlightDetector = new HighlightDetector();
+    // 次に検出器へ渡すバケット番号（Long.MIN_VALUEならまだ1件もコメントがない）
+    private long nextBucketToEmit = Long.MIN_VALUE;
+
+    // 取り込んだイベントの記録（*_chat.jsonl）。後からアーカイブ分析で読み直せる
+    // 環境変数 INGESTION_LOG=off なら書かない。アーカイブ分析中も書かない
+    private ChatEventLog eventLog;
+    // 1件ごとのコメント表示をするかどうか（アーカイブ分析では何十万件にもなるので表示しない）
+    private boolean verbose = true;
+    // チャット終了のイベント（chatEndedEvent）を受け取ったらtrue。ポーリングをやめる
+    private boolean chatEnded = false;
+    // 終了処理を済ませたらtrue（チャンネル監視の配信終了とCtrl+Cのどちらから呼ばれても1回だけ行う）
+    private boolean finalized = false;
+    // 外から（SessionManager）止める時の合図。ポーリングの待ち時間の代わりにこれを待つので、すぐに止まれる
+    private final CountDownLatch stopSignal = new CountDownLatch(1);
+    // ポーリングをやめた理由（状態の表示用）。まだ動いていればnull
+    private volatile String endReason;
+
+    // アーカイブ分析で同時にAzureへ送るリクエスト数の既定値（環境変数 ARCHIVE_CONCURRENCY で変更）
+    private static final int DEFAULT_ARCHIVE_CONCURRENCY = 8;
+
+    // 分析中の配信の情報（時系列ストアで配信を横断して検索するのに使う）。分からなければnull
+    private String videoId;
+    private String channelId;
+    private String videoTitle;
+
+    // 出力ファイル名のベース。セッション開始時に決めておき
+    // 配信中に書き足すハイライトファイルと、終了時のCSVで同じ名前を使う
+    private final String sessionBaseName;
 
     public IntegratedYouTubeSentimentAnalyzer(YouTube youtube) {
-        this.httpClient = HttpClient.newHttpClient();
-        this.objectMapper = new ObjectMapper();
-        this.comments = new ArrayList<>();
+        this(youtube, null);
+    }
+
+    //sessionLabelは出力ファイル名の末尾に付ける（同じ分に複数の配信を始めるチャンネル監視で、ファイル名がぶつからないように）
+    public IntegratedYouTubeSentimentAnalyzer(YouTube youtube, String sessionLabel) {
+        // HttpClient・ObjectMapperはアプリ全体で共有する（接続を張り直さずに済む）
+        this.httpClient = SharedClients.azureHttpClient();
+        this.objectMapper = SharedClients.objectMapper();
         this.youtube = youtube;
+        this.sessionBaseName = "youtube_live_sentiment_" +
+                LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmm")) +
+                (sessionLabel != null ? "_" + sessionLabel : "");
 
-        // 環境変数からAzure API設定を取得
+        // 環境変数からAzure API設定を取得（どちらもカンマ区切りで複数指定でき、応答の速いところに振り分ける）
         this.API_KEY = getRequiredEnvironmentVariable("AZURE_API_KEY");
         this.ENDPOINT = getRequiredEnvironmentVariable("AZURE_ENDPOINT");
-        this.API_URL = this.ENDPOINT + "/text/analytics/v3.1/sentiment";
+        this.sentimentClient = AzureEndpointPool.fromEnvironment(this.ENDPOINT, this.API_KEY, httpClient, objectMapper, costs);
 
         // 設定確認
         System.out.println("Azure API設定確認:");
-        System.out.println("  エンドポイント: " + this.ENDPOINT);
-        System.out.println("  APIキー: " + maskApiKey(this.API_KEY));
+        for (String endpoint : sentimentClient.endpointUrls()) {
+            System.out.println("  エンドポイント: " + endpoint);
+        }
+        for (String apiKey : this.API_KEY.split(",")) {
+            if (!apiKey.isBlank()) System.out.println("  APIキー: " + maskApiKey(apiKey.trim()));
+        }
+        if (sentimentClient.hedging()) {
+            System.out.println("  遅い応答はp95を過ぎたら別のエンドポイントにも送ります（AZURE_HEDGE=off で無効）");
+        }
+        // 最初の分析で接続の確立を待たないように、先に接続だけ張っておく
+        sentimentClient.warmUp();
     }
 
         private String getRequiredEnvironmentVariable(String name) {
@@ -81,19 +218,29 @@ public class IntegratedYouTubeSentimentAnalyzer {
     }
 
     
-     //コメントデータを表すクラス
+     //分析待ちのコメントを表すクラス
+     //全コメントの記録はCommentStoreが持ち、このオブジェクトは本文が必要な分析待ちの間と
+     //直近の結果を表示する間だけ使う（rowがCommentStore上の行番号）
      
     public static class CommentData {
         public String text;
         public String author;
-        public LocalDateTime timestamp;
+        public long publishedAtMillis; // YouTubeサーバーが付けた投稿時刻（エポックミリ秒）
         public double sentimentScore;
-        public String messageType; // "text", "superchat", "other"
+        public MessageType messageType;
+        public int row = -1;
+        public int authorId = -1; // AuthorDictionaryの連番
+        public boolean retracted;  // 分析待ちの間に削除・BANされた
+        public boolean member;     // 投稿者がメンバー（分析待ちの列で優先する）
+        public long deadlineMillis = Long.MAX_VALUE; // これを過ぎたらAzureを待たない（ScoringQueue.takeExpired）
+        public long queuedAtMillis;  // 分析待ちに入った時刻
+        public double amount;     // スパチャ金額（円換算）。通常コメントは0
+        public String language = AzureSentimentClient.DEFAULT_LANGUAGE; // Azureに伝える言語
         
-        public CommentData(String text, String author, LocalDateTime timestamp, String messageType) {
+        public CommentData(String text, String author, long publishedAtMillis, MessageType messageType) {
             this.text = text;
             this.author = author;
-            this.timestamp = timestamp;
+            this.publishedAtMillis = publishedAtMillis;
             this.messageType = messageType;
             this.sentimentScore = 0.0; // 未分析
         }
@@ -101,23 +248,42 @@ public class IntegratedYouTubeSentimentAnalyzer {
         @Override
         public String toString() {
             return String.format("CommentData{author='%s', text='%s', type='%s', score=%.2f}", 
-                               author, text, messageType, sentimentScore);
+                               author, text, messageType.label, sentimentScore);
         }
     }
     
     
+    //1件ごとのコメント表示のオン・オフ（複数の配信を同時に分析する時は表示が混ざるので切る）
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+
      //YouTubeライブチャットからコメントを取得し、リアルタイムで感情分析を実行
      
     public void startLiveChatAnalysis(String videoId) {
         try {
-            String liveChatId = getLiveChatId(videoId);
+            // トークンの確認はYouTubeAuth.getService()の時点で裏で始まっていて、動画の問い合わせと並行に進む。
+            // 問い合わせが失敗した時も、認証が原因ならそちらのエラーを先に出す
+            String liveChatId;
+            try {
+                liveChatId = getLiveChatId(videoId);
+            } catch (IOException e) {
+                YouTubeAuth.awaitCredentialCheck();
+                throw e;
+            }
+            YouTubeAuth.awaitCredentialCheck();
             if (liveChatId == null) {
                 System.out.println("ライブチャットが見つかりませんでした。");
+                endReason = "ライブチャットが見つかりません";
                 return;
             }
             
             System.out.println("ライブチャット分析を開始します...");
+            openEventLog(videoId);
+            printStartupTime();
             String nextPageToken = null;
+            int pollFailures = 0;
             
             while (true) {
                 // YouTubeからコメントを取得
@@ -128,81 +294,551 @@ public class IntegratedYouTubeSentimentAnalyzer {
                     request.setPageToken(nextPageToken);
                 }
                 
-                LiveChatMessageListResponse response = request.execute();
+                // YouTubeのクォータを使い切ったら、ポーリングをやめてそこまでの分でレポートを出す
+                if (costs.youtubeLevel() == CostLedger.EXHAUSTED) {
+                    System.out.println("YouTube APIの使用量が上限に達したため、コメントの取得を終了します。");
+                    endReason = "YouTube APIの使用量が上限に到達";
+                    break;
+                }
+                LiveChatMessageListResponse response;
+                try {
+                    costs.chargeYouTube(CostLedger.LIVE_CHAT_LIST_UNITS); // 失敗したリクエストもクォータは消費する
+                    response = request.execute();
+                    pollFailures = 0;
+                } catch (IOException e) {
+                    if (!isTransient(e) || ++pollFailures > MAX_POLL_RETRIES) throw e;
+                    System.err.println("YouTubeライブチャット取得エラー（" + pollFailures + "回目、再試行します）: " + e.getMessage());
+                    // 2回続けて失敗したら、ページトークンが原因かもしれないので捨てて最新のページから取り直す。
+                    // 取り込み済みのメッセージがもう一度届くが、メッセージIDで除くので二重には数えない
+                    if (pollFailures >= 2) nextPageToken = null;
+                    if (stopSignal.await(1000L * pollFailures, TimeUnit.MILLISECONDS)) break;
+                    continue;
+                }
                 List<LiveChatMessage> messages = response.getItems();
                 
                 // 取得したコメントを感情分析システムに追加
                 for (LiveChatMessage message : messages) {
                     addCommentFromYouTube(message);
                 }
+                flushEventLog();
+                flushTrainingLog();
+                SharedClients.costLedger().flush();
+                // サンプリング中なら、締め切ったバケットの標本を分析待ちに入れる
+                releaseSamples(clock.bucketIndex(System.currentTimeMillis() - SAMPLE_RELEASE_DELAY_SECONDS * 1000L) - 1);
                 
                 // バッチサイズに達したら感情分析を実行
-                if (unanalyzedCount >= ANALYSIS_BATCH_SIZE) {
-                    analyzePendingSentiments();
+                // 1回のポーリングで多く届いた場合もたまらないように、バッチサイズを下回るまで続ける
+                // スパチャ・メンバーのコメントはバッチサイズを待たずにすぐ送る。締め切りを過ぎた分は送る前に外す
+                shedLateComments(System.currentTimeMillis());
+                if (pending.size() >= ANALYSIS_BATCH_SIZE || pending.priorityCount() > 0) {
+                    while ((pending.size() >= ANALYSIS_BATCH_SIZE || pending.priorityCount() > 0)
+                            && analyzePendingSentiments()) {
+                        // 分析が成功している間は続ける
+                        shedLateComments(System.currentTimeMillis());
+                    }
                     printRecentAnalysis();
                 }
+
+                // スコアが揃った10秒バケットをハイライト検出器に流す
+                emitClosedBuckets(System.currentTimeMillis(), false);
+
+                // 配信が終わってチャットが閉じたら（offlineAtが付くか、終了イベントが届いたら）ポーリングをやめる
+                if (response.getOfflineAt() != null || chatEnded) {
+                    System.out.println("ライブチャットが終了しました。");
+                    endReason = "チャット終了";
+                    break;
+                }
                 
                 nextPageToken = response.getNextPageToken();
                 long interval = response.getPollingIntervalMillis();
-                Thread.sleep(interval);
+                // クォータが残り少なければ間隔を延ばす（コメントは次の取得でまとめて届くので、取りこぼしはしない）
+                if (costs.youtubeLevel() == CostLedger.SAVING) {
+                    interval = Math.max(interval * SAVING_POLL_MULTIPLIER, SAVING_MIN_POLL_MILLIS);
+                }
+                if (stopSignal.await(interval, TimeUnit.MILLISECONDS)) break;
             }
+            if (stopSignal.getCount() == 0) endReason = "停止の要求";
             
         } catch (IOException e) {
             System.err.println("YouTubeライブチャット取得エラー: " + e.getMessage());
+            endReason = "取得エラー: " + e.getMessage();
         } catch (InterruptedException e) {
             System.out.println("分析が中断されました。");
+            endReason = "中断";
             // 最終的な分析とCSV出力
             // シャットダウンフックで最終処理を行う
             Thread.currentThread().interrupt(); // インタラプトフラグを復元
 
         } catch (Exception e) {
             System.err.println("予期しないエラー: " + e.getMessage());
+            endReason = "予期しないエラー: " + e.getMessage();
             e.printStackTrace();
         }
     }
+
+
+    //このセッションだけのAPIの使用量の上限（0なら上限なし）。上限に近づいた時の節約の仕方はCostLedgerと同じ
+    public void limitSession(long azureRecords, long youtubeUnits) {
+        costs.setLimits(azureRecords, youtubeUnits);
+    }
+
+    //ポーリングをやめるよう合図する（startLiveChatAnalysisは次の待ち時間ですぐ戻る）
+    public void requestStop() {
+        stopSignal.countDown();
+    }
+
+    public String endReason() {
+        return endReason;
+    }
+
+    //出力ファイル名の共通部分（CSV・ハイライト・投稿者・チャット記録などはこれで始まる）
+    public String sessionBaseName() {
+        return sessionBaseName;
+    }
+
+    public String videoTitle() {
+        return videoTitle;
+    }
+
+    //状態の表示用の数字。分析中のスレッドが書き換えている途中の値を読むこともあるが、表示用なので多少ずれてよい
+    public Map<String, Object> statusSnapshot() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("videoId", videoId);
+        status.put("title", videoTitle);
+        status.put("channelId", channelId);
+        status.put("comments", store.size());
+        status.put("analyzed", analyzedTotal);
+        status.put("averageScore", analyzedTotal > 0 ? analyzedScoreSum / analyzedTotal : null);
+        status.put("pending", pending.size());
+        status.put("retracted", retractedTotal);
+        status.put("usage", costs.summary());
+        status.put("endReason", endReason);
+        return status;
+    }
     
+    //再試行すれば直りそうなエラーか。通信エラー・429（回数制限）・5xxは再試行し、
+    //配信終了（403 liveChatEnded）やチャットが見つからない（404）などはすぐに終える
+    private static boolean isTransient(IOException e) {
+        if (!(e instanceof GoogleJsonResponseException)) return true;
+        int status = ((GoogleJsonResponseException) e).getStatusCode();
+        return status == 429 || status >= 500;
+    }
+
+    //アーカイブ分析: 配信後のチャット記録ファイル（ChatArchiveReaderが読める形式）から、ライブ分析と同じCSVを作る
+    //ファイルは1行ずつ読みながら取り込み、10件たまるごとに結果を待たずにAzureへ送る（同時に最大concurrency件）。
+    //1回数百ミリ秒かかるAzureの応答待ちを重ねられるので、10時間分のチャットでも数分で終わる。
+    //スコアの記録は読み込みと同じこのスレッドで行うので、バケットや合計を複数スレッドから触ることはない
+    public void analyzeArchive(Path path) {
+        verbose = false;
+        int concurrency = archiveConcurrency();
+        Semaphore inFlight = new Semaphore(concurrency);
+        ConcurrentLinkedQueue<ScoredBatch> completed = new ConcurrentLinkedQueue<>();
+        long startNanos = System.nanoTime();
+        long eventCount = 0;
+        System.out.println("アーカイブ分析を開始します: " + path + "（同時リクエスト数 " + concurrency + "）");
+
+        try (ChatArchiveReader reader = new ChatArchiveReader(path, objectMapper)) {
+            ChatEvent event;
+            while ((event = reader.next()) != null) {
+                // 配信開始時刻がファイルから分かれば、最初のコメントの時刻ではなくそれを基準にする
+                if (!clock.hasStreamStart() && reader.streamStartMillis() != Long.MIN_VALUE) {
+                    clock.setStreamStart(reader.streamStartMillis());
+                    System.out.println("配信開始時刻: " + StreamClock.formatWallClock(clock.streamStartMillis()));
+                }
+                if (eventCount == 0) {
+                    // 記録ファイルのヘッダー（またはリプレイのファイル名）から配信の情報を引き継ぐ
+                    videoId = reader.videoId();
+                    channelId = reader.channelId();
+                    videoTitle = reader.title();
+                }
+                ingest(event);
+                eventCount++;
+                releaseSamples(clock.bucketIndex(event.publishedAtMillis - SAMPLE_RELEASE_DELAY_SECONDS * 1000L) - 1);
+                while (pending.size() >= AZURE_MAX_DOCUMENTS) {
+                    submitBatch(inFlight, completed);
+                }
+                drainScoredBatches(inFlight, completed);
+                if (eventCount % 50_000 == 0) {
+                    System.out.printf("  %,d件読み込み / 分析済み %,d件%n", eventCount, analyzedTotal);
+                }
+            }
+            if (reader.skippedLines() > 0) {
+                System.err.println("読めなかった行: " + reader.skippedLines() + "行");
+            }
+
+            // 残りを送り、送信中のリクエストがすべて返ってくるのを待つ（許可を全部取れたら全部返ってきた）
+            releaseSamples(Long.MAX_VALUE);
+            while (!pending.isEmpty()) {
+                submitBatch(inFlight, completed);
+            }
+            while (true) {
+                inFlight.acquire(concurrency);
+                inFlight.release(concurrency);
+                if (completed.isEmpty()) break;
+                drainScoredBatches(inFlight, completed);
+            }
+        } catch (IOException e) {
+            System.err.println("アーカイブ読み込みエラー: " + e.getMessage());
+        } catch (InterruptedException e) {
+            System.out.println("アーカイブ分析が中断されました。");
+            Thread.currentThread().interrupt();
+        }
+
+        System.out.printf("アーカイブ読み込み完了: %,d件 / %.1f秒%n", eventCount, (System.nanoTime() - startNanos) / 1e9);
+        // 失敗して残った分の再挑戦・ハイライト検出・集計・CSV出力はライブ分析の終了処理と同じ
+        finalizePendingAnalysis();
+    }
+
+
+    //Azureから返ってきた1リクエスト分の結果（scoresかerrorのどちらか）
+    private static class ScoredBatch {
+        final List<CommentData> comments;
+        final double[] scores;
+        final Throwable error;
+        final int attempt;
+
+        ScoredBatch(List<CommentData> comments, double[] scores, Throwable error, int attempt) {
+            this.comments = comments;
+            this.scores = scores;
+            this.error = error;
+            this.attempt = attempt;
+        }
+    }
+
+    private static int archiveConcurrency() {
+        String value = System.getenv("ARCHIVE_CONCURRENCY");
+        if (value == null || value.isBlank()) return DEFAULT_ARCHIVE_CONCURRENCY;
+        try {
+            return Math.max(1, Integer.parseInt(value.trim()));
+        } catch (NumberFormatException e) {
+            System.err.println("ARCHIVE_CONCURRENCY が数値ではありません: " + value);
+            return DEFAULT_ARCHIVE_CONCURRENCY;
+        }
+    }
+
+    //分析待ちの先頭から最大10件を取り出して、結果を待たずに送る
+    private void submitBatch(Semaphore inFlight, ConcurrentLinkedQueue<ScoredBatch> completed) throws InterruptedException {
+        List<CommentData> batch = pending.takeBatch(AZURE_MAX_DOCUMENTS);
+        if (!batch.isEmpty()) {
+            sendBatchAsync(batch, 1, inFlight, completed);
+        }
+    }
+
+    //同時に送れる数（セマフォの許可）を1つ取ってから送る。許可がなければ、どれかが返ってくるまでここで待つ
+    //結果はHttpClientのスレッドで届くので、キューに入れるだけにして記録はdrainScoredBatches()で行う
+    //送る前に例外が出た時（エンドポイントのURLが不正・リクエストの本文を作れないなど）も、許可を返して失敗として入れる
+    //（返さないと、最後に全部の許可がそろうのを待つところで止まってしまう）
+    private void sendBatchAsync(List<CommentData> batch, int attempt, Semaphore inFlight,
+                                ConcurrentLinkedQueue<ScoredBatch> completed) throws InterruptedException {
+        inFlight.acquire();
+        CompletableFuture<double[]> future;
+        try {
+            future = sentimentClient.scoreAsync(textsOf(batch), languagesOf(batch));
+        } catch (RuntimeException e) {
+            completed.add(new ScoredBatch(batch, null, e, attempt));
+            inFlight.release();
+            return;
+        }
+        future.whenComplete((scores, error) -> {
+            completed.add(new ScoredBatch(batch, scores, error, attempt));
+            inFlight.release();
+        });
+    }
+
+    //返ってきた結果を記録する。失敗したリクエストは少し待ってから送り直し、決まった回数失敗したら諦める
+    private void drainScoredBatches(Semaphore inFlight, ConcurrentLinkedQueue<ScoredBatch> completed) throws InterruptedException {
+        ScoredBatch result;
+        while ((result = completed.poll()) != null) {
+            if (result.error == null) {
+                recordScores(result.comments, result.scores);
+            } else if (result.attempt < MAX_FINAL_FAILURES) {
+                System.err.println("感情分析エラー（再送します）: " + result.error.getMessage());
+                Thread.sleep(1000L * result.attempt); // API制限に当たっている場合に備えて、失敗が続くほど長く待つ
+                sendBatchAsync(result.comments, result.attempt + 1, inFlight, completed);
+            } else {
+                System.err.println("感情分析エラー（" + result.comments.size() + "件を諦めます）: " + result.error.getMessage());
+            }
+        }
+    }
+
+
     //YouTubeメッセージからコメントデータを作成し、リストに追加
+    //種類ごとの取り出しはChatEventに任せ、ここでは種類付きのイベントとして取り込む
 
     private void addCommentFromYouTube(LiveChatMessage message) {
-        String author = message.getAuthorDetails().getDisplayName();
-        String text = "";
-        String messageType = "";
-        
-        switch (message.getSnippet().getType()) {
-            case "textMessageEvent":
-                text = message.getSnippet().getTextMessageDetails().getMessageText();
-                messageType = "text";
-                break;
-            case "superChatEvent":
-                LiveChatSuperChatDetails sc = message.getSnippet().getSuperChatDetails();
-                String comment = sc.getUserComment();
-                text = comment != null ? comment : "[スーパーチャット]";
-                messageType = "superchat";
-                break;
-            default:
-                text = "[" + message.getSnippet().getType() + "]";
-                messageType = "other";
+        ingest(ChatEvent.fromLiveChatMessage(message));
+    }
+
+
+    //種類付きのチャットイベントを1件取り込む
+    //  ・通常コメント/スパチャ/メンバー継続メッセージ → 本文があれば感情分析に回す
+    //  ・スーパーステッカー/メンバー加入/ギフトなど → 感情分析せず、10秒バケットの件数だけ数える
+    //  ・メッセージ削除/ユーザーBAN → 対象のコメントを集計から取り消す
+    //以前は本文が「[」で始まるものをシステムメッセージとして捨てていたが
+    //種類で判定するようにしたので、「[」で始まる普通のコメントも分析される
+    public void ingest(ChatEvent event) {
+        // 再取得などで2回目に届いたメッセージは、記録にも集計にも入れない
+        if (event.id != null && !seenMessageIds.add(event.id, event.publishedAtMillis)) {
+            return;
         }
-        
-        // 感情分析対象のコメントのみ追加（テキストがある場合）
-        //!text.startsWith("[" ここはシステムメッセージをはじくための条件
-        if (!text.isEmpty() && !text.startsWith("[")) {
-            CommentData commentData = new CommentData(text, author, LocalDateTime.now(), messageType);
-            comments.add(commentData);
-            unanalyzedCount++;
-            
-            System.out.printf("[%s] %s: %s%n", messageType.toUpperCase(), author, text);
+        clock.setStreamStartIfUnknown(event.publishedAtMillis);
+        logEvent(event);
+
+        if (event.type == MessageType.CHAT_ENDED) {
+            chatEnded = true;
+        } else if (event.type == MessageType.MESSAGE_DELETED) {
+            retractMessage(event.targetMessageId);
+        } else if (event.type == MessageType.USER_BANNED) {
+            retractAuthor(event.targetChannelId);
+        }
+
+        // 投稿者は表示名ではなくチャンネルIDで識別し、連番にしてストアに保存する
+        int authorId = authors.intern(event.authorChannelId, event.authorName);
+        double amount = currencyRates.toBase(event.amountMicros, event.currency);
+        boolean scorable = event.type.chatMessage && event.hasText();
+
+        // サーバーの投稿時刻（event.publishedAtMillis）でストアとバケットに入れる
+        int row = store.append(event.publishedAtMillis, event.type, authorId, (float) amount);
+        if (event.id != null) {
+            rowByMessageId.put(event.id, row);
+        }
+
+        SentimentBucket bucket = bucketFor(event.publishedAtMillis);
+        if (bucket != null) {
+            bucket.addEvent(event.type);
+        }
+        if (!event.type.chatMessage) {
+            // 感情分析しないイベントは件数を数えるだけで終わり
+            if (verbose) System.out.printf("[%s] %s%n", event.type.label.toUpperCase(), event.authorName);
+            return;
+        }
+
+        authorIndex.onMessage(authorId, event.publishedAtMillis, event.type);
+        if (bucket != null) {
+            bucket.addComment(event.type.paid, amount);
+        }
+
+        // 連投・コピペはAzureに送る前に除外する（有料メッセージはお金を払っているので除外しない）
+        if (scorable && spamFilter != null && !event.type.paid) {
+            SpamFilter.Verdict verdict = spamFilter.check(authorId, event.publishedAtMillis, event.text);
+            if (verdict != SpamFilter.Verdict.PASS) {
+                store.markFiltered(row);
+                if (bucket != null) bucket.filteredCount++;
+                return;
+            }
+        }
+
+        String text = scorable ? event.text : "";
+        String language = null;
+        if (scorable) {
+            language = languageDetector.detect(text);
+            languageCounts.merge(language, 1, Integer::sum);
+            // 対象外の言語はAzureに送らない（件数には数えたまま、スコアなしになる）
+            if (targetLanguages != null && !targetLanguages.contains(language)) {
+                languageSkipped++;
+                scorable = false;
+            }
+        }
+        if (scorable) {
+            CommentData commentData = new CommentData(text, event.authorName, event.publishedAtMillis, event.type);
+            commentData.language = language;
+            commentData.row = row;
+            commentData.authorId = authorId;
+            commentData.amount = amount;
+            commentData.member = event.member;
+            // サンプリング中は標本として預け、バケットの締め切り時にまとめて分析待ちに入れる
+            if (sampler == null || sampler.offer(clock.bucketIndex(event.publishedAtMillis), commentData)) {
+                enqueue(commentData);
+            }
+        }
+
+        if (!verbose) return;
+        if (event.type.paid) {
+            System.out.printf("[%s ¥%,.0f] %s: %s%n", event.type.label.toUpperCase(), amount, event.authorName, text);
+        } else {
+            System.out.printf("[%s] %s: %s%n", event.type.label.toUpperCase(), event.authorName, text);
         }
     }
+
+
+    //イベントの記録ファイルを開き、1行目に配信の情報を書く
+    private void openEventLog(String videoId) {
+        if ("off".equalsIgnoreCase(System.getenv("INGESTION_LOG"))) return;
+        try {
+            eventLog = new ChatEventLog(Paths.get(sessionBaseName + "_chat.jsonl"), objectMapper);
+            eventLog.writeHeader(videoId, channelId, videoTitle,
+                    clock.hasStreamStart() ? clock.streamStartMillis() : Long.MIN_VALUE);
+            System.out.println("チャットの記録: " + eventLog.path());
+        } catch (IOException e) {
+            System.err.println("チャット記録ファイルを開けませんでした: " + e.getMessage());
+            eventLog = null;
+        }
+    }
+
+    //記録に失敗したら以降は記録しない（分析そのものは続ける）
+    private void logEvent(ChatEvent event) {
+        if (eventLog == null) return;
+        try {
+            eventLog.append(event);
+        } catch (IOException e) {
+            System.err.println("チャット記録エラー（以降は記録しません）: " + e.getMessage());
+            closeEventLog();
+        }
+    }
+
+    private void flushEventLog() {
+        if (eventLog == null) return;
+        try {
+            eventLog.flush();
+        } catch (IOException e) {
+            System.err.println("チャット記録エラー（以降は記録しません）: " + e.getMessage());
+            closeEventLog();
+        }
+    }
+
+    private void closeEventLog() {
+        if (eventLog == null) return;
+        try {
+            eventLog.close();
+        } catch (IOException e) {
+            System.err.println("チャット記録ファイルを閉じられませんでした: " + e.getMessage());
+        }
+        eventLog = null;
+    }
+
+
+    //分析待ちに入れる。バケットには「スコア待ち」として数える
+    //手元（カスケード）で確定できたコメントはAzureに送らず、その場でスコアを記録する
+    //Azureの予算が残り少なければ（CostLedger）、普通のコメントから順に手元の採点か間引きに切り替える
+    private void enqueue(CommentData comment) {
+        SentimentBucket bucket = openBuckets.get(clock.bucketIndex(comment.publishedAtMillis));
+        int budget = costs.azureLevel();
+        if (budget == CostLedger.EXHAUSTED
+                || (budget == CostLedger.SAVING && ScoringQueue.priorityOf(comment) == ScoringQueue.NORMAL)) {
+            double fallback = cascade != null ? cascade.fallbackScore(comment.text) : Double.NaN;
+            if (!Double.isNaN(fallback)) {
+                if (bucket != null) bucket.markQueued();
+                recordScore(comment, fallback);
+                budgetLocal++;
+                return;
+            }
+            if (budget == CostLedger.EXHAUSTED || comment.row % BUDGET_SAMPLE_INTERVAL != 0) {
+                budgetSkipped++; // スコアなしのまま（分析待ちにも数えないので、バケットはこのコメントを待たない）
+                return;
+            }
+        }
+        if (bucket != null) bucket.markQueued();
+        double localScore = cascade != null ? cascade.tryScore(comment.text) : Double.NaN;
+        if (!Double.isNaN(localScore)) {
+            recordScore(comment, localScore);
+            return;
+        }
+        if (scoringDeadlines) {
+            long bucketEndMillis = clock.bucketStartMillis(clock.bucketIndex(comment.publishedAtMillis) + 1);
+            comment.deadlineMillis = bucketEndMillis + SCORING_DEADLINE_SECONDS * 1000L;
+        }
+        pending.add(comment);
+    }
+
+
+    //ライブ分析で、締め切りを過ぎた通常・メンバーのコメントをAzureの列から外す
+    //カスケードの辞書・モデルで採点できればそのスコアにし（自信の度合いは問わない）、できなければ採点を諦める。
+    //どちらの場合もバケットはこのコメントを待たなくなるので、コメントが殺到してもハイライト検出が遅れ続けない
+    private void shedLateComments(long nowMillis) {
+        if (!scoringDeadlines) return;
+        for (CommentData comment : pending.takeExpired(nowMillis)) {
+            double fallback = cascade != null ? cascade.fallbackScore(comment.text) : Double.NaN;
+            if (!Double.isNaN(fallback)) {
+                recordScore(comment, fallback);
+                lateDowngraded++;
+            } else {
+                SentimentBucket bucket = openBuckets.get(clock.bucketIndex(comment.publishedAtMillis));
+                if (bucket != null) bucket.unqueue();
+                lateShed++;
+            }
+        }
+    }
+
+
+    //throughBucketIndexまでのバケットの標本を締め切って分析待ちに入れる（サンプリングしない設定なら何もしない）
+    private void releaseSamples(long throughBucketIndex) {
+        if (sampler == null) return;
+        for (CommentData comment : sampler.release(throughBucketIndex)) {
+            enqueue(comment);
+        }
+    }
+
+
+    //削除されたメッセージを集計から取り消す
+    //削除イベントは元のメッセージのすぐ後に来ることがほとんどなので、直近のメッセージIDだけ覚えておけば足りる
+    private void retractMessage(String messageId) {
+        Integer row = messageId != null ? rowByMessageId.get(messageId) : null;
+        if (row != null) {
+            retractRow(row);
+        }
+    }
+
+
+    //BANされた投稿者のコメントをすべて集計から取り消す
+    //投稿者番号の列（intの配列）を先頭から見るだけのループ。BANはまれなので全行を見ても問題ない
+    private void retractAuthor(String channelId) {
+        int authorId = channelId != null ? authors.find(channelId) : -1;
+        if (authorId < 0) return;
+        int size = store.size();
+        int retracted = 0;
+        for (int row = 0; row < size; row++) {
+            if (store.author(row) == authorId && retractRow(row)) retracted++;
+        }
+        System.out.println("BANされた投稿者のコメントを取り消しました: " + authors.displayName(authorId) + " (" + retracted + "件)");
+    }
+
+
+    //1件のコメントを取り消し、分析待ち・10秒バケット・投稿者集計・全体の合計から除く
+    //取り消した場合はtrue（すでに取り消し済みやイベント行ならfalse）
+    private boolean retractRow(int row) {
+        MessageType type = store.type(row);
+        if (!type.chatMessage || store.isRetracted(row)) return false;
+        store.markRetracted(row);
+
+        float score = store.score(row);
+        boolean scored = !Float.isNaN(score);
+        // 分析待ちなら印を付けておき、Azureに送らないようにする
+        boolean wasPending = pending.markRetracted(row);
+        if (sampler != null) sampler.retract(row);
+        if (scored) {
+            analyzedScoreSum -= score;
+            analyzedTotal--;
+        }
+        authorIndex.onRetract(store.author(row), type, scored ? score : Double.NaN);
+
+        SentimentBucket bucket = openBuckets.get(clock.bucketIndex(store.publishedAt(row)));
+        if (bucket != null) {
+            bucket.retract(type.paid);
+            if (wasPending) bucket.unqueue();
+            if (scored) bucket.removeScore(score, SentimentBucket.weightFor(store.amount(row)));
+        }
+        retractedTotal++;
+        return true;
+    }
     
     
+    //JVMの起動から最初のポーリングまでの時間を表示する（起動の速さの確認用）
+    private static void printStartupTime() {
+        ProcessHandle.current().info().startInstant().ifPresent(start ->
+                System.out.println("起動から最初のポーリングまで: "
+                        + java.time.Duration.between(start, java.time.Instant.now()).toMillis() + " ms"));
+    }
+
+
     //ライブチャットIDを取得
+    //同じリクエストでsnippetも取り、チャンネルIDとタイトルを覚えておく（partを増やしてもクォータの消費は同じ1）
      
     private String getLiveChatId(String videoId) throws IOException {
         YouTube.Videos.List videoRequest = youtube.videos()
-            .list(Arrays.asList("liveStreamingDetails"))
+            .list(Arrays.asList("snippet", "liveStreamingDetails"))
             .setId(Arrays.asList(videoId));
         
+        costs.chargeYouTube(CostLedger.LIST_UNITS);
         VideoListResponse videoResponse = videoRequest.execute();
         List<Video> videos = videoResponse.getItems();
         
@@ -211,8 +847,20 @@ public class IntegratedYouTubeSentimentAnalyzer {
             return null;
         }
         
+        this.videoId = videoId;
+        if (videos.get(0).getSnippet() != null) {
+            this.channelId = videos.get(0).getSnippet().getChannelId();
+            this.videoTitle = videos.get(0).getSnippet().getTitle();
+            System.out.println("配信: " + videoTitle);
+        }
+
         VideoLiveStreamingDetails details = videos.get(0).getLiveStreamingDetails();
         if (details != null) {
+            // 配信の実際の開始時刻を時間軸の基準にする（CSVの配信経過時間がVODの再生位置と一致する）
+            if (details.getActualStartTime() != null) {
+                clock.setStreamStart(StreamClock.toEpochMillis(details.getActualStartTime()));
+                System.out.println("配信開始時刻: " + StreamClock.formatWallClock(clock.streamStartMillis()));
+            }
             return details.getActiveLiveChatId();
         }
         
@@ -220,92 +868,143 @@ public class IntegratedYouTubeSentimentAnalyzer {
     }
     
 
-     //未分析のコメントに対して感情分析を実行
+     //分析待ちのコメントを優先度の高い順に最大10件（Azureの上限）取り出して感情分析を実行
+     //成功したらtrue。失敗したコメントは分析待ちの先頭に戻すので、次の呼び出しで再挑戦される
      
-    private void analyzePendingSentiments() {
-        List<CommentData> unanalyzedComments = comments.stream()
-            .filter(comment -> comment.sentimentScore == 0.0)
-            .collect(Collectors.toList());
-        
+    private boolean analyzePendingSentiments() {
+        if (pending.isEmpty()) {
+            return true;
+        }
+
+        // 取り消されたコメントはここで捨てられる
+        List<CommentData> unanalyzedComments = pending.takeBatch(AZURE_MAX_DOCUMENTS);
         if (unanalyzedComments.isEmpty()) {
-            return;
+            return true;
         }
         
         System.out.println(unanalyzedComments.size() + "件のコメントを感情分析中...");
         
         try {
-            String requestJson = createSentimentAnalysisRequest(unanalyzedComments);
-            
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(API_URL))
-                .header("Content-Type", "application/json")
-                .header("Ocp-Apim-Subscription-Key", API_KEY)
-                .POST(HttpRequest.BodyPublishers.ofString(requestJson))
-                //HttpRequest.BodyPublishers.ofString(...)は「送る郵便物の中身は、このJSON文字列」と指定している。
-                .build();
-                //一連の設定が終わった後、最後に.build()を呼び出し、設定した情報に基づいて最終的なHttpRequestオブジェクトを生成。
-                //このオブジェクトは、次のステップで実際にサーバーに送信。
-            
-                //sendメソッドの呼び出しと二つの引数。
-                //HttpResponse.BodyHandlers.ofString():
-                //これは、サーバーから返ってきたレスポンスのボディ（本体）をどのように扱いたいかを
-                //httpClientに伝えるための指示。BodyHandlersは、レスポンスボディを特定の形式で処理するためのヘルパークラス。
-                //.ofString()というメソッドは、「サーバーからの応答ボディを文字列として読み取ってください」という命令。
-                //これにより受け取ったデータがそのままString型の変数に格納できるようになる。
-
-                //つまりこの1文で
-                //リクエスト送信: requestオブジェクトに従って、ネットワーク経由でAzureの感情分析APIサーバーにデータを送信。
-                //応答待機: サーバーからの応答が返ってくるまで処理を一時停止。
-                //応答受信と処理: サーバーから応答が届くと、ofString()の指示に従ってレスポンスボディを文字列として読み込みます。
-                //結果の返却: 最終的に、読み込んだボディを<String>型のHttpResponseオブジェクトに格納し、
-                //そのオブジェクトを返す。この戻り値がresponse変数に代入され、次の処理で使えるようになる。
-                //これらのことが行われている。
-            HttpResponse<String> response = httpClient.send(request, 
-                                                          HttpResponse.BodyHandlers.ofString());
-            
-            if (response.statusCode() == 200) {
-                parseSentimentResponse(response.body(), unanalyzedComments);
-                unanalyzedCount = 0; // リセット
-                System.out.println("感情分析完了");
-            } else {
-                System.err.println("API呼び出しエラー: " + response.statusCode());
-                System.err.println("レスポンス: " + response.body());
-            }
-            
+            // HTTPリクエストの組み立てと送信・レスポンスの解析はAzureSentimentClientにまとめてある
+            double[] scores = sentimentClient.score(textsOf(unanalyzedComments), languagesOf(unanalyzedComments));
+            // Azure側でエラーになった文書はスコアなしのまま
+            recordScores(unanalyzedComments, scores);
+            System.out.println("感情分析完了");
+            return true;
+        } catch (IOException e) {
+            System.err.println("API呼び出しエラー: " + e.getMessage());
         } catch (Exception e) {
             System.err.println("感情分析エラー: " + e.getMessage());
         }
+        pending.returnBatch(unanalyzedComments);
+        return false;
+    }
+
+
+    private static List<String> textsOf(List<CommentData> comments) {
+        List<String> texts = new ArrayList<>(comments.size());
+        for (CommentData comment : comments) {
+            texts.add(comment.text);
+        }
+        return texts;
+    }
+
+    private static List<String> languagesOf(List<CommentData> comments) {
+        List<String> languages = new ArrayList<>(comments.size());
+        for (CommentData comment : comments) {
+            languages.add(comment.language);
+        }
+        return languages;
+    }
+
+    //環境変数 TARGET_LANGUAGES（カンマ区切りの言語コード）。省略時・"all"ならnull（全部分析する）
+    private static Set<String> targetLanguagesFromEnvironment() {
+        String value = System.getenv("TARGET_LANGUAGES");
+        if (value == null || value.isBlank() || value.trim().equalsIgnoreCase("all")) return null;
+        Set<String> languages = new HashSet<>();
+        for (String language : value.split(",")) {
+            if (!language.isBlank()) languages.add(language.trim().toLowerCase());
+        }
+        return languages;
+    }
+
+    //Azureから返ってきたスコアを、送った順番どおりにコメントへ記録する（NaNはAzure側でエラーになった文書）
+    //Azureのスコアはローカルモデルの学習データにもなるので、ここで書き足す
+    private void recordScores(List<CommentData> comments, double[] scores) {
+        for (int i = 0; i < comments.size(); i++) {
+            if (Double.isNaN(scores[i])) continue;
+            CommentData comment = comments.get(i);
+            recordScore(comment, scores[i]);
+            pending.scored(comment);
+            writeTrainingExample(comment, scores[i]);
+            if (localModel != null) {
+                double local = localModel.predict(comment.text);
+                localCompared++;
+                localAbsoluteErrorSum += Math.abs(local - scores[i]);
+                if (LocalSentimentModel.label(local) == LocalSentimentModel.label(scores[i])) localAgreed++;
+            }
+        }
+    }
+
+    //書けなくなったら以降は書かない（分析そのものは続ける）
+    private void writeTrainingExample(CommentData comment, double score) {
+        if (trainingLogFailed || trainingLog == null) return;
+        try {
+            trainingLog.append(channelId, comment.language, score, comment.text);
+            trainingWritten++;
+        } catch (IOException e) {
+            System.err.println("学習データの書き込みエラー（以降は書きません）: " + e.getMessage());
+            trainingLogFailed = true;
+        }
+    }
+
+    private void flushTrainingLog() {
+        if (trainingLogFailed || trainingLog == null) return;
+        try {
+            trainingLog.flush();
+        } catch (IOException e) {
+            System.err.println("学習データの書き込みエラー（以降は書きません）: " + e.getMessage());
+            trainingLogFailed = true;
+        }
+    }
+
+    //ファイルは他の配信と共有しているので閉じずに書き出すだけにし、この配信では以降書かない
+    private void finishTrainingLog() {
+        flushTrainingLog();
+        if (trainingLog != null && trainingWritten > 0) {
+            System.out.println("学習データ: " + trainingWritten + "件を " + trainingLog.path() + " に追記しました");
+        }
+        trainingLogFailed = true;
     }
     
     
      //最新の分析結果を表示
     
     private void printRecentAnalysis() {
-        //.stream()は、commentsというListの要素をStreamに変換しています。ストリームは、データを処理するための一連の操作
+        //.stream()は、recentAnalyzedの要素をStreamに変換しています。ストリームは、データを処理するための一連の操作
         //（フィルタリング、ソート、集計など）を流れるように実行するための機能で
-        //元のデータ構造（この場合はList）とは異なる。
+        //元のデータ構造（この場合はArrayDeque）とは異なる。
         //ストリームは元のリストの要素をそのまま変更するのではなく、
         //要素を一時的な「データの流れ」として扱い、様々な加工を連鎖的に行えるようにしている。    
-        List<CommentData> recentAnalyzed = comments.stream()
-        //c -> c.sentimentScore != 0.0**というラムダ式は、「cというCommentDataオブジェクトのsentimentScoreが0.0と等しくない場合
-        //（つまり、すでに分析済みの場合）に、そのオブジェクトを残す」という条件を表している。
-            .filter(c -> c.sentimentScore != 0.0)
-            //(a, b) -> b.timestamp.compareTo(a.timestamp)というラムダ式は
-            //2つのCommentDataオブジェクトaとbを比較する方法を定義、bのタイムスタンプとaのタイムスタンプを比較。
-            //compareToメソッドは昇順（古い順）に並べるが、引数の順番をbとaを逆にすることで
+        //直近の分析済みコメントはrecentAnalyzedに新しい順で最大5件だけ残してある。
+        //全コメントの本文はもう持っていないので、ここから表示する
+        List<CommentData> recentComments = recentAnalyzed.stream()
+            //(a, b) -> Long.compare(b.publishedAtMillis, a.publishedAtMillis)というラムダ式は
+            //2つのCommentDataオブジェクトaとbを比較する方法を定義、bの投稿時刻とaの投稿時刻を比較。
+            //Long.compareは昇順（古い順）に並べるが、引数の順番をbとaを逆にすることで
             //結果的に新しい順（降順）にコメントを並べ替え。
-            .sorted((a, b) -> b.timestamp.compareTo(a.timestamp))
+            .sorted((a, b) -> Long.compare(b.publishedAtMillis, a.publishedAtMillis))
             //5件選ぶ
-            .limit(5)
+            .limit(RECENT_DISPLAY_COUNT)
             //Collectors.toList()は、「これまでの操作で残った要素をすべて新しいListに集めてください」という命令
             .collect(Collectors.toList());
-            //つまり選ばれた5件のコメントを新しいListに集めて、このあとのrecentAnalyzed変数に代入する
+            //つまり選ばれた5件のコメントを新しいListに集めて、このあとのrecentComments変数に代入する
         
             //\nを置くことで、見出しの前に空の行を追加。前の出力と新しい出力の間に1行の空白を作ることで
             //コンソール画面をより見やすく、読みやすくするための工夫。
         System.out.println("\n最新の感情分析結果:");
         //拡張forループ
-        for (CommentData comment : recentAnalyzed) {
+        for (CommentData comment : recentComments) {
             String sentiment = getSentimentLabel(comment.sentimentScore);
             System.out.printf("  %s [%s] %s: %.3f%n", 
                             sentiment, comment.author, comment.text, comment.sentimentScore);
@@ -313,12 +1012,8 @@ public class IntegratedYouTubeSentimentAnalyzer {
         //このforループで、ポジティブ [ユーザー名] コメント内容: スコア　を見やすく出力%nは改行の意味
         
         // 全体的な傾向を表示
-        double averageScore = comments.stream() //コメントデータのリストをストリームに変換。
-            .filter(c -> c.sentimentScore != 0.0) //ストリームから、sentimentScoreが0.0ではない（分析済みの）コメントだけを抽出。
-            //分析されていないコメントが平均計算に含まれるのを防ぐ
-            .mapToDouble(c -> c.sentimentScore)//各CommentDataオブジェクトをその感情スコア（double型）だけに変換。
-            //この操作により、ストリームはdouble型の数値の集まりになる。
-            .average().orElse(0.0);
+        // スコアが付くたびに合計と件数を足しているので、全コメントを見直さずに平均が出せる
+        double averageScore = analyzedTotal == 0 ? 0.0 : analyzedScoreSum / analyzedTotal;
         
         System.out.printf("現在の平均感情スコア: %.3f (%s)%n%n", 
                         averageScore, getSentimentLabel(averageScore));
@@ -341,108 +1036,120 @@ public class IntegratedYouTubeSentimentAnalyzer {
     }
     
     
-    //Azure APIリクエスト用のJSONを作成
-    //stringは基本変更不可能（immutable）なものなので、都度オブジェクトが作られる。
-    //StringBuilderを使えば、Stringのように新しいオブジェクトを何度も作ることなく、文字列を連結できる。
-    //StringとStringBuilderの動作の違い
-    //String:「Hello」というオブジェクトがメモリに作られそこにworldという文字列を連結したときは
-    //「Hello World」という別の新しいオブジェクトが作られ、以前のhelloオブジェクトは捨てられる。
-    //StringBuilder:「Hello」というオブジェクトがメモリに作られ、そのオブジェクトに対して「World」が直接追加される。
-    //StringBuilderは、内部で可変な（変更できる）文字の配列を持っており、そこに直接文字を追加していくイメージ。
-    //これにより、たくさんの文字列を連結する際のパフォーマンスが大幅に向上する。
-    private String createSentimentAnalysisRequest(List<CommentData> commentsToAnalyze) {
-        // Azure APIの制限確認
-        if (commentsToAnalyze.size() > 10) {
-            System.err.println("警告: バッチサイズが10を超えています: " + commentsToAnalyze.size());
-            commentsToAnalyze = commentsToAnalyze.subList(0, 10);
-        }
-        StringBuilder json = new StringBuilder();
-        json.append("{\"documents\": [");
-        //JSON文字列の最初の部分を追加している。
-        //この文脈での\は、直後にある"（ダブルクォート）が単なる文字列ではなく
-        //特別な意味を持つ文字であることをコンパイラに伝えている。
-        //JSON（JavaScript Object Notation）の構文では、文字列は必ずダブルクォートで囲まなければならないためである。
-        //{}はJSONオブジェクト、[]はJSON配列を示す。
-        //この文字列は、「documentsというキーを持つJSONオブジェクトを開始し、その値は配列です」という意味になる
-        //キーと値の関係を:で区切るのがJSONのルールのためコロンがある。
-        
+    //感情スコアを記録する。CommentData・ストア・10秒バケット・全体の合計にまとめて反映する
+    private void recordScore(CommentData comment, double sentimentScore) {
+        // 分析中に削除・BANされたコメントのスコアは捨てる
+        // （アーカイブ分析では送信中のコメントは分析待ちにいないので、ストアの印も見る）
+        if (comment.retracted || store.isRetracted(comment.row)) return;
+        comment.sentimentScore = sentimentScore;
+        //CommentDataオブジェクトのsentimentScoreというフィールドに、計算された値を代入
+        store.setScore(comment.row, (float) sentimentScore);
+        analyzedScoreSum += sentimentScore;
+        analyzedTotal++;
+        authorIndex.onScore(comment.authorId, sentimentScore);
 
-        //感情分析をリクエストするためのJSON配列の各要素を組み立てている。
-        //複数のコメントを1つのAPIリクエストでまとめて送れるようにコメントごとにJSONオブジェクトを作成し、
-        //それらをカンマで区切りながらStringBuilderに追加。
-        for (int i = 0; i < commentsToAnalyze.size(); i++) {
-            if (i > 0) json.append(",");
-            json.append(String.format(
-                "{\"id\": \"%d\", \"language\": \"ja\", \"text\": \"%s\"}", //これはJSONオブジェクトのテンプレート。
-                //idの値を埋め込むためのプレースホルダー（dは整数）。textの値を埋め込むためのプレースホルダー
-                i, //テンプレートの%dに、ループのインデックスiが埋め込まれ、各コメントにユニークなidが割り当てられる
-                commentsToAnalyze.get(i).text.replace("\"", "\\\"")
-                //JSONでは、文字列は必ずダブルクォート（"）で囲まなければならない。
-                //しかし、コメントのテキスト自体にダブルクォートが含まれている場合、問題が起きるのでエスケープ処理
-                //バックスラッシュ直後の記号が「ただの文字だよ」という意味にするために
-                //変換された後に\"とならねばならない。なので"を\"に変換している
-            ));
+        SentimentBucket bucket = openBuckets.get(clock.bucketIndex(comment.publishedAtMillis));
+        if (bucket != null) {
+            bucket.addScore(sentimentScore, SentimentBucket.weightFor(comment.amount));
+        }
+
+        recentAnalyzed.addFirst(comment);
+        if (recentAnalyzed.size() > RECENT_DISPLAY_COUNT) {
+            recentAnalyzed.removeLast();
         }
-        
-        json.append("]}");//JSONの構文を正しく閉じるための処理。]はJSON配列の終わり、}はJSONオブジェクトの終わりを示す
-        return json.toString();//完成したJSON文字列をメソッドの戻り値として返している
     }
-                                //json.toString()は、StringBuilderオブジェクト（json）を
-                                //不変な（immutable）Stringオブジェクトに変換。
-                                //StringBuilderは内部で効率的に文字列を操作するためのものなので
-                                //文字列の構築が終わったら、最終的なStringに再変換して利用。
 
-    
-    //Azure APIのレスポンスを解析
-    //JsonNodeは、JSONデータをツリー構造で扱うためのクラスであり
-    //そのクラスのインスタンス（オブジェクト）を指す変数をrootという名前で宣言している。
-    //rootは、提供されたコードの中であなたが任意で名付けた変数です。JsonNodeは、JSONデータをツリー構造で扱うためのクラスであり、そのクラスのインスタンス（オブジェクト）を指す変数をrootという名前で宣言しています。
-    //JSONのデータ構造とJsonNode
-    //JSONデータは、テキストとして記述されるが、プログラムでこのテキストを直接操作するのは非常に手間がかかる。
-    //そこで、objectMapper.readTree()メソッドでこのテキスト群をメモリ上で操作しやすい階層的なデータ構造（ツリー）に変換
-    //その根をrootとしている
-    //readTree()メソッドは、引数として受け取ったJSONテキストを解析し、プログラムで扱いやすいツリー構造に変換するように設計されている。
-    //そして、そのツリー構造の一番上のノード（ルートノード）を返すのが、このメソッドの役割。
-    //これは、JSONライブラリが提供する基本的な機能であり、開発者が複雑な文字列操作をすることなく、
-    //階層的なJSONデータに簡単にアクセスできるようにするためのもの。
-    private void parseSentimentResponse(String responseBody, List<CommentData> analyzedComments) {
-        try {
-            JsonNode root = objectMapper.readTree(responseBody);
-            JsonNode documents = root.get("documents");//JSONツリーの中から特定のノード（"documents"というキーを持つノード）を取り出す処理。
-            
-            for (int i = 0; i < documents.size(); i++) {
-                JsonNode document = documents.get(i);
-                JsonNode confidenceScores = document.get("confidenceScores");
-                //confidenceScoresはAzure APIで定義されてるフィールド
-                
-                double positive = confidenceScores.get("positive").asDouble();
-                double neutral = confidenceScores.get("neutral").asDouble();
-                double negative = confidenceScores.get("negative").asDouble();
-                //confidenceScoresノードからポジティブ、ニュートラル、ネガティブの
-                //3つのスコアをそれぞれ取り出し、double型に変換。
-                
-                double sentimentScore = (positive * 1.0) + (neutral * 0.0) + (negative * -1.0);
-                analyzedComments.get(i).sentimentScore = sentimentScore;
-                //CommentDataオブジェクトのsentimentScoreというフィールドに、直前の行で計算された
-                //sentimentScoreというローカル変数の値を代入
+
+    //コメントの投稿時刻が属する10秒バケットを返す（なければ作る）
+    //すでに検出器に渡し終わった時間帯のコメントならnull（遅れて届いたもの）
+    private SentimentBucket bucketFor(long publishedAtMillis) {
+        long index = clock.bucketIndex(publishedAtMillis);
+        if (nextBucketToEmit != Long.MIN_VALUE && index < nextBucketToEmit) {
+            return null;
+        }
+        return openBuckets.computeIfAbsent(index, k -> new SentimentBucket(k, clock.bucketStartMillis(k)));
+    }
+
+
+    //閉じてよい10秒バケットを時間順にハイライト検出器へ渡す
+    //コメントが1件もなかった10秒間も空のバケットとして渡す（コメント数の落ち込みも検出器の基準になるため）
+    //force=trueなら猶予を待たずに残りを全部渡し、検出中のハイライトも確定させる（終了時用）
+    private synchronized void emitClosedBuckets(long nowMillis, boolean force) {
+        if (nextBucketToEmit == Long.MIN_VALUE) {
+            if (openBuckets.isEmpty()) return;
+            nextBucketToEmit = openBuckets.firstKey();
+        }
+        long lastIndex = openBuckets.isEmpty() ? Long.MIN_VALUE : openBuckets.lastKey();
+
+        while (true) {
+            long endMillis = clock.bucketStartMillis(nextBucketToEmit + 1);
+            SentimentBucket bucket = openBuckets.get(nextBucketToEmit);
+            if (force) {
+                if (nextBucketToEmit > lastIndex) break;
+            } else {
+                boolean settled = (bucket == null || bucket.pendingCount() == 0)
+                        && endMillis + BUCKET_CLOSE_GRACE_SECONDS * 1000L <= nowMillis;
+                boolean expired = endMillis + BUCKET_MAX_WAIT_SECONDS * 1000L <= nowMillis;
+                if (!settled && !expired) break;
             }
-            
-        } catch (Exception e) {
-            System.err.println("レスポンス解析エラー: " + e.getMessage());
+
+            openBuckets.remove(nextBucketToEmit);
+            if (bucket == null) bucket = new SentimentBucket(nextBucketToEmit, clock.bucketStartMillis(nextBucketToEmit));
+            HighlightDetector.Highlight highlight = highlightDetector.onBucket(bucket);
+            if (highlight != null) reportHighlight(highlight);
+            nextBucketToEmit++;
+        }
+
+        if (force) {
+            HighlightDetector.Highlight highlight = highlightDetector.flush();
+            if (highlight != null) reportHighlight(highlight);
         }
     }
-    
-    
+
+
+    //確定したハイライトを表示し、CSVの隣のファイル（_highlights.csv）に1行追記する
+    //配信中にも追記していくので、配信を見ながら切り抜き候補を確認できる
+    private void reportHighlight(HighlightDetector.Highlight highlight) {
+        String startOffset = StreamClock.formatOffset(clock.offsetMillis(highlight.startMillis));
+        String endOffset = StreamClock.formatOffset(clock.offsetMillis(highlight.endMillis));
+        System.out.printf("★ハイライト検出 %s ～ %s (%s)%n", startOffset, endOffset, highlight.reasons());
+
+        File file = new File(sessionBaseName + "_highlights.csv");
+        boolean newFile = !file.exists();
+        //FileWriterの第2引数trueは追記モード。既存の内容を消さずに末尾に書き足す
+        try (PrintWriter writer = new PrintWriter(new FileWriter(file, true))) {
+            if (newFile) {
+                writer.println("開始時間,終了時間,配信経過時間(開始),配信経過時間(終了),理由,感情zスコア,コメント数zスコア,コメント数,スパチャ数");
+            }
+            writer.printf("%s,%s,%s,%s,%s,%.2f,%.2f,%d,%d%n",
+                    StreamClock.formatWallClock(highlight.startMillis), StreamClock.formatWallClock(highlight.endMillis),
+                    startOffset, endOffset, highlight.reasons(),
+                    highlight.peakSentimentZ, highlight.peakRateZ, highlight.comments, highlight.superchatCount);
+        } catch (IOException e) {
+            System.err.println("ハイライト出力エラー: " + e.getMessage());
+        }
+    }
+
+
     //処理プログラムが終了する前に未処理のデータをすべて完了させ、
     //最終的なレポートを出力するために呼び出される関数
      
-    public void finalizePendingAnalysis() {
-        if (unanalyzedCount > 0) {
+    //2回目以降の呼び出しは何もしない。別のスレッドが終了処理の途中なら、終わるまで待ってから戻る
+    //（Ctrl+Cのシャットダウンフックが、出力を書き終える前にプロセスを終わらせないように）
+    public synchronized void finalizePendingAnalysis() {
+        if (finalized) return;
+        finalized = true;
+        closeEventLog();
+        // 締め切っていない標本もすべて分析待ちに入れる
+        releaseSamples(Long.MAX_VALUE);
+        if (!pending.isEmpty()) {
             System.out.println("残りの未分析コメントを処理中...");
             
             // 未分析コメントを小分けして処理
-            while (unanalyzedCount > 0) {
-                analyzePendingSentiments();
+            // APIエラーが続く場合は終了できなくならないように、決まった回数で諦める
+            int failures = 0;
+            while (!pending.isEmpty() && failures < MAX_FINAL_FAILURES) {
+                failures = analyzePendingSentiments() ? 0 : failures + 1;
                 try {
                     Thread.sleep(1000); // API制限を避けるための待機
                 } catch (InterruptedException e) {
@@ -451,9 +1158,19 @@ public class IntegratedYouTubeSentimentAnalyzer {
             }
         }
         
-        printFinalSummary();
-        exportToCSV("youtube_live_sentiment_" + 
-                   LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyyMMdd_HHmm")) + ".csv");
+        finishTrainingLog();
+        SharedClients.costLedger().flush();
+
+        // 残りのバケットを全部検出器に流し、検出中のハイライトも確定させる
+        emitClosedBuckets(System.currentTimeMillis(), true);
+
+        // サマリーとCSVで同じ集計結果を使う（全コメントの集計は並列で1回だけ行う）
+        SessionAggregate aggregate = aggregateSession();
+        printFinalSummary(aggregate);
+        exportToCSV(sessionBaseName + ".csv", aggregate);
+        exportToBinary(sessionBaseName + BucketColumnFile.EXTENSION, aggregate);
+        appendToTimeSeries(aggregate);
+        authorIndex.exportToCSV(sessionBaseName + "_authors.csv");
     }
     //.ofPattern()は、DateTimeFormatterクラスの静的メソッド。
     //これは日時の書式を定義するためのテンプレートを作成するために使う。
@@ -464,28 +1181,16 @@ public class IntegratedYouTubeSentimentAnalyzer {
     
     //最終サマリーを表示
     
-    private void printFinalSummary() {
-        if (comments.isEmpty()) return;
-        
-        long analyzedCount = comments.stream()
-            .mapToLong(c -> c.sentimentScore != 0.0 ? 1 : 0)
-            .sum();
-            // リストの各コメントをストリームに変換し感情スコアが 0.0 でない（分析済み）コメントを 1
-            //それ以外を 0 に変換。最後にこれらの値をすべて合計することで、分析済みのコメントの総数を求めている。
-        
-        double averageScore = comments.stream()
-            .filter(c -> c.sentimentScore != 0.0)
-            .mapToDouble(c -> c.sentimentScore)
-            .average().orElse(0.0);
-            //分析済みコメントのみを抽出し、その感情スコアの平均値を計算します。もしコメントが一つもなければ 0.0 を返します。
-        
-        long positiveCount = comments.stream()
-            .mapToLong(c -> c.sentimentScore > 0.3 ? 1 : 0)
-            .sum();     
-        long negativeCount = comments.stream()
-            .mapToLong(c -> c.sentimentScore < -0.3 ? 1 : 0)
-            .sum();
-        long neutralCount = analyzedCount - positiveCount - negativeCount;
+    private void printFinalSummary(SessionAggregate aggregate) {
+        int size = store.size();
+        if (size == 0) return;
+
+        // 集計はaggregateSession()でコア数に応じて並列に済ませてある
+        long analyzedCount = aggregate.analyzedCount;
+        long positiveCount = aggregate.positiveCount;
+        long negativeCount = aggregate.negativeCount;
+        long neutralCount = aggregate.neutralCount();
+        double averageScore = aggregate.averageScore();
         //感情スコアが 0.3 より大きいコメントをポジティブ、-0.3 より小さいコメントをネガティブと見なし
         //それぞれの数をカウント。ニュートラルなコメントは分析済みコメント数からポジティブとネガティブの
         //合計を引くことで求めている。
@@ -493,14 +1198,76 @@ public class IntegratedYouTubeSentimentAnalyzer {
         System.out.println("\n" + "=".repeat(50));
         System.out.println("YouTube ライブチャット感情分析 最終結果");
         System.out.println("=".repeat(50));
-        System.out.println("総取得コメント数: " + comments.size());
+        System.out.println("総取得コメント数: " + size);
         System.out.println("分析済みコメント数: " + analyzedCount);
+        System.out.println("投稿者数: " + authorIndex.activeAuthors());
         System.out.printf("全体平均スコア: %.3f (%s)%n", averageScore, getSentimentLabel(averageScore));
         System.out.println("ポジティブ: " + positiveCount + "件");
         System.out.println("ニュートラル: " + neutralCount + "件");
         System.out.println("ネガティブ: " + negativeCount + "件");
+        System.out.println("削除・BANで取り消し: " + retractedTotal + "件");
+        if (!languageCounts.isEmpty()) {
+            StringBuilder languages = new StringBuilder();
+            for (Map.Entry<String, Integer> entry : languageCounts.entrySet()) {
+                if (languages.length() > 0) languages.append(" / ");
+                languages.append(entry.getKey()).append(' ').append(entry.getValue()).append("件");
+            }
+            if (languageSkipped > 0) languages.append("（対象外の言語で分析しなかった: ").append(languageSkipped).append("件）");
+            System.out.println("言語: " + languages);
+        }
+        System.out.println("Azure: " + sentimentClient.summary());
+        System.out.println("使用量: " + costs.summary());
+        if (budgetLocal > 0 || budgetSkipped > 0) {
+            System.out.printf("予算のため: 手元で採点 %d件 / 採点しなかった %d件%n", budgetLocal, budgetSkipped);
+        }
+        System.out.println(pending.summary());
+        if (lateDowngraded > 0 || lateShed > 0) {
+            System.out.printf("締め切り超過: 手元で採点 %d件 / 採点を諦めた %d件%n", lateDowngraded, lateShed);
+        }
+        if (cascade != null) {
+            System.out.println("カスケード: " + cascade.summary());
+        }
+        if (localCompared > 0) {
+            System.out.printf("ローカルモデル: Azureと%d件比較 / ラベル一致率 %.1f%% / 平均誤差 %.3f%n",
+                    localCompared, 100.0 * localAgreed / localCompared, localAbsoluteErrorSum / localCompared);
+        }
+        if (seenMessageIds.duplicateCount() > 0) {
+            System.out.println("重複: " + seenMessageIds.summary());
+        }
+        if (spamFilter != null) {
+            System.out.println("スパムフィルタ: " + spamFilter.summary());
+        }
+        if (sampler != null) {
+            System.out.println("サンプリング: " + sampler.summary());
+        }
+        System.out.printf("スパチャ: %d件 / 売上合計 ¥%,.0f (%s換算)%n",
+                aggregate.superchatCount, aggregate.revenue, CurrencyRates.BASE_CURRENCY);
+        System.out.printf("コメント保存メモリ(概算): %.1f MB%n", (double) size * CommentStore.bytesPerRow() / (1024 * 1024));
+        printTopAuthors();
         System.out.println("=".repeat(50));
     }
+
+
+    //コメント数の多い投稿者を上位5人まで表示
+    private void printTopAuthors() {
+        System.out.println("コメント数の多い投稿者:");
+        for (AuthorIndex.AuthorStats stats : topAuthors(5, AuthorIndex.Metric.MESSAGES)) {
+            System.out.printf("  %s: %d件 (平均 %.3f, スパチャ %d件)%n",
+                    stats.displayName, stats.messages, stats.meanScore, stats.superchats);
+        }
+    }
+
+
+    //配信中いつでも呼べる投稿者ランキング。コメントの一覧は見ずに投稿者の索引だけから求める
+    public List<AuthorIndex.AuthorStats> topAuthors(int k, AuthorIndex.Metric metric) {
+        return authorIndex.topK(k, metric);
+    }
+
+
+    //全コメントをForkJoinPoolで並列に集計する（10秒バケット・ラベル別）
+    private SessionAggregate aggregateSession() {
+        return SessionAggregate.compute(store, clock);
+    }
     
     
     //1分ごとの平均スコアを集計
@@ -559,58 +1326,12 @@ public class IntegratedYouTubeSentimentAnalyzer {
     
 
 //10秒ごとの平均スコアを集計に変更
-    
-public Map<LocalDateTime, Double> calculateTenSecondlyAverages() {
-    Map<LocalDateTime, List<Double>> tenSecondlyScores = new TreeMap<>();
-    //TreeMapは、内部的に赤黒木（Red-Black Tree）というデータ構造を使用。
-    //これにより、キーが常に自然な順序（例: 文字列ならアルファベット順、数値なら昇順、日時なら古い順）に
-    //自動でソートされて格納される。ハッシュマップと違って順序があるかわりにソートでオーバヘッドが生じる
-    
-
-    //各コメントを10秒単位でグループ化し、その感情スコアを10秒ごとのリストにまとめる処理を行う。
-    //後で10秒ごとの平均スコアを計算するための前処理
-    for (CommentData comment : comments) {
-        if (comment.sentimentScore == 0.0) continue; // 未分析をスキップ
-        
-        // 10秒単位に切り捨て（秒を10で割って切り捨て、再び10倍することで10秒単位にする）
-        int roundedSeconds = (comment.timestamp.getSecond() / 10) * 10;
-        LocalDateTime tenSecondInterval = comment.timestamp
-            .withSecond(roundedSeconds)
-            .withNano(0);
-            //秒を10秒単位に切り捨て、ナノ秒を0に設定することで「10秒」単位に丸めている
-            //これにより、同じ10秒間に投稿されたすべてのコメントが
-            //同じLocalDateTimeオブジェクトを持つことになり、後のグループ化の基準となる
-        
-
-            //computeIfAbsent()は、Java 8以降で標準で用意されているMapインターフェースのメソッド
-            //これは「キーの存在チェックと、それに続く処理」を1つのメソッドにまとめたもの
-            //「10秒間隔」というキーと「その10秒間の感情スコアのリスト」という値がちゃんとあるかのチェック
-            //もし存在しない場合は、新しいArrayListを作成して
-            //そのキーに対応する値としてマップに追加し、その新しいリストを返します。
-        tenSecondlyScores.computeIfAbsent(tenSecondInterval, k -> new ArrayList<>())
-                     .add(comment.sentimentScore);  //computeIfAbsentが返したリストに対して現在のコメントのsentimentScoreを追加。
+//キーは配信開始からのバケット番号（StreamClock.bucketIndex）に変更
+public Map<Long, Double> calculateTenSecondlyAverages() {
+    Map<Long, Double> averages = new TreeMap<>();
+    for (SentimentBucket bucket : aggregateSession().buckets.values()) {
+        averages.put(bucket.index, bucket.averageScore());
     }
-    
-    //最終的な計算結果を格納するための新しいMapを作成、キーは10秒ごとの日時、値はその10秒間の平均スコア
-    //TreeMapを使用しているため、計算結果が自動的に時間順にならぶ
-    Map<LocalDateTime, Double> averages = new TreeMap<>(); 
-    //entry: tenSecondlyScoresマップのキーと値のペアを指す変数。
-    //ここの行はtenSecondlyScoresマップに格納されたすべてのキーと値をentrySet()で返してentryにひとつずついれているループ
-    for (Map.Entry<LocalDateTime, List<Double>> entry : tenSecondlyScores.entrySet()) {
-        List<Double> scores = entry.getValue();
-        //entryという変数に格納されているキーと値のペアから、値の部分（List<Double>）を取り出し、scoresという新しい変数に代入
-        
-        
-        //scores.stream()スコアリストをストリームに変換、.mapToDouble(Double::doubleValue)で
-        //ストリーム内の各要素（Double型のオブジェクト）を、プリミティブ型のdouble値に変換
-        //Double::doubleValueは、d -> d.doubleValue()と同じ意味を持つメソッド参照
-        double average = scores.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
-        //感情スコアの平均値を計算し、その結果をaverageという変数に代入しています。
-        averages.put(entry.getKey(), average);
-        //averagesというマップにentry.getKey()で得られた「10秒間隔」をキーとして
-        //averageで計算された「平均スコア」を値として格納しろという指示
-    }
-    
     return averages;
 }
 
@@ -624,7 +1345,42 @@ public Map<LocalDateTime, Double> calculateTenSecondlyAverages() {
 
     //CSV出力（10秒間隔に変更）    
     public void exportToCSV(String filename) {
-        Map<LocalDateTime, Double> averages = calculateTenSecondlyAverages();
+        exportToCSV(filename, aggregateSession());
+    }
+
+    //CSVと同じ10秒バケットを、後から大量に読み直すためのバイナリ列指向ファイルにも書き出す
+    private void exportToBinary(String filename, SessionAggregate aggregate) {
+        try {
+            BucketColumnFile.write(Paths.get(filename), aggregate.buckets.values(),
+                    clock.hasStreamStart() ? clock.streamStartMillis() : 0L,
+                    sampler != null && sampler.isStratified());
+            System.out.println("バイナリファイルを出力しました: " + filename);
+        } catch (IOException e) {
+            System.err.println("バイナリ出力エラー: " + e.getMessage());
+        }
+    }
+
+    //全配信共通の時系列ストア（環境変数 TIMESERIES_DIR、既定は timeseries ディレクトリ）にこの配信のバケットを追記する
+    //TIMESERIES_DIR=off なら書かない
+    private void appendToTimeSeries(SessionAggregate aggregate) {
+        String directory = System.getenv("TIMESERIES_DIR");
+        if ("off".equalsIgnoreCase(directory) || aggregate.buckets.isEmpty()) return;
+        try {
+            TimeSeriesStore timeSeries = TimeSeriesStore.open(Paths.get(
+                    directory == null || directory.isBlank() ? "timeseries" : directory));
+            int seriesId = timeSeries.registerSeries(channelId, videoId, videoTitle,
+                    clock.hasStreamStart() ? clock.streamStartMillis() : 0L);
+            timeSeries.append(seriesId, aggregate.buckets.values());
+            System.out.println("時系列ストアに追記しました: " + timeSeries.directory() + "（シリーズ " + seriesId + "）");
+        } catch (IOException | RuntimeException e) {
+            // ストアに書けなくても、このあとの投稿者CSVの出力やセッションの終了は続ける
+            System.err.println("時系列ストアへの追記エラー: " + e.getMessage());
+        }
+    }
+
+    //集計済みの結果からCSVを書き出す
+    private void exportToCSV(String filename, SessionAggregate aggregate) {
+        TreeMap<Long, SentimentBucket> buckets = aggregate.buckets;
 
         //new FileWriter(filename)
         //引数で渡されたfilename（ファイル名）を基に、ファイルとの間に「書き込みのための接続」を確立する役割
@@ -637,68 +1393,41 @@ public Map<LocalDateTime, Double> calculateTenSecondlyAverages() {
         //PrintWriterがFileWriterを「ラップ」することで、より使いやすく、安全にファイルにデータを書き込めるようになっている。
         //この多段階の構造は、Javaのライブラリでよく見られるデザインパターン...らしい
         try (PrintWriter writer = new PrintWriter(new FileWriter(filename))) {
-            writer.println("時間,平均感情スコア,コメント数,ポジティブ数,ネガティブ数,ニュートラル数");
+            writer.println("時間,配信経過時間,平均感情スコア,コメント数,ポジティブ数,ネガティブ数,ニュートラル数,加重平均感情スコア,スパチャ数,売上(" + CurrencyRates.BASE_CURRENCY + ")"
+                    + ",メンバー加入,メンバーギフト,スーパーステッカー,削除,BAN,スパム除外"
+                    + ",推定平均感情スコア,95%信頼区間下限,95%信頼区間上限,標本数,母集団数");
+            boolean stratified = sampler != null && sampler.isStratified();
             
-            //一個前の関数でminutelyScoreからのループで作ったavaragesマップを使って更にループ
-            //averagesマップのすべてのペア（キーと値の組み合わせ）のセットを返す。
-            //このペアは、LocalDateTime（分）とDouble（平均スコア）の組み合わせ。
-            //変更後このペアは、LocalDateTime（10秒間隔）とDouble（平均スコア）の組み合わせ。
-            for (Map.Entry<LocalDateTime, Double> entry : averages.entrySet()) {
-                LocalDateTime time = entry.getKey();
-                double avgScore = entry.getValue();
-                
-                //すべてのコメントが格納されたcommentsリストをストリームに変換
-                // List<CommentData> minuteComments = comments.stream()
-                //コメントのタイムスタンプの秒とナノ秒を0に設定し、分単位に丸め
-                //そのタイムスタンプが現在のループで処理しているtime（averagesマップのキー）と等しいかどうかを比較。
-                    // .filter(c -> c.timestamp.withSecond(0).withNano(0).equals(time))
-                    // .filter(c -> c.sentimentScore != 0.0)
-                    //感情スコアが0.0ではない（＝分析済み）コメントだけを絞り込む。未分析のコメントが混入するのを防ぐ
-
-                    //コメントのタイムスタンプを1分単位から10秒単位に丸める処理に変更
-                List<CommentData> intervalComments = comments.stream()
-                .filter(c -> {
-                    int roundedSeconds = (c.timestamp.getSecond() / 10) * 10;
-                    LocalDateTime roundedTime = c.timestamp.withSecond(roundedSeconds).withNano(0);
-                    return roundedTime.equals(time);
-                })
-                //そのタイムスタンプが現在のループで処理しているtime（averagesマップのキー）と等しいかどうかを比較。
-                    .filter(c -> c.sentimentScore != 0.0)
-                    //感情スコアが0.0ではない（＝分析済み）コメントだけを絞り込む。未分析のコメントが混入するのを防ぐ
-                    .collect(Collectors.toList());
-                    //それを新しく作るリストにぶちこみ、これをminuteCommentsに代入
-                
-                //minuteCommentsリストのサイズ（要素数）を取得、その分(時間)に投稿された分析済みのコメントの総数をcommentCountという変数に代入
-                // long commentCount = minuteComments.size();
-                // //リストをストリームに変換し、感情スコアが0.3より大きいコメントをポジティブと見なしてカウント
-                // long positiveCount = minuteComments.stream().mapToLong(c -> c.sentimentScore > 0.3 ? 1 : 0).sum();
-                // //0.3より小さいコメントをネガティブ
-                // long negativeCount = minuteComments.stream().mapToLong(c -> c.sentimentScore < -0.3 ? 1 : 0).sum();
-
-                //その10秒間に投稿された分析済みのコメントの総数をcommentCountという変数に代入
-                //long→64ビットの整数型、intは32ビット
-                long commentCount = intervalComments.size();
-                long positiveCount = intervalComments.stream().mapToLong(c -> c.sentimentScore > 0.3 ? 1 : 0).sum();
-                long negativeCount = intervalComments.stream().mapToLong(c -> c.sentimentScore < -0.3 ? 1 : 0).sum();
-                long neutralCount = commentCount - positiveCount - negativeCount;//全体から引いてニュートラルの数をだす
-                
-            //     writer.printf("%s,%.3f,%d,%d,%d,%d%n", 
-            //                 time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm")),
-            //                 avgScore, commentCount, positiveCount, negativeCount, neutralCount);
-            // }       //書式設定での出力。%sは文字列、%.3fは小数3桁以下、%dは整数
+            //集計済みのバケットを時間順に1行ずつ書き出す
+            //コメント数はその10秒間に投稿された分析済みのコメントの総数
+            for (SentimentBucket bucket : buckets.values()) {
+                // バケットはストアの行から作っているので、何かしらのコメントかイベントがあった10秒間だけが並ぶ
+                int neutralCount = bucket.analyzedCount - bucket.positiveCount - bucket.negativeCount;//全体から引いてニュートラルの数をだす
+                SentimentBucket.Estimate estimate = bucket.estimate(stratified);
                 
-                writer.printf("%s,%.3f,%d,%d,%d,%d%n", 
-                time.format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")),
-                avgScore, commentCount, positiveCount, negativeCount, neutralCount);
+                writer.printf("%s,%s,%.3f,%d,%d,%d,%d,%.3f,%d,%.0f,%d,%d,%d,%d,%d,%d,%.3f,%.3f,%.3f,%d,%d%n", 
+                StreamClock.formatWallClock(bucket.startMillis),
+                StreamClock.formatOffset(bucket.index * StreamClock.BUCKET_MILLIS),
+                bucket.averageScore(), bucket.analyzedCount, bucket.positiveCount, bucket.negativeCount, neutralCount,
+                bucket.weightedAverageScore(), bucket.superchatCount, bucket.revenue,
+                bucket.eventCount(MessageType.NEW_SPONSOR) + bucket.eventCount(MessageType.MEMBER_MILESTONE),
+                bucket.eventCount(MessageType.GIFT_MEMBERSHIP_RECEIVED),
+                bucket.eventCount(MessageType.SUPER_STICKER),
+                bucket.retractedCount,
+                bucket.eventCount(MessageType.USER_BANNED),
+                bucket.filteredCount,
+                estimate.mean, estimate.low, estimate.high, estimate.sampled, estimate.population);
 }               //書式設定での出力。%sは文字列、%.3fは小数3桁以下、%dは整数
                 //時刻フォーマットも秒まで表示するように変更
+                //配信経過時間（H:MM:SS）の列を追加。VODの再生位置としてそのままシークに使える
+                //スパチャ金額で重み付けした平均スコアと、その10秒間の売上の列を追加
+                //メンバー加入・ギフト・ステッカー・削除（取り消されたコメント数）・BANの件数の列を追加
+                //サンプリング時の推定平均と95%信頼区間の列を追加（全件分析なら平均感情スコアと同じで区間の幅は0）
 
             System.out.println("CSVファイルを出力しました: " + filename);
             
         } catch (IOException e) {
             System.err.println("CSV出力エラー: " + e.getMessage());
-        } finally {
-            finalizePendingAnalysis();
         }
     }
 }
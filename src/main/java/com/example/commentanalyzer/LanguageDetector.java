@@ -0,0 +1,177 @@
+package com.example.commentanalyzer;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+ //コメントの言語を手元で判定するクラス（Azureに送る時の言語の指定に使う）
+ //以前は全コメントを日本語（"ja"）として送っていたので、海外の視聴者の英語・韓国語・インドネシア語などの
+ //コメントも日本語として採点されていた。
+ //
+ //判定は2段階で、どちらも本文を1回なめるだけ（1件あたり1マイクロ秒もかからない）:
+ //  1. 文字の種類を数える。かな→日本語、ハングル→韓国語、タイ文字→タイ語…のように文字だけで決まる言語はここで決まる。
+ //     漢字だけのコメント（「草」「神回」など）は日本語か中国語か区別できないので、既定の言語に任せる
+ //  2. ラテン文字のコメントは、単語をよく使われる短い単語（the, yang, que…）の表と照らし合わせ、
+ //     アクセント付きの文字（ñ, ã, ß…）も手がかりにして、一番多く当たった言語にする。何も当たらなければ英語
+ //「www」「888」や絵文字だけのコメントのように、手がかりになる文字がないものは既定の言語にする
+public class LanguageDetector {
+
+    // ラテン文字の言語（scoresの添字）
+    private static final int EN = 0;
+    private static final int ID = 1;
+    private static final int ES = 2;
+    private static final int PT = 3;
+    private static final int FR = 4;
+    private static final int DE = 5;
+    private static final String[] LATIN_CODES = {"en", "id", "es", "pt", "fr", "de"};
+
+    // よく使われる短い単語 → 言語。複数の言語で使う単語（que, de など）はいちばん多そうな言語にだけ入れる
+    private static final Map<String, Integer> FUNCTION_WORDS = new HashMap<>();
+    static {
+        words(EN, "the", "and", "you", "is", "are", "this", "that", "it", "so", "what", "lol", "lmao", "omg",
+                "love", "good", "nice", "she", "he", "my", "your", "cute", "hello", "hi", "thank", "thanks",
+                "can", "was", "for", "with", "i'm", "don't", "oh", "yes", "really", "how", "why");
+        words(ID, "yang", "dan", "ini", "itu", "aku", "kamu", "tidak", "gak", "ga", "nggak", "banget", "dong",
+                "sih", "lucu", "apa", "ada", "mau", "bisa", "juga", "sama", "udah", "sudah", "kak", "semangat",
+                "terima", "kasih", "selamat", "malam", "pagi", "hai", "keren", "aja", "lagi");
+        words(ES, "que", "el", "la", "los", "las", "de", "y", "es", "muy", "por", "pero", "hola", "gracias",
+                "como", "para", "una", "está", "qué", "te", "amo", "eres", "buenas", "noches");
+        words(PT, "não", "você", "muito", "é", "obrigado", "obrigada", "tá", "isso", "eu", "legal", "boa",
+                "noite", "olá", "com", "um", "meu", "minha", "fofa", "fofo");
+        words(FR, "le", "les", "est", "et", "je", "tu", "c'est", "pas", "très", "merci", "bonjour", "vous",
+                "trop", "mdr", "bonsoir", "oui", "mignon", "mignonne");
+        words(DE, "ich", "und", "der", "die", "das", "ist", "nicht", "du", "sehr", "danke", "gut", "hallo",
+                "schön", "süß", "auch", "mit");
+    }
+
+    private static void words(int language, String... list) {
+        for (String word : list) {
+            FUNCTION_WORDS.put(word, language);
+        }
+    }
+
+    private final String defaultLanguage;
+
+    public LanguageDetector(String defaultLanguage) {
+        this.defaultLanguage = defaultLanguage;
+    }
+
+    //環境変数 DEFAULT_LANGUAGE（省略時は "ja"）を、手がかりのないコメントの言語にする
+    public static LanguageDetector fromEnvironment() {
+        String value = System.getenv("DEFAULT_LANGUAGE");
+        return new LanguageDetector(value == null || value.isBlank() ? "ja" : value.trim().toLowerCase());
+    }
+
+    public String defaultLanguage() {
+        return defaultLanguage;
+    }
+
+
+    //本文の言語をAzureの言語コード（"ja", "en", "ko"…）で返す
+    public String detect(String text) {
+        int kana = 0, hangul = 0, han = 0, latin = 0;
+        int thai = 0, cyrillic = 0, arabic = 0, devanagari = 0;
+        int[] scores = null; // ラテン文字が出てきた時だけ作る
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')) latin++;
+            } else if (c >= 0x3040 && c <= 0x30FF || c >= 0x31F0 && c <= 0x31FF || c >= 0xFF66 && c <= 0xFF9F) {
+                kana++;       // ひらがな・カタカナ・半角カナ
+            } else if (c >= 0xAC00 && c <= 0xD7AF || c >= 0x1100 && c <= 0x11FF || c >= 0x3130 && c <= 0x318F) {
+                hangul++;
+            } else if (c >= 0x4E00 && c <= 0x9FFF || c >= 0x3400 && c <= 0x4DBF) {
+                han++;
+            } else if (c >= 0x00C0 && c <= 0x024F) {
+                latin++;      // アクセント付きのラテン文字。どの言語らしいかの手がかりにもなる
+                if (scores == null) scores = new int[LATIN_CODES.length];
+                accentHint(c, scores);
+            } else if (c >= 0x0E00 && c <= 0x0E7F) {
+                thai++;
+            } else if (c >= 0x0400 && c <= 0x04FF) {
+                cyrillic++;
+            } else if (c >= 0x0600 && c <= 0x06FF) {
+                arabic++;
+            } else if (c >= 0x0900 && c <= 0x097F) {
+                devanagari++;
+            } else if (c >= 0xFF21 && c <= 0xFF5A) {
+                kana++;       // 全角英字は日本語の入力で打たれることがほとんど
+            }
+        }
+
+        if (kana > 0) return "ja";
+        if (hangul > 0) return "ko";
+        if (thai > 0) return "th";
+        if (cyrillic > 0) return "ru";
+        if (arabic > 0) return "ar";
+        if (devanagari > 0) return "hi";
+        if (han > 0 && han >= latin) return cjkDefault();
+        if (latin < 2) return defaultLanguage;
+        return detectLatin(text, scores == null ? new int[LATIN_CODES.length] : scores);
+    }
+
+    //漢字だけのコメントの言語。既定の言語が日本語か中国語ならそれ、そうでなければ中国語（簡体字）
+    private String cjkDefault() {
+        return defaultLanguage.equals("ja") || defaultLanguage.startsWith("zh") ? defaultLanguage : "zh-hans";
+    }
+
+    //その言語でしか（ほぼ）使わないアクセント付きの文字に点を付ける
+    private static void accentHint(char c, int[] scores) {
+        switch (Character.toLowerCase(c)) {
+            case 'ñ': scores[ES] += 2; break;
+            case 'ã': case 'õ': scores[PT] += 2; break;
+            case 'ç': scores[PT]++; scores[FR]++; break;
+            case 'ß': case 'ä': case 'ö': case 'ü': scores[DE] += 2; break;
+            case 'è': case 'ê': case 'à': case 'ù': case 'œ': case 'â': case 'î': case 'ô': scores[FR]++; break;
+            default: break;
+        }
+    }
+
+    //ラテン文字の本文を単語に分け、単語の表と笑いの表現（wkwk, jaja, kkk, haha）で点を付ける
+    private String detectLatin(String text, int[] scores) {
+        int start = -1;
+        boolean onlyW = true; // 「www」は日本語の笑いなので言語の手がかりにしない
+        boolean anyWord = false;
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            boolean letter = Character.isLetter(c) || c == '\'';
+            if (letter) {
+                if (start < 0) {
+                    start = i;
+                    onlyW = true;
+                }
+                if (c != 'w' && c != 'W') onlyW = false;
+                continue;
+            }
+            if (start >= 0) {
+                if (!onlyW) {
+                    anyWord = true;
+                    scoreWord(text.substring(start, i).toLowerCase(), scores);
+                }
+                start = -1;
+            }
+        }
+        if (!anyWord) return defaultLanguage;
+
+        int best = EN;
+        for (int language = 1; language < scores.length; language++) {
+            if (scores[language] > scores[best]) best = language;
+        }
+        return LATIN_CODES[best];
+    }
+
+    private static void scoreWord(String word, int[] scores) {
+        Integer language = FUNCTION_WORDS.get(word);
+        if (language != null) {
+            scores[language]++;
+        } else if (word.startsWith("wkwk")) {
+            scores[ID] += 2;
+        } else if (word.startsWith("jaja")) {
+            scores[ES] += 2;
+        } else if (word.startsWith("kkk")) {
+            scores[PT] += 2;
+        } else if (word.startsWith("haha")) {
+            scores[EN]++;
+        }
+    }
+}
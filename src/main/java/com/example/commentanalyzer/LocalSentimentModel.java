@@ -0,0 +1,340 @@
+package com.example.commentanalyzer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+
+ //Azureのスコアから学習する、手元で動く小さな感情分析モデル
+ //
+ //本文を文字の1〜3文字の並び（n-gram）に分け、それぞれをハッシュで 2^16 個の箱のどれかに割り当てる（feature hashing）。
+ //スコアは「箱の重みの合計」をtanhで -1〜1 に収めたもの（線形モデル）。
+ //単語に区切らないので、日本語でも英語でも同じやり方で扱える。
+ //重みは float 65536個 = 256KB なので、ファイルもそのくらいの大きさで、1件の採点は数マイクロ秒で終わる。
+ //
+ //学習はSentimentTrainingLogに貯めたAzureのスコアを使い、二乗誤差を小さくするように
+ //1件ずつ重みを少し動かす（確率的勾配降下法）のを数周くり返す。
+ //本文のハッシュで決まる一部（既定10%）は学習に使わず、評価（Azureとの一致率）用に取っておく
+public class LocalSentimentModel {
+
+    public static final String DEFAULT_DATA_PATH = "training/sentiment_pairs.tsv";
+    public static final String DEFAULT_MODEL_PATH = "models/sentiment.model";
+
+    private static final int MAGIC = 0x5954534D; // "YTSM"
+    private static final int VERSION = 1;
+    private static final int HASH_BITS = 16;
+    private static final int HASH_SIZE = 1 << HASH_BITS;
+    private static final int MAX_NGRAM = 3;
+    // ポジティブ・ネガティブの境目（CSVの件数と同じ基準）
+    private static final double LABEL_THRESHOLD = 0.3;
+    private static final double LEARNING_RATE = 0.1;
+    private static final double L2 = 1e-6;
+
+    private final float[] weights;
+    private float bias;
+    private long trainedExamples;
+    private final int holdoutPercent;
+
+    private LocalSentimentModel(float[] weights, float bias, long trainedExamples, int holdoutPercent) {
+        this.weights = weights;
+        this.bias = bias;
+        this.trainedExamples = trainedExamples;
+        this.holdoutPercent = holdoutPercent;
+    }
+
+    public long trainedExamples() {
+        return trainedExamples;
+    }
+
+    public int holdoutPercent() {
+        return holdoutPercent;
+    }
+
+
+    //学習データの1件
+    public static class Example {
+        public final String channelId;
+        public final String language;
+        public final float score;
+        public final String text;
+
+        Example(String channelId, String language, float score, String text) {
+            this.channelId = channelId;
+            this.language = language;
+            this.score = score;
+            this.text = text;
+        }
+    }
+
+
+    //評価の結果（Azureのスコアとの比べ方をいくつか）
+    public static class Evaluation {
+        public int count;
+        public double meanAbsoluteError;
+        public double correlation;      // ピアソンの相関係数
+        public double labelAgreement;   // ポジティブ/中立/ネガティブの判定が一致した割合
+        public final int[][] confusion = new int[3][3]; // [Azureのラベル][モデルのラベル]（0: ネガティブ, 1: 中立, 2: ポジティブ）
+        // カスケード（CascadeScorer）の閾値ごとの、手元で確定する件数とそのうちAzureとラベルが一致した件数
+        public final double[] thresholds = {0.5, 0.6, 0.7, 0.8, 0.9};
+        public final int[] accepted = new int[thresholds.length];
+        public final int[] acceptedAgreed = new int[thresholds.length];
+    }
+
+
+    //---- 採点 ----
+
+    //本文のスコア（-1.0〜1.0）
+    public double predict(String text) {
+        int[] features = features(text);
+        if (features.length == 0) return Math.tanh(bias);
+        double scale = 1.0 / Math.sqrt(features.length);
+        return Math.tanh(bias + dot(features, scale));
+    }
+
+    private double dot(int[] features, double scale) {
+        double sum = 0.0;
+        for (int feature : features) {
+            // 上位ビットを符号に使う（別のn-gramと同じ箱になっても、打ち消し合って偏りにくい）
+            float weight = weights[feature & (HASH_SIZE - 1)];
+            sum += feature < 0 ? -weight : weight;
+        }
+        return sum * scale;
+    }
+
+    //本文を正規化して、1〜3文字のn-gramのハッシュの配列にする（先頭・末尾の印も付けて区切りを覚えさせる）
+    static int[] features(String text) {
+        String normalized = normalize(text);
+        int length = normalized.length();
+        if (length == 0) return new int[0];
+        int[] features = new int[length * MAX_NGRAM];
+        int count = 0;
+        for (int start = -1; start < length; start++) {
+            int hash = 0x811C9DC5;
+            for (int n = 1; n <= MAX_NGRAM && start + n <= length; n++) {
+                int index = start + n - 1;
+                char c = index < 0 ? '\u0002' : normalized.charAt(index); // 先頭の印
+                hash = (hash ^ c) * 0x01000193;
+                if (start < 0 && n == 1) continue; // 印だけのn-gramは使わない
+                features[count++] = mix(hash + n);
+            }
+        }
+        return count == features.length ? features : java.util.Arrays.copyOf(features, count);
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    //全角・半角をそろえ（NFKC）、小文字にし、空白をまとめ、3文字以上続く同じ文字は2文字にする（「すごーーーい」「!!!!」）
+    static String normalize(String text) {
+        String folded = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase();
+        StringBuilder builder = new StringBuilder(folded.length());
+        char previous = 0;
+        int run = 0;
+        for (int i = 0; i < folded.length(); i++) {
+            char c = folded.charAt(i);
+            if (Character.isWhitespace(c)) {
+                if (builder.length() == 0 || previous == ' ') continue;
+                c = ' ';
+            }
+            run = c == previous ? run + 1 : 1;
+            previous = c;
+            if (run <= 2) builder.append(c);
+        }
+        int end = builder.length();
+        while (end > 0 && builder.charAt(end - 1) == ' ') end--;
+        builder.setLength(end);
+        return builder.toString();
+    }
+
+
+    //---- 学習 ----
+
+    //評価用に取っておく1件か。本文のハッシュで決めるので、学習と評価で同じ分け方になる
+    public static boolean isHoldout(String text, int holdoutPercent) {
+        return Math.floorMod(mix(text.hashCode()), 100) < holdoutPercent;
+    }
+
+    //学習データのうち評価用でない分で学習する。epochsは全データを何周するか
+    public static LocalSentimentModel train(List<Example> examples, int epochs, int holdoutPercent) {
+        LocalSentimentModel model = new LocalSentimentModel(new float[HASH_SIZE], 0f, 0, holdoutPercent);
+        List<int[]> featureList = new ArrayList<>();
+        List<Float> targets = new ArrayList<>();
+        for (Example example : examples) {
+            if (isHoldout(example.text, holdoutPercent)) continue;
+            featureList.add(features(example.text));
+            targets.add(example.score);
+        }
+        int count = featureList.size();
+        int[] order = new int[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+        Random random = new Random(42); // 毎回同じ結果になるよう、並べ替えの乱数は固定
+        for (int epoch = 0; epoch < epochs; epoch++) {
+            // 同じ順番で見せ続けると最後の方のデータに引っ張られるので、周ごとに並べ替える
+            for (int i = count - 1; i > 0; i--) {
+                int j = random.nextInt(i + 1);
+                int swap = order[i];
+                order[i] = order[j];
+                order[j] = swap;
+            }
+            // 周を重ねるごとに動かす幅を小さくして、最後は落ち着かせる
+            double rate = LEARNING_RATE / (1 + epoch);
+            for (int i : order) {
+                model.update(featureList.get(i), targets.get(i), rate);
+            }
+        }
+        model.trainedExamples = count;
+        return model;
+    }
+
+    //1件分、二乗誤差 (tanh(z) - y)^2 が小さくなる向きに重みを動かす
+    private void update(int[] features, double target, double rate) {
+        double scale = features.length == 0 ? 0.0 : 1.0 / Math.sqrt(features.length);
+        double prediction = Math.tanh(bias + dot(features, scale));
+        double gradient = (prediction - target) * (1.0 - prediction * prediction);
+        bias -= (float) (rate * gradient);
+        for (int feature : features) {
+            int index = feature & (HASH_SIZE - 1);
+            double sign = feature < 0 ? -1.0 : 1.0;
+            weights[index] -= (float) (rate * (gradient * scale * sign + L2 * weights[index]));
+        }
+    }
+
+
+    //---- 評価 ----
+
+    //評価用に取っておいた分で、モデルのスコアをAzureのスコアと比べる
+    public Evaluation evaluate(List<Example> examples) {
+        Evaluation evaluation = new Evaluation();
+        double absoluteErrorSum = 0.0;
+        double sumX = 0.0, sumY = 0.0, sumXX = 0.0, sumYY = 0.0, sumXY = 0.0;
+        int agreed = 0;
+        for (Example example : examples) {
+            if (!isHoldout(example.text, holdoutPercent)) continue;
+            double predicted = predict(example.text);
+            double actual = example.score;
+            evaluation.count++;
+            absoluteErrorSum += Math.abs(predicted - actual);
+            sumX += predicted;
+            sumY += actual;
+            sumXX += predicted * predicted;
+            sumYY += actual * actual;
+            sumXY += predicted * actual;
+            int actualLabel = label(actual);
+            int predictedLabel = label(predicted);
+            evaluation.confusion[actualLabel][predictedLabel]++;
+            if (actualLabel == predictedLabel) agreed++;
+            for (int t = 0; t < evaluation.thresholds.length; t++) {
+                if (Math.abs(predicted) < evaluation.thresholds[t]) continue;
+                evaluation.accepted[t]++;
+                if (actualLabel == predictedLabel) evaluation.acceptedAgreed[t]++;
+            }
+        }
+        int n = evaluation.count;
+        if (n == 0) return evaluation;
+        evaluation.meanAbsoluteError = absoluteErrorSum / n;
+        evaluation.labelAgreement = (double) agreed / n;
+        double varianceX = sumXX - sumX * sumX / n;
+        double varianceY = sumYY - sumY * sumY / n;
+        evaluation.correlation = varianceX > 0 && varianceY > 0
+                ? (sumXY - sumX * sumY / n) / Math.sqrt(varianceX * varianceY) : 0.0;
+        return evaluation;
+    }
+
+    //0: ネガティブ, 1: 中立, 2: ポジティブ
+    public static int label(double score) {
+        if (score > LABEL_THRESHOLD) return 2;
+        if (score < -LABEL_THRESHOLD) return 0;
+        return 1;
+    }
+
+
+    //---- ファイル ----
+
+    //学習データを読む。channelIdを指定したらそのチャンネルの分だけ。壊れた行は飛ばす
+    public static List<Example> readTrainingData(Path path, String channelId) throws IOException {
+        List<Example> examples = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length < 4 || fields[3].isEmpty()) continue;
+                if (channelId != null && !channelId.equals(fields[0])) continue;
+                try {
+                    examples.add(new Example(fields[0], fields[1], Float.parseFloat(fields[2]), fields[3]));
+                } catch (NumberFormatException e) {
+                    // 書きかけの行など
+                }
+            }
+        }
+        return examples;
+    }
+
+    public void save(Path path) throws IOException {
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(HASH_BITS);
+            out.writeInt(holdoutPercent);
+            out.writeLong(trainedExamples);
+            out.writeFloat(bias);
+            for (float weight : weights) {
+                out.writeFloat(weight);
+            }
+        }
+        // 書き終わってから置き換えるので、読み込み中のプロセスが書きかけのファイルを見ることはない
+        Files.move(temporary, path, java.nio.file.StandardCopyOption.REPLACE_EXISTING,
+                java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static LocalSentimentModel load(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != HASH_BITS) {
+                throw new IOException("感情分析モデルのファイルではありません: " + path);
+            }
+            int holdoutPercent = in.readInt();
+            long trainedExamples = in.readLong();
+            float bias = in.readFloat();
+            float[] weights = new float[HASH_SIZE];
+            for (int i = 0; i < HASH_SIZE; i++) {
+                weights[i] = in.readFloat();
+            }
+            return new LocalSentimentModel(weights, bias, trainedExamples, holdoutPercent);
+        }
+    }
+
+    //環境変数 LOCAL_MODEL のファイル（省略時は models/sentiment.model）があれば読む。なければnull
+    public static LocalSentimentModel fromEnvironment() {
+        String value = System.getenv("LOCAL_MODEL");
+        if ("off".equalsIgnoreCase(value)) return null;
+        Path path = Path.of(value == null || value.isBlank() ? DEFAULT_MODEL_PATH : value);
+        if (!Files.exists(path)) return null;
+        try {
+            LocalSentimentModel model = load(path);
+            System.out.println("ローカル感情分析モデル: " + path + "（学習 " + model.trainedExamples + "件）");
+            return model;
+        } catch (IOException e) {
+            System.err.println("ローカル感情分析モデルを読めませんでした: " + e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.commentanalyzer;
+
+
+ //ライブチャットのメッセージの種類。CommentStoreには文字列ではなく1バイトのコードで保存する
+ //"text"や"superchat"という同じ文字列をコメントごとに持たなくてよくなる。
+ //YouTube APIのsnippet.type（"textMessageEvent"など）の全種類に対応させ、
+ //以前のように「[newSponsorEvent]」という文字列にして捨てることはしない
+public enum MessageType {
+    //           コード       ラベル               APIのtype                        チャット  有料
+    TEXT((byte) 0, "text", "textMessageEvent", true, false),
+    SUPERCHAT((byte) 1, "superchat", "superChatEvent", true, true),
+    OTHER((byte) 2, "other", null, false, false),
+    SUPER_STICKER((byte) 3, "supersticker", "superStickerEvent", true, true),
+    NEW_SPONSOR((byte) 4, "newsponsor", "newSponsorEvent", false, false),
+    MEMBER_MILESTONE((byte) 5, "milestone", "memberMilestoneChatEvent", true, false),
+    MEMBERSHIP_GIFTING((byte) 6, "gifting", "membershipGiftingEvent", false, false),
+    GIFT_MEMBERSHIP_RECEIVED((byte) 7, "giftreceived", "giftMembershipReceivedEvent", false, false),
+    MESSAGE_DELETED((byte) 8, "deleted", "messageDeletedEvent", false, false),
+    USER_BANNED((byte) 9, "banned", "userBannedEvent", false, false),
+    POLL((byte) 10, "poll", "pollEvent", false, false),
+    SPONSOR_ONLY_MODE_STARTED((byte) 11, "sponsoronlystart", "sponsorOnlyModeStartedEvent", false, false),
+    SPONSOR_ONLY_MODE_ENDED((byte) 12, "sponsoronlyend", "sponsorOnlyModeEndedEvent", false, false),
+    CHAT_ENDED((byte) 13, "chatended", "chatEndedEvent", false, false),
+    TOMBSTONE((byte) 14, "tombstone", "tombstone", false, false);
+
+    // values()は呼ぶたびに配列をコピーするので、コード→enumの変換用に1回だけ作っておく
+    private static final MessageType[] BY_CODE = values();
+    public static final int COUNT = BY_CODE.length;
+
+    public final byte code;
+    public final String label;
+    public final String apiType;
+    // 視聴者のチャット発言かどうか（コメント数・投稿者集計・削除/BANの対象になる）
+    public final boolean chatMessage;
+    // 金額を伴うかどうか（スパチャ・スーパーステッカー）
+    public final boolean paid;
+
+    MessageType(byte code, String label, String apiType, boolean chatMessage, boolean paid) {
+        this.code = code;
+        this.label = label;
+        this.apiType = apiType;
+        this.chatMessage = chatMessage;
+        this.paid = paid;
+    }
+
+    public static MessageType fromCode(byte code) {
+        return BY_CODE[code];
+    }
+
+    //APIのsnippet.typeから種類を求める。知らない種類はOTHER
+    public static MessageType fromApiType(String apiType) {
+        for (MessageType type : BY_CODE) {
+            if (type.apiType != null && type.apiType.equals(apiType)) return type;
+        }
+        return OTHER;
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.commentanalyzer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.example.commentanalyzer.IntegratedYouTubeSentimentAnalyzer.CommentData;
+
+
+ //感情分析待ちのコメントの列（優先度つき）
+ //以前は全部のコメントを1本の列に届いた順に並べていたので、コメントが殺到するとスパチャも普通のコメントの
+ //後ろで待たされ、古いコメントはバケットがハイライト検出に渡された後でやっと採点されていた。
+ //ここでは優先度ごとに3本の列を持ち、いつも上の列から取り出す:
+ //  0. スパチャ・スーパーステッカー（編集でいちばん見たいもの）
+ //  1. メンバーのコメント・メンバー継続メッセージ
+ //  2. 普通のコメント
+ //同じ列の中は届いた順 = 締め切り（deadlineMillis、バケットごとに決まる）の早い順になっているので、
+ //締め切りを過ぎたコメントは列の先頭から取り出せる（takeExpired）。
+ //締め切りを過ぎた分をどうするか（手元のモデルで代わりに採点するか諦めるか）は呼び出し側が決める。
+ //有料メッセージは締め切りを過ぎても取り出さない（必ずAzureで採点する）
+public class ScoringQueue {
+
+    public static final int PAID = 0;
+    public static final int MEMBER = 1;
+    public static final int NORMAL = 2;
+    private static final String[] LABELS = {"スパチャ", "メンバー", "通常"};
+
+    // 優先度（PAID・MEMBER・NORMAL）を添字にした列
+    private final List<ArrayDeque<CommentData>> queues = List.of(new ArrayDeque<>(), new ArrayDeque<>(), new ArrayDeque<>());
+    // 優先度ごとの、列に入ってからAzureのスコアが付くまでの時間（ミリ秒）の合計・最大・件数
+    private final long[] waitSum = new long[3];
+    private final long[] waitMax = new long[3];
+    private final long[] scoredCount = new long[3];
+
+    public static int priorityOf(CommentData comment) {
+        if (comment.messageType.paid) return PAID;
+        if (comment.member || comment.messageType == MessageType.MEMBER_MILESTONE) return MEMBER;
+        return NORMAL;
+    }
+
+    public void add(CommentData comment) {
+        comment.queuedAtMillis = System.currentTimeMillis();
+        queues.get(priorityOf(comment)).addLast(comment);
+    }
+
+    public int size() {
+        return queues.get(PAID).size() + queues.get(MEMBER).size() + queues.get(NORMAL).size();
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    //普通のコメントより先に送りたいもの（スパチャ・メンバー）の件数
+    public int priorityCount() {
+        return queues.get(PAID).size() + queues.get(MEMBER).size();
+    }
+
+    //優先度の高い列から順に、取り消されていないコメントを最大max件取り出す（取り消されたものは捨てる）
+    public List<CommentData> takeBatch(int max) {
+        List<CommentData> batch = new ArrayList<>(max);
+        for (int priority = PAID; priority <= NORMAL && batch.size() < max; priority++) {
+            ArrayDeque<CommentData> queue = queues.get(priority);
+            while (!queue.isEmpty() && batch.size() < max) {
+                CommentData comment = queue.pollFirst();
+                if (comment.retracted) continue;
+                batch.add(comment);
+            }
+        }
+        return batch;
+    }
+
+    //送れなかったバッチを元の列の先頭に（元の順番のまま）戻す
+    public void returnBatch(List<CommentData> batch) {
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            CommentData comment = batch.get(i);
+            queues.get(priorityOf(comment)).addFirst(comment);
+        }
+    }
+
+    //締め切りがnowMillis以前のコメントを、メンバーと普通の列の先頭から取り出す（取り消されたものは捨てる）
+    public List<CommentData> takeExpired(long nowMillis) {
+        List<CommentData> expired = new ArrayList<>();
+        for (int priority = MEMBER; priority <= NORMAL; priority++) {
+            ArrayDeque<CommentData> queue = queues.get(priority);
+            while (!queue.isEmpty() && queue.peekFirst().deadlineMillis <= nowMillis) {
+                CommentData comment = queue.pollFirst();
+                if (!comment.retracted) expired.add(comment);
+            }
+        }
+        return expired;
+    }
+
+    //分析待ちのコメントに取り消しの印を付ける（Azureに送らないようにする）。見つかればtrue
+    public boolean markRetracted(int row) {
+        for (ArrayDeque<CommentData> queue : queues) {
+            for (CommentData comment : queue) {
+                if (comment.row == row) {
+                    comment.retracted = true;
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    //取り出したコメントにスコアが付いた時に呼ぶ（列に入ってからの時間を優先度ごとに数える）
+    public void scored(CommentData comment) {
+        int priority = priorityOf(comment);
+        long millis = System.currentTimeMillis() - comment.queuedAtMillis;
+        waitSum[priority] += millis;
+        waitMax[priority] = Math.max(waitMax[priority], millis);
+        scoredCount[priority]++;
+    }
+
+    //優先度ごとの待ち時間
+    public String summary() {
+        StringBuilder builder = new StringBuilder("採点までの待ち時間:");
+        String separator = " ";
+        for (int priority = PAID; priority <= NORMAL; priority++) {
+            if (scoredCount[priority] <= 0) continue;
+            builder.append(separator);
+            separator = " / ";
+            builder.append(String.format("%s 平均 %.1f秒・最大 %.1f秒（%d件）", LABELS[priority],
+                    waitSum[priority] / 1000.0 / scoredCount[priority], waitMax[priority] / 1000.0, scoredCount[priority]));
+        }
+        return builder.toString();
+    }
+}
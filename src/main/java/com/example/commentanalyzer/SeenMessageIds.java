@@ -0,0 +1,107 @@
+package com.example.commentanalyzer;
+
+import java.util.Arrays;
+
+
+ //取り込み済みのメッセージIDを覚えておき、同じメッセージを2回取り込まないようにするクラス
+ //取得エラーの後の再試行やページトークンの取り直しで同じページがもう一度届くと、
+ //以前はバケットで二重に数え、Azureにも2回送っていた。
+ //
+ //IDの文字列は持たず、64ビットのハッシュ値だけをlong配列の表（オープンアドレス法）に入れる。
+ //表は「今の世代」と「1つ前の世代」の2枚だけで、今の世代が一杯になるか WINDOW_MILLIS たったら
+ //古い方を空にして入れ替える。何日続く配信でもメモリは 2枚 × 65536 × 8バイト = 1MB のまま。
+ //覚えているのは少なくとも直近 min(WINDOW_MILLIS, GENERATION_CAPACITY件) の分で、
+ //再取得で届く重複はせいぜい数分前のものなので十分足りる。
+ //64ビットのハッシュが別のIDとたまたま一致する確率は、10万件覚えていても1件あたり約10^-14なので無視する
+public class SeenMessageIds {
+
+    private static final int TABLE_SIZE = 1 << 16;
+    private static final int TABLE_MASK = TABLE_SIZE - 1;
+    // 1世代に入れる件数の上限。表の半分までにしておくと、探す時に数回見るだけで空きに当たる
+    private static final int GENERATION_CAPACITY = TABLE_SIZE / 2;
+    // 世代を入れ替える間隔（投稿時刻で数える）
+    private static final long WINDOW_MILLIS = 10 * 60 * 1000L;
+    // 0は空きの印に使うので、ハッシュ値が0になったIDはこの値として扱う
+    private static final long ZERO_REPLACEMENT = 1L;
+
+    private long[] current = new long[TABLE_SIZE];
+    private long[] previous = new long[TABLE_SIZE];
+    private int currentCount = 0;
+    private long generationStartMillis = Long.MIN_VALUE;
+    private long latestMillis = Long.MIN_VALUE;
+    private long duplicates = 0;
+
+    //初めて見るIDならtrueを返して覚える。取り込み済みならfalse
+    //publishedAtMillisは世代を入れ替える時期を決めるのに使う（時刻が前後しても、それまでの最大値で数える）
+    public synchronized boolean add(String messageId, long publishedAtMillis) {
+        long hash = hash(messageId);
+        if (contains(current, hash) || contains(previous, hash)) {
+            duplicates++;
+            return false;
+        }
+        latestMillis = Math.max(latestMillis, publishedAtMillis);
+        if (generationStartMillis == Long.MIN_VALUE) {
+            generationStartMillis = latestMillis;
+        }
+        if (currentCount >= GENERATION_CAPACITY || latestMillis - generationStartMillis >= WINDOW_MILLIS) {
+            rotate();
+        }
+        insert(current, hash);
+        currentCount++;
+        return true;
+    }
+
+    public synchronized long duplicateCount() {
+        return duplicates;
+    }
+
+    public synchronized String summary() {
+        return "重複して届いたメッセージ " + duplicates + "件を除外";
+    }
+
+
+    //古い世代を空にして、新しい世代として使う（配列は作り直さない）
+    private void rotate() {
+        long[] emptied = previous;
+        Arrays.fill(emptied, 0L);
+        previous = current;
+        current = emptied;
+        currentCount = 0;
+        generationStartMillis = latestMillis;
+    }
+
+    //線形探索: ハッシュの下位ビットの位置から順に見て、同じ値か空き（0）に当たるまで進む
+    private static boolean contains(long[] table, long hash) {
+        int slot = (int) hash & TABLE_MASK;
+        while (true) {
+            long value = table[slot];
+            if (value == hash) return true;
+            if (value == 0L) return false;
+            slot = (slot + 1) & TABLE_MASK;
+        }
+    }
+
+    private static void insert(long[] table, long hash) {
+        int slot = (int) hash & TABLE_MASK;
+        while (table[slot] != 0L) {
+            slot = (slot + 1) & TABLE_MASK;
+        }
+        table[slot] = hash;
+    }
+
+    //FNV-1a（64ビット）で文字列をハッシュし、最後にビットをよく混ぜる（splitmix64の仕上げ処理）
+    //メッセージIDは先頭が似た文字列が多いので、混ぜないと下位ビットが偏って表の同じ場所に固まる
+    private static long hash(String messageId) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < messageId.length(); i++) {
+            h ^= messageId.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 30;
+        h *= 0xbf58476d1ce4e5b9L;
+        h ^= h >>> 27;
+        h *= 0x94d049bb133111ebL;
+        h ^= h >>> 31;
+        return h == 0L ? ZERO_REPLACEMENT : h;
+    }
+}
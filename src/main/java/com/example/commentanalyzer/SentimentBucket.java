@@ -0,0 +1,213 @@
+package com.example.commentanalyzer;
+
+
+ //10秒間隔1つ分の集計値を表すクラス
+ //コメントが届くたび・感情スコアが付くたびに少しずつ足し込んでいくので
+ //バケットを閉じる時にコメントリストを見直す必要がない
+public class SentimentBucket {
+    public static final int BUCKET_SECONDS = 10;
+    // スパチャの重み付けの単位（円）。1000円ごとに通常コメント1件分の重みが加わる
+    public static final double SUPERCHAT_WEIGHT_UNIT = 1000.0;
+
+    public final long index;        // 配信開始からのバケット番号（StreamClock.bucketIndex）
+    public final long startMillis;  // バケット開始時刻（エポックミリ秒）
+    public int commentCount;     // このバケットに届いたコメント数（未分析も含む）
+    public int queuedCount;      // 感情分析に回したコメント数（本文のないスパチャなどは含まない）
+    public int analyzedCount;    // 感情スコアが付いたコメント数
+    public int superchatCount;   // スーパーチャット数
+    public int positiveCount;
+    public int negativeCount;
+    public double scoreSum;      // 分析済みスコアの合計（平均 = scoreSum / analyzedCount）
+    public double weightedScoreSum; // 金額で重み付けしたスコアの合計
+    public double weightSum;        // 重みの合計（加重平均 = weightedScoreSum / weightSum）
+    public double revenue;          // スパチャ売上（円換算）
+    public int retractedCount;      // 削除・BANで取り消されたコメント数
+    public int filteredCount;       // スパム・連投として感情分析から除外したコメント数
+    // 種類ごとのイベント数（添字はMessageType.code）。メンバー加入やギフトなど感情分析しないものも数える
+    public final int[] eventCounts = new int[MessageType.COUNT];
+    // サンプリング時の平均の推定用（添字はMessageType.code）。セッション終了時の集計でだけ埋める
+    //   population: 分析対象になりえたコメント数（分析した分 + サンプリングで選ばれなかった分）
+    //   sampled/sampleSum/sampleSumSq: 実際に分析したコメントの件数・スコアの合計・2乗の合計
+    public final int[] population = new int[MessageType.COUNT];
+    public final int[] sampled = new int[MessageType.COUNT];
+    public final double[] sampleSum = new double[MessageType.COUNT];
+    public final double[] sampleSumSq = new double[MessageType.COUNT];
+
+    // 95%信頼区間の係数（正規分布の両側2.5%点）
+    private static final double Z_95 = 1.96;
+
+
+    //標本から推定した平均感情スコアと95%信頼区間
+    public static class Estimate {
+        public final double mean;
+        public final double low;
+        public final double high;
+        public final int sampled;
+        public final int population;
+
+        Estimate(double mean, double halfWidth, int sampled, int population) {
+            this.mean = mean;
+            this.low = Math.max(-1.0, mean - halfWidth);
+            this.high = Math.min(1.0, mean + halfWidth);
+            this.sampled = sampled;
+            this.population = population;
+        }
+    }
+
+    public SentimentBucket(long index, long startMillis) {
+        this.index = index;
+        this.startMillis = startMillis;
+    }
+
+    public long endMillis() {
+        return startMillis + BUCKET_SECONDS * 1000L;
+    }
+
+    //スパチャの金額から感情スコアの重みを決める。通常コメントは1、1万円のスパチャなら11
+    public static double weightFor(double amount) {
+        return 1.0 + amount / SUPERCHAT_WEIGHT_UNIT;
+    }
+
+    public void addComment(boolean superchat, double amount) {
+        commentCount++;
+        if (superchat) superchatCount++;
+        revenue += amount;
+    }
+
+    //種類ごとのイベント数を数える（感情分析しないイベントはこれだけで済む）
+    public void addEvent(MessageType type) {
+        eventCounts[type.code]++;
+    }
+
+    public int eventCount(MessageType type) {
+        return eventCounts[type.code];
+    }
+
+    //削除・BANされたコメントをコメント数から除く。売上は支払い済みなので残す
+    public void retract(boolean superchat) {
+        commentCount--;
+        retractedCount++;
+        if (superchat) superchatCount--;
+    }
+
+    //感情分析待ちだったコメントが取り消された時に呼ぶ
+    public void unqueue() {
+        queuedCount--;
+    }
+
+    public void addScore(double score, double weight) {
+        analyzedCount++;
+        scoreSum += score;
+        weightedScoreSum += score * weight;
+        weightSum += weight;
+        if (score > 0.3) positiveCount++;
+        if (score < -0.3) negativeCount++;
+    }
+
+    //分析済みのコメントが取り消された時に、そのスコアを集計から引く
+    public void removeScore(double score, double weight) {
+        analyzedCount--;
+        queuedCount--;
+        scoreSum -= score;
+        weightedScoreSum -= score * weight;
+        weightSum -= weight;
+        if (score > 0.3) positiveCount--;
+        if (score < -0.3) negativeCount--;
+    }
+
+    //別スレッドで集計した同じ時間帯のバケットを足し合わせる（並列集計の結果をまとめる時に使う）
+    public void merge(SentimentBucket other) {
+        commentCount += other.commentCount;
+        queuedCount += other.queuedCount;
+        analyzedCount += other.analyzedCount;
+        superchatCount += other.superchatCount;
+        positiveCount += other.positiveCount;
+        negativeCount += other.negativeCount;
+        scoreSum += other.scoreSum;
+        weightedScoreSum += other.weightedScoreSum;
+        weightSum += other.weightSum;
+        revenue += other.revenue;
+        retractedCount += other.retractedCount;
+        filteredCount += other.filteredCount;
+        for (int i = 0; i < eventCounts.length; i++) {
+            eventCounts[i] += other.eventCounts[i];
+            population[i] += other.population[i];
+            sampled[i] += other.sampled[i];
+            sampleSum[i] += other.sampleSum[i];
+            sampleSumSq[i] += other.sampleSumSq[i];
+        }
+    }
+
+    //分析対象になりえたコメントを1件数える。scoreがNaNならサンプリングで選ばれなかったもの
+    public void addToPopulation(MessageType type, double score) {
+        population[type.code]++;
+        if (!Double.isNaN(score)) {
+            sampled[type.code]++;
+            sampleSum[type.code] += score;
+            sampleSumSq[type.code] += score * score;
+        }
+    }
+
+
+    //平均感情スコアを推定する
+    //stratified=falseならバケット全体を1つの無作為標本として扱い、trueなら種類ごとの層の平均を件数の比率で合わせる
+    //分散には有限母集団修正 (1 - n/N) をかけるので、全件分析していれば区間の幅は0になる
+    public Estimate estimate(boolean stratified) {
+        int totalPopulation = 0;
+        int totalSampled = 0;
+        double sum = 0.0;
+        double sumSq = 0.0;
+        for (int i = 0; i < population.length; i++) {
+            if (sampled[i] == 0) continue; // 1件も分析できなかった層は推定から外す
+            totalPopulation += population[i];
+            totalSampled += sampled[i];
+            sum += sampleSum[i];
+            sumSq += sampleSumSq[i];
+        }
+        if (totalSampled == 0) return new Estimate(0.0, 0.0, 0, totalPopulation);
+        // 標本が1件しかない層の分散の代わりに使う、バケット全体の標本分散
+        double pooledVariance = sampleVariance(totalSampled, sum, sumSq);
+
+        if (!stratified) {
+            double mean = sum / totalSampled;
+            double variance = (1.0 - (double) totalSampled / totalPopulation) * pooledVariance / totalSampled;
+            return new Estimate(mean, Z_95 * Math.sqrt(variance), totalSampled, totalPopulation);
+        }
+
+        double mean = 0.0;
+        double variance = 0.0;
+        for (int i = 0; i < population.length; i++) {
+            if (sampled[i] == 0) continue;
+            double weight = (double) population[i] / totalPopulation;
+            double stratumVariance = sampled[i] > 1 ? sampleVariance(sampled[i], sampleSum[i], sampleSumSq[i]) : pooledVariance;
+            mean += weight * sampleSum[i] / sampled[i];
+            variance += weight * weight * (1.0 - (double) sampled[i] / population[i]) * stratumVariance / sampled[i];
+        }
+        return new Estimate(mean, Z_95 * Math.sqrt(variance), totalSampled, totalPopulation);
+    }
+
+    //不偏標本分散（n-1で割る）
+    private static double sampleVariance(int n, double sum, double sumSq) {
+        if (n < 2) return 0.0;
+        return Math.max(0.0, (sumSq - sum * sum / n) / (n - 1));
+    }
+
+    //感情分析に回したことを記録する（スコアが揃うまでバケットを閉じないようにするため）
+    public void markQueued() {
+        queuedCount++;
+    }
+
+    //感情分析に回したのにまだスコアが付いていないコメントの数。0になればバケットを閉じてよい
+    public int pendingCount() {
+        return queuedCount - analyzedCount;
+    }
+
+    public double averageScore() {
+        return analyzedCount == 0 ? 0.0 : scoreSum / analyzedCount;
+    }
+
+    //スパチャの金額で重み付けした平均スコア
+    public double weightedAverageScore() {
+        return weightSum == 0.0 ? 0.0 : weightedScoreSum / weightSum;
+    }
+}
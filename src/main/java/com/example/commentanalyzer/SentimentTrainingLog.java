@@ -0,0 +1,71 @@
+package com.example.commentanalyzer;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+
+ //Azureが付けたスコアを、手元のモデル（LocalSentimentModel）の学習データとして書き足していくファイル
+ //1行1件のタブ区切り: チャンネルID, 言語, スコア, 本文
+ //以前はAzureのスコアを終了時に捨てていたが、1件ごとにお金を払って得たラベルなので貯めておく。
+ //セッションをまたいで同じファイルに追記する（よく見るチャンネルほどデータが増える）
+ //同じプロセスで分析する配信すべてで1つを共有する（SharedClients.trainingLog()）
+public class SentimentTrainingLog implements Closeable {
+
+    private final BufferedWriter writer;
+    private final Path path;
+
+    public SentimentTrainingLog(Path path) throws IOException {
+        this.path = path;
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        this.writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    //環境変数 TRAINING_DATA のファイル（省略時は training/sentiment_pairs.tsv、"off" なら書かない）を開く
+    //クラスタで動かす時の既定はノードごとの training/sentiment_pairs-<ノードID>.tsv（別のプロセスと同じファイルに書くと行が混ざる）
+    //開けなければnull（分析そのものは続ける）
+    public static SentimentTrainingLog fromEnvironment() {
+        String value = System.getenv("TRAINING_DATA");
+        if ("off".equalsIgnoreCase(value)) return null;
+        Path path = Path.of(value == null || value.isBlank()
+                ? ClusterNode.pathForNode(LocalSentimentModel.DEFAULT_DATA_PATH) : value);
+        try {
+            return new SentimentTrainingLog(path);
+        } catch (IOException e) {
+            System.err.println("学習データファイルを開けませんでした: " + e.getMessage());
+            return null;
+        }
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    //1件書く。タブと改行は区切りと紛らわしいので空白にする
+    public synchronized void append(String channelId, String language, double score, String text) throws IOException {
+        writer.write(channelId == null ? "-" : channelId);
+        writer.write('\t');
+        writer.write(language == null ? "-" : language);
+        writer.write('\t');
+        writer.write(String.format("%.4f", score));
+        writer.write('\t');
+        writer.write(text.replace('\t', ' ').replace('\n', ' ').replace('\r', ' '));
+        writer.write('\n');
+    }
+
+    public synchronized void flush() throws IOException {
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.close();
+    }
+}
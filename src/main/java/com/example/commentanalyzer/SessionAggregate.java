@@ -0,0 +1,147 @@
+package com.example.commentanalyzer;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+
+ //セッション終了時の集計結果（10秒バケット・ラベル別件数）
+ //投稿者ごとの集計はコメントが届くたびにAuthorIndexが更新しているので、ここでは持たない
+ //CommentStoreの行を範囲ごとに分けて別々のスレッドで集計し、最後に足し合わせる。
+ //どの値も「足し算で合体できる」形（件数と合計）で持っているので、分け方に関係なく同じ結果になる
+public class SessionAggregate {
+
+    public final TreeMap<Long, SentimentBucket> buckets = new TreeMap<>();
+    public long analyzedCount;
+    public long positiveCount;
+    public long negativeCount;
+    public double scoreSum;
+    public double revenue;        // スパチャ売上（円換算）
+    public long superchatCount;
+
+    private SessionAggregate() {
+    }
+
+    public long neutralCount() {
+        return analyzedCount - positiveCount - negativeCount;
+    }
+
+    public double averageScore() {
+        return analyzedCount == 0 ? 0.0 : scoreSum / analyzedCount;
+    }
+
+
+    //ストアの全行をForkJoinPool（共通プール）で並列に集計する
+    //コア数が多いほど速く終わる。ストアの行数はこの時点のsize()で固定する
+    public static SessionAggregate compute(CommentStore store, StreamClock clock) {
+        int size = store.size();
+        int parallelism = ForkJoinPool.commonPool().getParallelism();
+        // 1タスクが担当する最小の行数。細かく分けすぎるとバケットの合体の方が重くなるので
+        // コア数の2倍程度のタスクに分かれる大きさにする
+        int threshold = Math.max(CommentStore.CHUNK_SIZE, (size + parallelism * 2 - 1) / (parallelism * 2));
+        return ForkJoinPool.commonPool().invoke(new Task(store, clock, 0, size, threshold));
+    }
+
+
+     //[from, to) の範囲の行を集計するタスク
+     //範囲が大きければ半分に分けて片方をfork（別スレッドに任せる）し、もう片方を自分で処理する
+     //RecursiveTaskはSerializableだが、このタスクは同じJVMの中でしか使わない（直列化しない）ので直列化の警告は出さない
+    @SuppressWarnings("serial")
+    private static class Task extends RecursiveTask<SessionAggregate> {
+        private final CommentStore store;
+        private final StreamClock clock;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        Task(CommentStore store, StreamClock clock, int from, int to, int threshold) {
+            this.store = store;
+            this.clock = clock;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected SessionAggregate compute() {
+            if (to - from <= threshold) {
+                return computeDirectly();
+            }
+            int middle = (from + to) >>> 1;
+            Task left = new Task(store, clock, from, middle, threshold);
+            Task right = new Task(store, clock, middle, to, threshold);
+            left.fork();
+            SessionAggregate rightResult = right.compute();
+            SessionAggregate leftResult = left.join();
+            leftResult.merge(rightResult);
+            return leftResult;
+        }
+
+        //分割しない範囲はプリミティブ配列を1回なめるだけのループで集計する
+        private SessionAggregate computeDirectly() {
+            SessionAggregate result = new SessionAggregate();
+            SentimentBucket current = null;
+            for (int row = from; row < to; row++) {
+                long index = clock.bucketIndex(store.publishedAt(row));
+                // コメントはほぼ時間順に並んでいるので、直前と同じバケットならTreeMapを引かずに済む
+                if (current == null || current.index != index) {
+                    current = result.buckets.computeIfAbsent(index, k -> new SentimentBucket(k, clock.bucketStartMillis(k)));
+                }
+
+                MessageType type = store.type(row);
+                current.addEvent(type);
+                // メンバー加入・削除などのイベントは種類ごとの件数だけ数える
+                if (!type.chatMessage) continue;
+
+                // 売上は取り消されても支払い済みなので数える
+                float amount = store.amount(row);
+                result.revenue += amount;
+                if (store.isRetracted(row)) {
+                    current.revenue += amount;
+                    current.retractedCount++;
+                    continue;
+                }
+
+                // スパチャ数は感情分析の有無に関係なく数える（本文のないスパチャもあるため）
+                current.addComment(type.paid, amount);
+                if (type.paid) result.superchatCount++;
+                if (store.isFiltered(row)) current.filteredCount++;
+
+                float score = store.score(row);
+                // 分析した分とサンプリングで選ばれなかった分が、平均を推定する時の母集団になる
+                if (!Float.isNaN(score) || store.isSampledOut(row)) {
+                    current.addToPopulation(type, score);
+                }
+                if (Float.isNaN(score)) continue; // 未分析をスキップ
+
+                result.analyzedCount++;
+                result.scoreSum += score;
+                if (score > 0.3) result.positiveCount++;
+                else if (score < -0.3) result.negativeCount++;
+
+                current.addScore(score, SentimentBucket.weightFor(amount));
+            }
+            return result;
+        }
+    }
+
+
+    //別の範囲の集計結果を自分に足し合わせる
+    private void merge(SessionAggregate other) {
+        analyzedCount += other.analyzedCount;
+        positiveCount += other.positiveCount;
+        negativeCount += other.negativeCount;
+        scoreSum += other.scoreSum;
+        revenue += other.revenue;
+        superchatCount += other.superchatCount;
+        for (Map.Entry<Long, SentimentBucket> entry : other.buckets.entrySet()) {
+            SentimentBucket mine = buckets.get(entry.getKey());
+            if (mine == null) {
+                buckets.put(entry.getKey(), entry.getValue());
+            } else {
+                mine.merge(entry.getValue());
+            }
+        }
+    }
+}
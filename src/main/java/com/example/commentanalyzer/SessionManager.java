@@ -0,0 +1,258 @@
+package com.example.commentanalyzer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import com.google.api.services.youtube.YouTube;
+
+
+ //1つのプロセスで複数の配信の分析（セッション）を動かし、始める・止める・一覧する・様子を見るを受け持つクラス
+ //以前は1つのJVMで1配信だけで、配信ごとにプロセスを起動していた。
+ //ここではセッションごとに IntegratedYouTubeSentimentAnalyzer を作り、決まった数のスレッド（SESSION_WORKERS、既定8）で動かす。
+ //スレッドが全部使われている時に始めたセッションは「待機中」になり、どれかが終わると順に始まる。
+ //YouTubeのクライアント・AzureのHttpClient・使用量の帳簿・裏方のスレッドはSharedClientsのものを全セッションで共有する。
+ //セッションごとの上限:
+ //  ・APIの使用量（Azureのレコード・YouTubeのユニット）。上限に近づいた時の節約はCostLedgerと同じ
+ //  ・Azureへの同時リクエストは1本（ライブ分析は1回ずつ結果を待つ）なので、1つの配信がAzureを占有することはない
+ //REST APIの窓口（ControlServer）とチャンネル監視（ChannelWatcher）から使う
+public class SessionManager {
+
+    public static final int DEFAULT_WORKERS = 8;
+    // 一覧に残しておく終わったセッションの数（古いものから消す。出力ファイルは消さない）
+    private static final int FINISHED_HISTORY = 100;
+    // 止める時に、ワーカースレッドが自分で終了処理を終えるのを待つ時間（全セッション合わせて）
+    private static final long FINALIZE_WAIT_MILLIS = 30_000;
+
+    public enum State {
+        QUEUED("待機中"), RUNNING("分析中"), FINISHING("終了処理中"), FINISHED("終了");
+
+        public final String label;
+
+        State(String label) {
+            this.label = label;
+        }
+    }
+
+    //1つのセッション。状態は分析を動かしているスレッドが書き換え、窓口のスレッドが読む
+    public static class ManagedSession {
+        public final String id;
+        public final String videoId;
+        public final IntegratedYouTubeSentimentAnalyzer analyzer;
+        public final long createdAtMillis = System.currentTimeMillis();
+        volatile State state = State.QUEUED;
+        volatile long startedAtMillis;
+        volatile long endedAtMillis;
+        Future<?> future;
+
+        ManagedSession(String id, String videoId, IntegratedYouTubeSentimentAnalyzer analyzer) {
+            this.id = id;
+            this.videoId = videoId;
+            this.analyzer = analyzer;
+        }
+
+        public State state() {
+            return state;
+        }
+
+        public boolean isFinished() {
+            return state == State.FINISHED;
+        }
+
+        //状態の表示用（JSONにしてそのまま返す）
+        public Map<String, Object> describe() {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("id", id);
+            status.put("state", state.name().toLowerCase());
+            status.put("stateLabel", state.label);
+            status.put("createdAt", createdAtMillis);
+            status.put("startedAt", startedAtMillis == 0 ? null : startedAtMillis);
+            status.put("endedAt", endedAtMillis == 0 ? null : endedAtMillis);
+            status.putAll(analyzer.statusSnapshot());
+            status.put("videoId", videoId);
+            return status;
+        }
+
+        //このセッションの出力ファイル（作業ディレクトリにある、sessionBaseNameで始まるもの）
+        public List<Path> exports() throws IOException {
+            String prefix = analyzer.sessionBaseName();
+            try (Stream<Path> files = Files.list(Path.of("."))) {
+                return files.filter(path -> path.getFileName().toString().startsWith(prefix) && Files.isRegularFile(path))
+                        .map(path -> path.getFileName())
+                        .sorted()
+                        .collect(Collectors.toList());
+            }
+        }
+    }
+
+    private final YouTube youtube;
+    private final ExecutorService workers;
+    private final int workerCount;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    // セッションID → セッション（始めた順）
+    private final Map<String, ManagedSession> sessions = new LinkedHashMap<>();
+
+    public SessionManager(YouTube youtube, int workerCount) {
+        this.youtube = youtube;
+        this.workerCount = workerCount;
+        AtomicInteger threadNumber = new AtomicInteger(1);
+        this.workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "session-" + threadNumber.getAndIncrement());
+            thread.setDaemon(true); // 止める時はfinalizeAll()で終了処理をするので、これが残っていても終了してよい
+            return thread;
+        });
+    }
+
+    //環境変数 SESSION_WORKERS（同時に分析する配信の数）で作る
+    public static SessionManager fromEnvironment(YouTube youtube) {
+        int workers = DEFAULT_WORKERS;
+        String value = System.getenv("SESSION_WORKERS");
+        if (value != null && !value.isBlank()) {
+            try {
+                workers = Math.max(1, Integer.parseInt(value.trim()));
+            } catch (NumberFormatException e) {
+                System.err.println("SESSION_WORKERS が数値ではありません: " + value);
+            }
+        }
+        return new SessionManager(youtube, workers);
+    }
+
+
+    //同時に分析できる配信の数
+    public int workerCount() {
+        return workerCount;
+    }
+
+
+    //配信の分析を始める（スレッドが空いていなければ待機中になる）
+    //同じ動画をすでに分析中ならIllegalStateException。azureRecords・youtubeUnitsはこのセッションの上限（負なら既定のまま）
+    public synchronized ManagedSession start(String videoId, long azureRecords, long youtubeUnits) {
+        for (ManagedSession existing : sessions.values()) {
+            if (existing.videoId.equals(videoId) && !existing.isFinished()) {
+                throw new IllegalStateException("この動画はすでに分析中です（セッション " + existing.id + "）");
+            }
+        }
+        IntegratedYouTubeSentimentAnalyzer analyzer = new IntegratedYouTubeSentimentAnalyzer(youtube, videoId);
+        // 複数の配信の1件ごとの表示が混ざらないように、表示は要約だけにする
+        analyzer.setVerbose(false);
+        if (azureRecords >= 0 || youtubeUnits >= 0) {
+            analyzer.limitSession(Math.max(0, azureRecords), Math.max(0, youtubeUnits));
+        }
+        ManagedSession session = new ManagedSession(String.valueOf(nextId.getAndIncrement()), videoId, analyzer);
+        sessions.put(session.id, session);
+        session.future = workers.submit(() -> run(session));
+        removeOldFinished();
+        return session;
+    }
+
+    //セッションを動かす（ワーカースレッドで）。チャットが閉じるか止められたら終了処理までする
+    private void run(ManagedSession session) {
+        session.startedAtMillis = System.currentTimeMillis();
+        session.state = State.RUNNING;
+        System.out.println("セッション " + session.id + " を開始します: " + session.videoId);
+        try {
+            session.analyzer.startLiveChatAnalysis(session.videoId);
+        } finally {
+            session.state = State.FINISHING;
+            session.analyzer.finalizePendingAnalysis();
+            session.endedAtMillis = System.currentTimeMillis();
+            session.state = State.FINISHED;
+            System.out.println("セッション " + session.id + " を終了しました: " + session.videoId);
+        }
+    }
+
+    //止める。分析中ならポーリングをやめさせて終了処理に進ませ、待機中ならそのまま終わらせる
+    public synchronized boolean stop(String id) {
+        ManagedSession session = sessions.get(id);
+        if (session == null) return false;
+        if (session.state == State.QUEUED && session.future.cancel(false)) {
+            // まだ始まっていなければ、始めずに終わらせる（出力ファイルも作らない）
+            session.endedAtMillis = System.currentTimeMillis();
+            session.state = State.FINISHED;
+            return true;
+        }
+        session.analyzer.requestStop();
+        return true;
+    }
+
+    public synchronized ManagedSession get(String id) {
+        return sessions.get(id);
+    }
+
+    public synchronized List<ManagedSession> list() {
+        return new ArrayList<>(sessions.values());
+    }
+
+    //終わるまで待つ
+    public void await(ManagedSession session) throws InterruptedException {
+        try {
+            session.future.get();
+        } catch (ExecutionException e) {
+            System.err.println("セッション " + session.id + " のエラー: " + e.getCause());
+        } catch (CancellationException e) {
+            // 始まる前に止められた
+        }
+    }
+
+    //プロセスを終える前に、分析中・待機中のセッションすべての終了処理をする（シャットダウンフックから呼ぶ）
+    //分析中のものは止めるように頼み、ワーカースレッドが自分で終了処理（run()のfinally）を終えるのを待つ。
+    //ここで直接finalizePendingAnalysisを呼ぶと、まだポーリング中のワーカースレッドと同時に
+    //列やストアを触ってしまう（どちらもスレッドセーフではない）ので、待っても終わらなかった分だけここで出力する
+    public void finalizeAll() {
+        List<ManagedSession> running = new ArrayList<>();
+        for (ManagedSession session : list()) {
+            if (session.state == State.QUEUED && session.future.cancel(false)) {
+                session.endedAtMillis = System.currentTimeMillis();
+                session.state = State.FINISHED;
+                continue;
+            }
+            if (session.isFinished()) continue;
+            session.analyzer.requestStop();
+            running.add(session);
+        }
+        long deadline = System.currentTimeMillis() + FINALIZE_WAIT_MILLIS;
+        for (ManagedSession session : running) {
+            try {
+                session.future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                continue;
+            } catch (TimeoutException e) {
+                System.err.println("セッション " + session.id + " が止まらないので、このまま終了処理をします");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | CancellationException e) {
+                // run()のfinallyで終了処理まで済んでいる
+                continue;
+            }
+            session.analyzer.finalizePendingAnalysis();
+        }
+    }
+
+    private void removeOldFinished() {
+        int finished = 0;
+        for (ManagedSession session : sessions.values()) {
+            if (session.isFinished()) finished++;
+        }
+        Iterator<ManagedSession> iterator = sessions.values().iterator();
+        while (finished > FINISHED_HISTORY && iterator.hasNext()) {
+            if (iterator.next().isFinished()) {
+                iterator.remove();
+                finished--;
+            }
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.example.commentanalyzer;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.javanet.NetHttpTransport;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+
+ //アプリ全体で1つずつだけ作って使い回すクライアント類
+ //HTTPの接続（TCP + TLSのハンドシェイク）は作るのに数百ミリ秒かかるので、
+ //クライアントを使い回して接続を張ったままにしておけば、ポーリングやAzureの呼び出しのたびに払わずに済む。
+ //配信を何本も同時に分析する場合も、ここにある1つの接続プールを共有する
+public final class SharedClients {
+
+    // Azureへの接続を張ったままにしておく時間（秒）。JDKの既定は短く、コメントが少ない配信だと
+    // 分析の間隔が空いて接続が切れ、次の呼び出しで接続し直すことになる
+    private static final String KEEP_ALIVE_SECONDS = "600";
+
+    private static HttpTransport youtubeTransport;
+    private static HttpClient azureHttpClient;
+    private static ScheduledExecutorService maintenanceExecutor;
+    private static CostLedger costLedger;
+    private static SentimentTrainingLog trainingLog;
+    private static boolean trainingLogOpened = false;
+    // ObjectMapperは設定を変えなければ複数スレッドから同時に使ってよい
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private SharedClients() {
+    }
+
+    //YouTube API用のHTTPトランスポート（中身はHttpURLConnectionで、接続はJDKがkeep-aliveで使い回す）
+    //GoogleNetHttpTransport.newTrustedTransport()はライブラリ同梱の証明書ストアを読み込むのに
+    //0.5秒以上かかる（起動時間の大半だった）ので、JDK標準の証明書ストア（cacerts）を使う。
+    //GoogleのルートCAはcacertsにも入っている
+    public static synchronized HttpTransport youtubeTransport() {
+        if (youtubeTransport == null) {
+            youtubeTransport = new NetHttpTransport();
+        }
+        return youtubeTransport;
+    }
+
+    //Azure用のHttpClient。HTTP/2なら1本の接続で複数のリクエストを同時に流せる（アーカイブ分析の並列送信もこの1本に乗る）
+    public static synchronized HttpClient azureHttpClient() {
+        if (azureHttpClient == null) {
+            // この設定はHttpClientのクラスが初めて使われる時に読まれるので、作る前に入れておく
+            if (System.getProperty("jdk.httpclient.keepalive.timeout") == null) {
+                System.setProperty("jdk.httpclient.keepalive.timeout", KEEP_ALIVE_SECONDS);
+            }
+            azureHttpClient = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .connectTimeout(Duration.ofSeconds(10))
+                    .build();
+        }
+        return azureHttpClient;
+    }
+
+    public static ObjectMapper objectMapper() {
+        return OBJECT_MAPPER;
+    }
+
+    //APIの使用量の帳簿。日ごとの合計と上限は、同時に分析する配信すべてで共有する
+    public static synchronized CostLedger costLedger() {
+        if (costLedger == null) {
+            costLedger = CostLedger.fromEnvironment();
+        }
+        return costLedger;
+    }
+
+    //学習データのファイル（TRAINING_DATA=off や開けなかった時はnull）
+    //セッションごとに別のBufferedWriterで同じファイルに書くと、バッファがあふれた所で行の途中から書き出され、
+    //別のセッションの行と混ざって壊れる。1つだけ開いて、1行ずつ同期して書く
+    public static synchronized SentimentTrainingLog trainingLog() {
+        if (!trainingLogOpened) {
+            trainingLog = SentimentTrainingLog.fromEnvironment();
+            trainingLogOpened = true;
+        }
+        return trainingLog;
+    }
+
+    //トークンの更新など、裏で定期的に行う処理用のスレッド（1本だけ）
+    //デーモンスレッドなので、これが動いていてもプログラムの終了は妨げない
+    public static synchronized ScheduledExecutorService maintenanceExecutor() {
+        if (maintenanceExecutor == null) {
+            maintenanceExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "client-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return maintenanceExecutor;
+    }
+}
@@ -0,0 +1,185 @@
+package com.example.commentanalyzer;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+
+
+ //感情分析の前に荒らし・連投・コピペの洪水をはじくフィルタ
+ //  1. 投稿者ごとの投稿ペース（トークンバケット）: 短時間に連投しすぎた分を除外
+ //  2. 似た文章の検出（SimHash）: 同じ人の同じ文の繰り返し、大勢による同じ文のコピペを除外
+ //どちらも固定サイズの配列だけで動くので、配信が何時間続いてもメモリ使用量は変わらない。
+ //除外したコメントはAzureに送らない（費用がかからず、バケットの平均も歪まない）
+public class SpamFilter {
+
+    //判定結果
+    public enum Verdict { PASS, RATE_LIMITED, REPEATED, FLOOD }
+
+    // ---- 投稿ペース（トークンバケット） ----
+    // 1人あたり最大6件まで連続で投稿でき、その後は2秒に1件のペースまで
+    private static final float BUCKET_CAPACITY = 6.0f;
+    private static final long REFILL_MILLIS = 2000;
+    // 投稿者の状態を入れる表の大きさ（2のべき乗）。投稿者番号の下位ビットで場所を決め、
+    // 別の投稿者とぶつかったら状態を作り直す（その人のペースを少し甘く見るだけで害はない）
+    private static final int RATE_TABLE_SIZE = 1 << 13;
+
+    private final int[] rateOwner = new int[RATE_TABLE_SIZE];
+    private final float[] rateTokens = new float[RATE_TABLE_SIZE];
+    private final long[] rateLastMillis = new long[RATE_TABLE_SIZE];
+
+    // ---- 似た文章（SimHash） ----
+    // 直近512件のSimHashを輪っか状の配列（リングバッファ）に覚えておく
+    private static final int RECENT_SIZE = 512;
+    // 60秒以内の似た文章だけを比べる
+    private static final long DUPLICATE_WINDOW_MILLIS = 60_000;
+    // 64ビット中、違うビットがこの数以下なら「ほぼ同じ文」とみなす
+    private static final int MAX_HAMMING_DISTANCE = 3;
+    // 別々の人が同じ文をこの件数より多く投稿したら洪水とみなす
+    private static final int FLOOD_THRESHOLD = 5;
+    // これより短い文（「草」「888」など）は大勢が同じ反応をするのが普通なので、洪水判定の対象外
+    private static final int MIN_FLOOD_LENGTH = 6;
+
+    private final long[] recentHash = new long[RECENT_SIZE];
+    private final long[] recentMillis = new long[RECENT_SIZE];
+    private final int[] recentAuthor = new int[RECENT_SIZE];
+    private final int[] recentCount = new int[RECENT_SIZE];
+    private int recentNext = 0;
+    private int recentFilled = 0;
+
+    // ---- 除外件数のカウンター ----
+    private long passed;
+    private long rateLimited;
+    private long repeated;
+    private long flood;
+
+    public SpamFilter() {
+        Arrays.fill(rateOwner, -1);
+    }
+
+
+    //1件のコメントを判定する。PASS以外なら感情分析に回さない
+    public synchronized Verdict check(int authorId, long publishedAtMillis, String text) {
+        Verdict verdict = checkRate(authorId, publishedAtMillis);
+        if (verdict == Verdict.PASS) {
+            verdict = checkDuplicate(authorId, publishedAtMillis, normalize(text));
+        }
+        switch (verdict) {
+            case RATE_LIMITED: rateLimited++; break;
+            case REPEATED: repeated++; break;
+            case FLOOD: flood++; break;
+            default: passed++;
+        }
+        return verdict;
+    }
+
+
+    //トークンバケット: 投稿するたびにトークンを1つ使い、時間がたつと少しずつ補充される
+    //トークンがなければ投稿ペースが速すぎる
+    private Verdict checkRate(int authorId, long now) {
+        int slot = authorId & (RATE_TABLE_SIZE - 1);
+        if (rateOwner[slot] != authorId) {
+            rateOwner[slot] = authorId;
+            rateTokens[slot] = BUCKET_CAPACITY;
+            rateLastMillis[slot] = now;
+        }
+        long elapsed = Math.max(0, now - rateLastMillis[slot]);
+        rateTokens[slot] = Math.min(BUCKET_CAPACITY, rateTokens[slot] + (float) elapsed / REFILL_MILLIS);
+        rateLastMillis[slot] = Math.max(rateLastMillis[slot], now);
+        if (rateTokens[slot] < 1.0f) {
+            return Verdict.RATE_LIMITED;
+        }
+        rateTokens[slot] -= 1.0f;
+        return Verdict.PASS;
+    }
+
+
+    //直近の文章と比べて、似た文があるかどうかを調べる
+    //似た文が見つかったら: 同じ人ならREPEATED、別の人でも一定数を超えたらFLOOD
+    private Verdict checkDuplicate(int authorId, long now, String normalized) {
+        if (normalized.isEmpty()) return Verdict.PASS;
+        long hash = simHash(normalized);
+
+        for (int i = 0; i < recentFilled; i++) {
+            if (now - recentMillis[i] > DUPLICATE_WINDOW_MILLIS) continue;
+            if (Long.bitCount(hash ^ recentHash[i]) > MAX_HAMMING_DISTANCE) continue;
+
+            recentMillis[i] = now;
+            if (recentAuthor[i] == authorId) {
+                return Verdict.REPEATED;
+            }
+            recentAuthor[i] = authorId;
+            recentCount[i]++;
+            if (normalized.length() >= MIN_FLOOD_LENGTH && recentCount[i] > FLOOD_THRESHOLD) {
+                return Verdict.FLOOD;
+            }
+            return Verdict.PASS;
+        }
+
+        // 似た文がなければリングバッファに追加（いっぱいなら一番古いものを上書き）
+        recentHash[recentNext] = hash;
+        recentMillis[recentNext] = now;
+        recentAuthor[recentNext] = authorId;
+        recentCount[recentNext] = 1;
+        recentNext = (recentNext + 1) % RECENT_SIZE;
+        recentFilled = Math.min(recentFilled + 1, RECENT_SIZE);
+        return Verdict.PASS;
+    }
+
+
+    //比較用に文章をそろえる: 全角/半角をそろえ（NFKC）、小文字にし、空白と記号を除く
+    //さらに同じ文字の3回以上の繰り返しは2回に縮める（「wwwwww」と「wwww」を同じ文とみなすため）
+    static String normalize(String text) {
+        String nfkc = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase();
+        StringBuilder sb = new StringBuilder(nfkc.length());
+        for (int i = 0; i < nfkc.length(); i++) {
+            char c = nfkc.charAt(i);
+            if (!Character.isLetterOrDigit(c)) continue;
+            int length = sb.length();
+            if (length >= 2 && sb.charAt(length - 1) == c && sb.charAt(length - 2) == c) continue;
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
+
+    //SimHash: 文章を3文字ずつの断片（3-gram）に分け、各断片のハッシュの各ビットで多数決を取った64ビット値
+    //文章が少し違うだけなら、結果のビットもほとんど同じになる（普通のハッシュは1文字違うと全く別の値になる）
+    static long simHash(String s) {
+        int[] votes = new int[64];
+        int gramLength = Math.min(3, s.length());
+        for (int i = 0; i + gramLength <= s.length(); i++) {
+            long h = 0;
+            for (int j = i; j < i + gramLength; j++) {
+                h = h * 31 + s.charAt(j);
+            }
+            h = mix(h);
+            for (int bit = 0; bit < 64; bit++) {
+                votes[bit] += ((h >>> bit) & 1L) != 0 ? 1 : -1;
+            }
+        }
+        long result = 0;
+        for (int bit = 0; bit < 64; bit++) {
+            if (votes[bit] > 0) result |= 1L << bit;
+        }
+        return result;
+    }
+
+    //ビットをよく混ぜるための関数（MurmurHash3の仕上げ処理）
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+
+    public synchronized long filteredCount() {
+        return rateLimited + repeated + flood;
+    }
+
+    public synchronized String summary() {
+        return String.format("通過 %d件 / 連投 %d件 / 同じ文の繰り返し %d件 / コピペ洪水 %d件",
+                passed, rateLimited, repeated, flood);
+    }
+}
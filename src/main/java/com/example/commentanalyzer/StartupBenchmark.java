@@ -0,0 +1,76 @@
+package com.example.commentanalyzer;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+ //AppCDSアーカイブのあり・なしで起動時間を比べる（mvn package -Pappcds の最後に実行される）
+ //  java -cp <jar> com.example.commentanalyzer.StartupBenchmark <jar> <アーカイブ> [回数]
+ //それぞれの設定で --cds-training を別プロセスとして何回か起動し、終了までの時間の中央値を表示する。
+ //1回目はOSのファイルキャッシュの影響が大きいので、どちらも1回捨ててから測る
+public class StartupBenchmark {
+
+    private static final int DEFAULT_RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("使い方: StartupBenchmark <jar> <アーカイブ(.jsa)> [回数]");
+            System.exit(2);
+        }
+        Path jar = Paths.get(args[0]);
+        Path archive = Paths.get(args[1]);
+        int runs = args.length >= 3 ? Integer.parseInt(args[2]) : DEFAULT_RUNS;
+        if (!Files.exists(archive)) {
+            System.err.println("アーカイブがありません: " + archive);
+            System.exit(1);
+        }
+
+        long before = medianMillis(jar, null, runs);
+        long after = medianMillis(jar, archive, runs);
+        System.out.println("起動時間（--cds-training、" + runs + "回の中央値）");
+        System.out.printf("  AppCDSなし: %5d ms%n", before);
+        System.out.printf("  AppCDSあり: %5d ms（%s）%n", after, archive.getFileName());
+        if (after > 0) {
+            System.out.printf("  %.2f倍速くなりました（%d ms短縮）%n", (double) before / after, before - after);
+        }
+    }
+
+
+    private static long medianMillis(Path jar, Path archive, int runs) throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        if (archive != null) {
+            command.add("-XX:SharedArchiveFile=" + archive);
+        }
+        command.add("-jar");
+        command.add(jar.toString());
+        command.add("--cds-training");
+
+        run(command); // 捨てる1回
+        long[] elapsed = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            elapsed[i] = run(command);
+        }
+        Arrays.sort(elapsed);
+        return elapsed[runs / 2];
+    }
+
+    //1回起動して終了までのミリ秒を返す。子プロセスの出力は捨てる
+    private static long run(List<String> command) throws Exception {
+        long started = System.nanoTime();
+        Process process = new ProcessBuilder(command)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        int exitCode = process.waitFor();
+        long elapsed = (System.nanoTime() - started) / 1_000_000;
+        if (exitCode != 0) {
+            throw new IllegalStateException("練習走行が終了コード " + exitCode + " で失敗しました: " + String.join(" ", command));
+        }
+        return elapsed;
+    }
+}
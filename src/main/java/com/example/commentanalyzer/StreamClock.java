@@ -0,0 +1,80 @@
+package com.example.commentanalyzer;
+
+import com.google.api.client.util.DateTime;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+
+ //配信の時間軸を扱うクラス
+ //コメントの時刻はYouTubeサーバーが付けたpublishedAtをエポックミリ秒（1970年からのミリ秒数、long1個）で持ち
+ //配信開始時刻（actualStartTime）からの差を10秒で割るだけでバケット番号が決まる。
+ //バケット番号 × 10秒 がそのままアーカイブ動画（VOD）の再生位置になるので、切り抜き編集でシークしやすい
+public class StreamClock {
+
+    public static final long BUCKET_MILLIS = SentimentBucket.BUCKET_SECONDS * 1000L;
+
+    private static final DateTimeFormatter WALL_CLOCK_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // 配信開始時刻（エポックミリ秒）。不明なうちは -1
+    private long streamStartMillis = -1;
+
+    //YouTube APIの日時型（DateTime）をエポックミリ秒に変換
+    public static long toEpochMillis(DateTime dateTime) {
+        return dateTime.getValue();
+    }
+
+    //配信開始時刻を設定する（VideoLiveStreamingDetails.getActualStartTime()の値）
+    public void setStreamStart(long epochMillis) {
+        this.streamStartMillis = epochMillis;
+    }
+
+    //配信開始時刻がわからない場合（開始前の待機所など）は最初のコメント時刻を10秒単位に切り捨てて基準にする
+    public void setStreamStartIfUnknown(long epochMillis) {
+        if (streamStartMillis < 0) {
+            streamStartMillis = Math.floorDiv(epochMillis, BUCKET_MILLIS) * BUCKET_MILLIS;
+            System.out.println("配信開始時刻が取得できなかったため、最初のコメント時刻を基準にします: "
+                    + formatWallClock(streamStartMillis));
+        }
+    }
+
+    public boolean hasStreamStart() {
+        return streamStartMillis >= 0;
+    }
+
+    public long streamStartMillis() {
+        return streamStartMillis;
+    }
+
+    //配信開始からの経過ミリ秒（開始前のコメントはマイナスになる）
+    public long offsetMillis(long epochMillis) {
+        return epochMillis - streamStartMillis;
+    }
+
+    //コメント時刻が属する10秒バケットの番号。整数の割り算だけで決まる
+    //floorDivはマイナス側も切り捨てる割り算（開始前コメントが0番に混ざらないように）
+    public long bucketIndex(long epochMillis) {
+        return Math.floorDiv(epochMillis - streamStartMillis, BUCKET_MILLIS);
+    }
+
+    //バケット番号からそのバケットの開始時刻（エポックミリ秒）を求める
+    public long bucketStartMillis(long bucketIndex) {
+        return streamStartMillis + bucketIndex * BUCKET_MILLIS;
+    }
+
+    //エポックミリ秒を「yyyy-MM-dd HH:mm:ss」（実行環境のタイムゾーン）に変換
+    public static String formatWallClock(long epochMillis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMillis), ZoneId.systemDefault())
+                .format(WALL_CLOCK_FORMAT);
+    }
+
+    //配信経過時間を「H:MM:SS」に変換（動画のシークバーと同じ表記）
+    public static String formatOffset(long offsetMillis) {
+        long totalSeconds = Math.floorDiv(offsetMillis, 1000L);
+        String sign = totalSeconds < 0 ? "-" : "";
+        totalSeconds = Math.abs(totalSeconds);
+        return String.format("%s%d:%02d:%02d", sign, totalSeconds / 3600, (totalSeconds / 60) % 60, totalSeconds % 60);
+    }
+}
@@ -0,0 +1,345 @@
+package com.example.commentanalyzer;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+ //全配信の10秒バケットを1か所に貯めておく、追記専用の時系列ストア
+ //配信ごとのCSVを1本ずつ開かなくても、チャンネル・動画・期間を指定して横断的に取り出せる。
+ //
+ //ディレクトリの中身
+ //  series.tsv       : 配信（シリーズ）の一覧。行番号がシリーズ番号で、チャンネルID・動画ID・タイトル・配信開始時刻を持つ
+ //  seg-000000.dat   : バケットを64バイト固定長のレコードで追記していくセグメントファイル。大きくなったら次の番号に移る
+ //  seg-000000.idx   : セグメントの疎な索引。レコード256件（以下）のブロックごとに1件、
+ //                     ブロックの位置・件数・シリーズ番号の範囲・時刻の範囲を持つ
+ //検索ではまず索引だけを読み、条件に合わないブロックは読まずに飛ばす。
+ //レコードには平均ではなく合計と件数を入れているので、1時間ごとなどにまとめ直しても平均が正確に出る
+public class TimeSeriesStore {
+
+    private static final String CATALOG_FILE = "series.tsv";
+    private static final String LOCK_FILE = "store.lock";
+    private static final int RECORD_BYTES = 64;
+    private static final int INDEX_ENTRY_BYTES = 40;
+    // 索引1件がまとめるレコード数。小さいほど細かく飛ばせるが、索引が大きくなる
+    private static final int BLOCK_RECORDS = 256;
+    // 1セグメントのレコード数の上限（64バイト × 約100万件 = 64MB）
+    private static final long SEGMENT_RECORDS = 1L << 20;
+
+    // ディレクトリごとの、同じプロセスの中で使うロック
+    // FileChannel.lock()はプロセス単位のロックなので、同じプロセスの別スレッドが同じファイルをロックしようとすると
+    // 待たずにOverlappingFileLockExceptionになる。先にこちらを取って、ファイルのロックを取りに行くのを1スレッドずつにする
+    private static final Map<Path, ReentrantLock> PROCESS_LOCKS = new ConcurrentHashMap<>();
+
+    private final Path directory;
+    private final ReentrantLock processLock;
+
+    private TimeSeriesStore(Path directory) {
+        this.directory = directory;
+        this.processLock = PROCESS_LOCKS.computeIfAbsent(directory.toAbsolutePath().normalize(), k -> new ReentrantLock());
+    }
+
+    public static TimeSeriesStore open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        return new TimeSeriesStore(directory);
+    }
+
+    public Path directory() {
+        return directory;
+    }
+
+
+    //配信1本分の情報
+    public static class Series {
+        public final int id;
+        public final String channelId;
+        public final String videoId;
+        public final String title;
+        public final long streamStartMillis;
+
+        Series(int id, String channelId, String videoId, String title, long streamStartMillis) {
+            this.id = id;
+            this.channelId = channelId;
+            this.videoId = videoId;
+            this.title = title;
+            this.streamStartMillis = streamStartMillis;
+        }
+    }
+
+    //ストアの1レコード（1配信の10秒バケット1つ）、またはそれをまとめ直したもの
+    public static class Row {
+        public int seriesId;           // まとめ直した行では-1
+        public long startMillis;
+        public int buckets = 1;        // まとめた10秒バケットの数
+        public int comments;
+        public int analyzed;
+        public int positive;
+        public int negative;
+        public int superchats;
+        public double scoreSum;
+        public double weightedScoreSum;
+        public double weightSum;
+        public double revenue;
+
+        public double mean() {
+            return analyzed == 0 ? 0.0 : scoreSum / analyzed;
+        }
+
+        public double weightedMean() {
+            return weightSum == 0.0 ? 0.0 : weightedScoreSum / weightSum;
+        }
+
+        //別の行を足し合わせる（まとめ直し用）
+        public void add(Row other) {
+            buckets += other.buckets;
+            comments += other.comments;
+            analyzed += other.analyzed;
+            positive += other.positive;
+            negative += other.negative;
+            superchats += other.superchats;
+            scoreSum += other.scoreSum;
+            weightedScoreSum += other.weightedScoreSum;
+            weightSum += other.weightSum;
+            revenue += other.revenue;
+        }
+    }
+
+
+    // ---- 書き込み ----
+
+    //配信を登録してシリーズ番号を返す。別のプロセスも同じディレクトリに書くかもしれないので、ロックを取ってから番号を決める
+    //（lockはtryを抜ける時に外すためだけの変数で、本体では使わない）
+    @SuppressWarnings("try")
+    public int registerSeries(String channelId, String videoId, String title, long streamStartMillis) throws IOException {
+        processLock.lock();
+        try (FileChannel lockChannel = openLock(); FileLock lock = lockChannel.lock()) {
+            int id = loadSeries().size();
+            try (BufferedWriter writer = Files.newBufferedWriter(directory.resolve(CATALOG_FILE), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                writer.write(clean(channelId) + "\t" + clean(videoId) + "\t" + streamStartMillis + "\t" + clean(title));
+                writer.newLine();
+            }
+            return id;
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    //タブと改行はTSVの区切りになってしまうので空白にする
+    private static String clean(String value) {
+        return value == null ? "" : value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    //1配信分のバケットを時間順に追記する。データを書いてから索引を書くので
+    //途中で落ちても索引に載っていないレコードが残るだけで、読み出しは壊れない
+    @SuppressWarnings("try")
+    public void append(int seriesId, Collection<SentimentBucket> buckets) throws IOException {
+        if (buckets.isEmpty()) return;
+        processLock.lock();
+        try (FileChannel lockChannel = openLock(); FileLock lock = lockChannel.lock()) {
+            int segment = lastSegment();
+            if (segment < 0) segment = 0;
+            Path dataPath = segmentPath(segment, ".dat");
+            long size = Files.exists(dataPath) ? Files.size(dataPath) : 0L;
+            // 途中で落ちて半端なレコードが残っていても、次のレコードは64バイトの境界から書く
+            long firstRecord = (size + RECORD_BYTES - 1) / RECORD_BYTES;
+            if (firstRecord + buckets.size() > SEGMENT_RECORDS && firstRecord > 0) {
+                segment++;
+                dataPath = segmentPath(segment, ".dat");
+                firstRecord = 0;
+            }
+
+            ByteBuffer data = ByteBuffer.allocate(buckets.size() * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer index = ByteBuffer.allocate(((buckets.size() + BLOCK_RECORDS - 1) / BLOCK_RECORDS) * INDEX_ENTRY_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            int inBlock = 0;
+            long blockFirst = firstRecord;
+            long minTime = Long.MAX_VALUE;
+            long maxTime = Long.MIN_VALUE;
+            for (SentimentBucket bucket : buckets) {
+                data.putInt(seriesId).putInt(bucket.commentCount).putLong(bucket.startMillis)
+                        .putInt(bucket.analyzedCount).putInt(bucket.positiveCount).putInt(bucket.negativeCount)
+                        .putInt(bucket.superchatCount).putDouble(bucket.scoreSum).putDouble(bucket.weightedScoreSum)
+                        .putDouble(bucket.weightSum).putDouble(bucket.revenue);
+                minTime = Math.min(minTime, bucket.startMillis);
+                maxTime = Math.max(maxTime, bucket.startMillis);
+                if (++inBlock == BLOCK_RECORDS) {
+                    putIndexEntry(index, blockFirst, inBlock, seriesId, minTime, maxTime);
+                    blockFirst += inBlock;
+                    inBlock = 0;
+                    minTime = Long.MAX_VALUE;
+                    maxTime = Long.MIN_VALUE;
+                }
+            }
+            if (inBlock > 0) {
+                putIndexEntry(index, blockFirst, inBlock, seriesId, minTime, maxTime);
+            }
+
+            try (FileChannel channel = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                writeFully(channel, data.flip(), firstRecord * RECORD_BYTES);
+                channel.force(false);
+            }
+            try (FileChannel channel = FileChannel.open(segmentPath(segment, ".idx"), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer entries = index.flip();
+                while (entries.hasRemaining()) channel.write(entries);
+            }
+        } finally {
+            processLock.unlock();
+        }
+    }
+
+    //1回の追記は1配信分なので、ブロックのシリーズ番号の範囲は最小=最大になる
+    private static void putIndexEntry(ByteBuffer index, long firstRecord, int count, int seriesId, long minTime, long maxTime) {
+        index.putLong(firstRecord).putInt(count).putInt(seriesId).putInt(seriesId).putInt(0)
+                .putLong(minTime).putLong(maxTime);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private FileChannel openLock() throws IOException {
+        return FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+
+    // ---- 読み出し ----
+
+    //登録されている配信の一覧（行番号 = シリーズ番号）
+    public List<Series> loadSeries() throws IOException {
+        List<Series> series = new ArrayList<>();
+        Path catalog = directory.resolve(CATALOG_FILE);
+        if (!Files.exists(catalog)) return series;
+        for (String line : Files.readAllLines(catalog, StandardCharsets.UTF_8)) {
+            if (line.isEmpty()) continue;
+            String[] fields = line.split("\t", 4);
+            long start = fields.length > 2 && !fields[2].isEmpty() ? Long.parseLong(fields[2]) : 0L;
+            series.add(new Series(series.size(), fields[0], fields.length > 1 ? fields[1] : "",
+                    fields.length > 3 ? fields[3] : "", start));
+        }
+        return series;
+    }
+
+    //条件に合うレコードを返す。channelId・videoIdはnullなら絞り込まない。時刻は [fromMillis, toMillis)
+    public List<Row> query(String channelId, String videoId, long fromMillis, long toMillis) throws IOException {
+        List<Row> rows = new ArrayList<>();
+        BitSet wanted = matchingSeries(channelId, videoId);
+        if (wanted.isEmpty()) return rows;
+
+        for (int segment = 0; segment <= lastSegment(); segment++) {
+            Path indexPath = segmentPath(segment, ".idx");
+            if (!Files.exists(indexPath)) continue;
+            ByteBuffer index = ByteBuffer.wrap(Files.readAllBytes(indexPath)).order(ByteOrder.LITTLE_ENDIAN);
+            try (FileChannel data = FileChannel.open(segmentPath(segment, ".dat"), StandardOpenOption.READ)) {
+                while (index.remaining() >= INDEX_ENTRY_BYTES) {
+                    long firstRecord = index.getLong();
+                    int count = index.getInt();
+                    int minSeries = index.getInt();
+                    int maxSeries = index.getInt();
+                    index.getInt();
+                    long minTime = index.getLong();
+                    long maxTime = index.getLong();
+                    // 索引だけで判定できるブロックは読まずに飛ばす
+                    if (maxTime < fromMillis || minTime >= toMillis) continue;
+                    int next = wanted.nextSetBit(minSeries);
+                    if (next < 0 || next > maxSeries) continue;
+                    readBlock(data, firstRecord, count, wanted, fromMillis, toMillis, rows);
+                }
+            }
+        }
+        rows.sort((a, b) -> a.startMillis != b.startMillis
+                ? Long.compare(a.startMillis, b.startMillis) : Integer.compare(a.seriesId, b.seriesId));
+        return rows;
+    }
+
+    //query()の結果をintervalMillisごとにまとめ直す（例: 1時間ごと・1日ごと）。複数の配信も同じ時間帯なら合算する
+    public TreeMap<Long, Row> rollup(String channelId, String videoId, long fromMillis, long toMillis, long intervalMillis) throws IOException {
+        TreeMap<Long, Row> rollup = new TreeMap<>();
+        for (Row row : query(channelId, videoId, fromMillis, toMillis)) {
+            long key = Math.floorDiv(row.startMillis, intervalMillis) * intervalMillis;
+            Row total = rollup.get(key);
+            if (total == null) {
+                row.seriesId = -1;
+                row.startMillis = key;
+                rollup.put(key, row);
+            } else {
+                total.add(row);
+            }
+        }
+        return rollup;
+    }
+
+    private BitSet matchingSeries(String channelId, String videoId) throws IOException {
+        BitSet wanted = new BitSet();
+        for (Series series : loadSeries()) {
+            if (channelId != null && !channelId.equals(series.channelId)) continue;
+            if (videoId != null && !videoId.equals(series.videoId)) continue;
+            wanted.set(series.id);
+        }
+        return wanted;
+    }
+
+    private static void readBlock(FileChannel data, long firstRecord, int count, BitSet wanted,
+                                  long fromMillis, long toMillis, List<Row> rows) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(count * RECORD_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        long position = firstRecord * RECORD_BYTES;
+        while (buffer.hasRemaining()) {
+            int read = data.read(buffer, position + buffer.position());
+            if (read < 0) return; // 索引に載っているのにデータがない（書き込み途中で落ちた）ブロックは読まない
+        }
+        buffer.flip();
+        for (int i = 0; i < count; i++) {
+            Row row = new Row();
+            row.seriesId = buffer.getInt();
+            row.comments = buffer.getInt();
+            row.startMillis = buffer.getLong();
+            row.analyzed = buffer.getInt();
+            row.positive = buffer.getInt();
+            row.negative = buffer.getInt();
+            row.superchats = buffer.getInt();
+            row.scoreSum = buffer.getDouble();
+            row.weightedScoreSum = buffer.getDouble();
+            row.weightSum = buffer.getDouble();
+            row.revenue = buffer.getDouble();
+            if (wanted.get(row.seriesId) && row.startMillis >= fromMillis && row.startMillis < toMillis) {
+                rows.add(row);
+            }
+        }
+    }
+
+
+    private Path segmentPath(int segment, String extension) {
+        return directory.resolve(String.format("seg-%06d%s", segment, extension));
+    }
+
+    //一番新しいセグメントの番号（まだなければ-1）
+    private int lastSegment() throws IOException {
+        int last = -1;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "seg-*.dat")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                last = Math.max(last, Integer.parseInt(name.substring(4, name.length() - 4)));
+            }
+        }
+        return last;
+    }
+}
@@ -1,6 +1,8 @@
 package com.example.commentanalyzer;
 
 
+import com.google.api.client.auth.oauth2.BearerToken;
+import com.google.api.client.auth.oauth2.ClientParametersAuthentication;
 import com.google.api.client.auth.oauth2.Credential;
 //認証後に得られる認証情報（トークンなど）を保持するクラス。
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
@@ -11,10 +13,10 @@ import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 //認証の流れ・フローを定義するクラス。クライアント情報・スコープ・保存先などをまとめる。
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 //client_secret.json を読み込んで、クライアントIDやシークレットを取得するためのクラス。
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-//Google APIとの通信を行うための「HTTPトランスポート」を初期化するユーティリティ。
+import com.google.api.client.googleapis.auth.oauth2.GoogleOAuthConstants;
+import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
-//HTTP通信の抽象クラス。上記の GoogleNetHttpTransport で生成される。
+//HTTP通信の抽象クラス。中身はNetHttpTransport（JDK標準の証明書ストアを使う。SharedClientsで1つだけ作って共有）。
 import com.google.api.client.json.JsonFactory;
 //JSONを読み書きするためのインターフェース。GoogleのAPIはJSONでやり取りするから必須。cdcd
 import com.google.api.client.json.gson.GsonFactory;
@@ -23,6 +25,8 @@ import com.google.api.client.util.store.FileDataStoreFactory;
 //認証トークンをローカルファイルに保存するためのクラス。再認証を避けるために使う。
 import com.google.api.services.youtube.YouTube;
 //認証後に使う「YouTube APIクライアント」。これがあればAPIを叩ける
+import com.google.api.services.youtube.YouTubeRequestInitializer;
+//全リクエストにAPIキー（key=...）を付けるためのクラス
 import com.google.api.services.youtube.YouTubeScopes;
 //YouTube APIで使える「権限（スコープ）」の一覧。今回は読み取り専用を使ってる。
 //権限付与でコメントを投稿したり、動画を投稿したりもできる。
@@ -33,12 +37,15 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 //初めにFileInputStreamクラスのコンストラクタの引数に読み込む「ファイルのパス」を指定。
 //次にInputStreamReaderクラスのコンストラクタの引数に「文字エンコードを指定」。
-import java.security.GeneralSecurityException;
-//セキュリティ関連の処理でエラーが起きたときに使う例外クラス。
-//HTTPS通信の初期化（GoogleNetHttpTransport.newTrustedTransport()）で失敗したとき
-//暗号化や証明書関連の処理で問題が起きたときに、この例外が投げられる可能性がある。
 import java.util.Collections;
 //Java のユーティリティクラスで、変更不可のコレクション（リストやセット）を作るための便利メソッドが入ってる。
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.fasterxml.jackson.databind.JsonNode;
 
 public class YouTubeAuth {
 
@@ -50,21 +57,244 @@ public class YouTubeAuth {
     //認証トークンを保存するフォルダ名。初回認証後に自動生成される。
     private static final String CLIENT_SECRETS_FILE = "/client_secret.json";
     //認証に使う秘密鍵ファイルのパス。resources フォルダに置く場合は / 付きでOK。
+    private static final long REFRESH_CHECK_SECONDS = 60;
+    //トークンの有効期限がこの秒数を切ったら、裏のスレッドで先に更新しておく
+    //（Credentialは期限切れ直前だとAPI呼び出しの中で更新するので、そのポーリングだけ遅くなる）
+    private static final long REFRESH_AHEAD_SECONDS = 300;
+    //起動時のトークン確認をこの秒数まで待つ。これを超えたら認証できないものとして止める
+    private static final long CREDENTIAL_CHECK_TIMEOUT_SECONDS = 10;
+    private static final String STORED_USER = "user";
+
+    //一度作ったクライアントを使い回す。以前は呼ぶたびにトランスポートを作り直し、認証フローも毎回走っていた
+    private static YouTube service;
+    //起動時のトークン確認（getService()で裏で始め、awaitCredentialCheck()で結果を待つ）
+    private static volatile CompletableFuture<Void> credentialCheck = CompletableFuture.completedFuture(null);
+    private static volatile boolean apiKeyAvailable;
 
     //認証を実行して、YouTube APIクライアントを返すメソッド。
-    public static YouTube getService() throws IOException, GeneralSecurityException {
-        //安全な通信を行うためのHTTPトランスポートを初期化。
-        HttpTransport httpTransport = GoogleNetHttpTransport.newTrustedTransport();
-        //認証処理を実行して、認証済みのトークン情報を取得。
-        Credential credential = authorize(httpTransport);
+    //2回目以降は同じクライアント（同じトランスポート・同じ認証情報）を返す
+    //
+    //認証情報は次の順に探し、ブラウザを開かずに済むものがあればそれを使う（ネットワークには出ないのですぐ返る）
+    //  1. YOUTUBE_TOKEN_FILE（なければ GOOGLE_APPLICATION_CREDENTIALS）が指すトークンファイル
+    //     {"client_id": ..., "client_secret": ..., "refresh_token": ...}（gcloudのauthorized_user形式と同じ）
+    //     GOOGLE_APPLICATION_CREDENTIALS はauthorized_user形式の時だけ使う（サービスアカウントの鍵なら警告して2以降へ）
+    //  2. 環境変数 YOUTUBE_REFRESH_TOKEN（クライアントIDとシークレットは YOUTUBE_CLIENT_ID / YOUTUBE_CLIENT_SECRET か client_secret.json）
+    //  3. 以前のブラウザ認証で credentials/ に保存されたトークン
+    //環境変数 YOUTUBE_API_KEY があれば全リクエストにAPIキーも付ける。公開配信のチャットはキーだけで読めるので
+    //トークンがなくても動き、トークンの確認が終わる前の動画の問い合わせもキーだけで進められる。
+    //どれもなければブラウザ認証に進むが、画面のないサーバーでは待ち続けずにすぐエラーにする
+    public static synchronized YouTube getService() throws IOException {
+        if (service != null) {
+            return service;
+        }
+        //安全な通信を行うためのHTTPトランスポート。アプリ全体で1つを共有する
+        HttpTransport httpTransport = SharedClients.youtubeTransport();
+        String apiKey = System.getenv("YOUTUBE_API_KEY");
+        apiKeyAvailable = apiKey != null && !apiKey.isBlank();
+
+        Credential credential = loadNonInteractiveCredential(httpTransport);
+        if (credential == null && !apiKeyAvailable) {
+            if (!interactiveAllowed()) {
+                throw new IOException("YouTubeの認証情報がありません。画面のない環境ではブラウザ認証ができないため、"
+                        + "YOUTUBE_TOKEN_FILE・YOUTUBE_REFRESH_TOKEN・YOUTUBE_API_KEY のどれかを設定するか、"
+                        + "画面のある端末で一度認証して credentials/ フォルダをコピーしてください。");
+            }
+            //認証処理を実行して、認証済みのトークン情報を取得。
+            credential = authorize(httpTransport);
+        }
+        if (credential != null) {
+            //トークンが本当に使えるかの確認（更新）は裏で始めておき、その間に動画の問い合わせなど他の準備を進める
+            credentialCheck = checkInBackground(credential);
+            keepTokenFresh(credential);
+        }
+
         //認証済みの YouTube クライアントを構築して返す。
-        return new YouTube.Builder(httpTransport, JSON_FACTORY, credential)
-                .setApplicationName(APPLICATION_NAME)
+        YouTube.Builder builder = new YouTube.Builder(httpTransport, JSON_FACTORY, requestInitializer(credential))
+                .setApplicationName(APPLICATION_NAME);
+        if (apiKeyAvailable) {
+            builder.setYouTubeRequestInitializer(new YouTubeRequestInitializer(apiKey));
+        }
+        service = builder.build();
+        return service;
+    }
+
+
+    //裏で始めたトークンの確認が終わるのを待つ。最初のポーリングの前に呼ぶ
+    //トークンが使えなくてもAPIキーがあれば警告だけで続け、どちらもなければIOExceptionで止める
+    public static void awaitCredentialCheck() throws IOException {
+        try {
+            credentialCheck.get(CREDENTIAL_CHECK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() instanceof CompletionException && e.getCause().getCause() != null
+                    ? e.getCause().getCause() : e.getCause();
+            credentialFailed("YouTubeの認証に失敗しました: " + cause.getMessage(), cause);
+        } catch (TimeoutException e) {
+            credentialFailed("YouTubeの認証が" + CREDENTIAL_CHECK_TIMEOUT_SECONDS + "秒以内に終わりませんでした", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("YouTubeの認証の確認中に中断されました", e);
+        }
+    }
+
+    private static void credentialFailed(String message, Throwable cause) throws IOException {
+        if (!apiKeyAvailable) {
+            throw new IOException(message, cause);
+        }
+        System.err.println(message + "（APIキーだけで続けます）");
+    }
+
+
+    //トークンを更新して使えることを確かめる。保存済みのアクセストークンがまだ十分有効なら何もしない
+    //keepTokenFreshと同じ1本のスレッドで動くので、確認中に定期更新が重なることはない
+    private static CompletableFuture<Void> checkInBackground(Credential credential) {
+        return CompletableFuture.runAsync(() -> {
+            Long expiresIn = credential.getExpiresInSeconds();
+            if (credential.getAccessToken() != null && expiresIn != null && expiresIn > REFRESH_AHEAD_SECONDS) {
+                return;
+            }
+            try {
+                // refreshToken()はリフレッシュトークンが取り消し・期限切れの時にfalseを返す
+                if (!credential.refreshToken()) {
+                    throw new IOException("リフレッシュトークンが使えません（取り消されたか期限切れです）");
+                }
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, SharedClients.maintenanceExecutor());
+    }
+
+
+    //リクエストに認証ヘッダーを付ける処理を決める
+    //APIキーもある時は、アクセストークンが揃うまでヘッダーなし（キーだけ）で送る。
+    //Credentialをそのまま使うと、トークン確認が終わるまで最初のリクエストがロック待ちになるため
+    private static HttpRequestInitializer requestInitializer(Credential credential) {
+        if (credential == null || !apiKeyAvailable) {
+            return credential;
+        }
+        return request -> {
+            credential.initialize(request);
+            request.setInterceptor(r -> {
+                if (credential.getAccessToken() != null) {
+                    credential.intercept(r);
+                }
+            });
+        };
+    }
+
+
+    //ブラウザを開かずに使える認証情報を探す（getServiceのコメントの1〜3の順）。見つからなければnull
+    private static Credential loadNonInteractiveCredential(HttpTransport httpTransport) throws IOException {
+        String tokenFile = System.getenv("YOUTUBE_TOKEN_FILE");
+        if (tokenFile != null && !tokenFile.isBlank()) {
+            JsonNode token = SharedClients.objectMapper().readTree(new java.io.File(tokenFile));
+            if (!token.hasNonNull("refresh_token")) {
+                // サービスアカウントの鍵などはYouTubeのチャンネルに紐づかないので使えない
+                throw new IOException("トークンファイルに refresh_token がありません: " + tokenFile);
+            }
+            return tokenFileCredential(httpTransport, tokenFile, token);
+        }
+
+        // GOOGLE_APPLICATION_CREDENTIALS は他のGCPのツール用にサービスアカウントの鍵を指していることが多いので、
+        // authorized_user形式（refresh_tokenあり）の時だけ使い、そうでなければ警告して次の探し方に進む
+        String applicationCredentials = System.getenv("GOOGLE_APPLICATION_CREDENTIALS");
+        if (applicationCredentials != null && !applicationCredentials.isBlank()) {
+            JsonNode token = null;
+            try {
+                token = SharedClients.objectMapper().readTree(new java.io.File(applicationCredentials));
+            } catch (IOException e) {
+                System.err.println("GOOGLE_APPLICATION_CREDENTIALS を読めませんでした（使いません）: " + e.getMessage());
+            }
+            if (token != null && "authorized_user".equals(token.path("type").asText()) && token.hasNonNull("refresh_token")) {
+                return tokenFileCredential(httpTransport, applicationCredentials, token);
+            }
+            if (token != null) {
+                System.err.println("GOOGLE_APPLICATION_CREDENTIALS は authorized_user 形式ではないので、YouTubeの認証には使いません: "
+                        + applicationCredentials);
+            }
+        }
+
+        String refreshToken = System.getenv("YOUTUBE_REFRESH_TOKEN");
+        if (refreshToken != null && !refreshToken.isBlank()) {
+            String clientId = System.getenv("YOUTUBE_CLIENT_ID");
+            String clientSecret = System.getenv("YOUTUBE_CLIENT_SECRET");
+            if (clientId == null || clientSecret == null) {
+                GoogleClientSecrets clientSecrets = loadClientSecrets();
+                clientId = clientSecrets.getDetails().getClientId();
+                clientSecret = clientSecrets.getDetails().getClientSecret();
+            }
+            System.out.println("YouTube認証: 環境変数のリフレッシュトークン");
+            return refreshTokenCredential(httpTransport, clientId, clientSecret, refreshToken);
+        }
+
+        // 保存済みトークンはフォルダがある時だけ見る（client_secret.jsonの読み込みも省ける）
+        if (new java.io.File(CREDENTIALS_FOLDER).isDirectory() && YouTubeAuth.class.getResource(CLIENT_SECRETS_FILE) != null) {
+            Credential stored = buildFlow(httpTransport, loadClientSecrets()).loadCredential(STORED_USER);
+            if (stored != null && (stored.getRefreshToken() != null || stored.getAccessToken() != null)) {
+                System.out.println("YouTube認証: 保存済みのトークン（" + CREDENTIALS_FOLDER + "/）");
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    private static Credential tokenFileCredential(HttpTransport httpTransport, String tokenFile, JsonNode token) {
+        System.out.println("YouTube認証: トークンファイル " + tokenFile);
+        return refreshTokenCredential(httpTransport,
+                token.path("client_id").asText(), token.path("client_secret").asText(),
+                token.get("refresh_token").asText());
+    }
+
+    //リフレッシュトークンだけを持ったCredentialを作る。アクセストークンは最初の確認（checkInBackground）で取る
+    private static Credential refreshTokenCredential(HttpTransport httpTransport, String clientId,
+                                                     String clientSecret, String refreshToken) {
+        Credential credential = new Credential.Builder(BearerToken.authorizationHeaderAccessMethod())
+                .setTransport(httpTransport)
+                .setJsonFactory(JSON_FACTORY)
+                .setTokenServerEncodedUrl(GoogleOAuthConstants.TOKEN_SERVER_URL)
+                .setClientAuthentication(new ClientParametersAuthentication(clientId, clientSecret))
                 .build();
+        credential.setRefreshToken(refreshToken);
+        return credential;
+    }
+
+    //ブラウザ認証をしてよいか。YOUTUBE_AUTH_INTERACTIVE=false の時や、画面のないLinux（DISPLAYがない）では待たずに諦める
+    private static boolean interactiveAllowed() {
+        if ("false".equalsIgnoreCase(System.getenv("YOUTUBE_AUTH_INTERACTIVE"))) {
+            return false;
+        }
+        if (Boolean.getBoolean("java.awt.headless")) {
+            return false;
+        }
+        boolean linux = System.getProperty("os.name", "").toLowerCase().contains("linux");
+        return !linux || System.getenv("DISPLAY") != null || System.getenv("WAYLAND_DISPLAY") != null;
+    }
+
+    //アクセストークンの期限を1分ごとに確認し、切れそうなら裏で更新する
+    //Credentialの中はロックで守られているので、ポーリング中のスレッドと同時に触っても大丈夫
+    private static void keepTokenFresh(Credential credential) {
+        SharedClients.maintenanceExecutor().scheduleWithFixedDelay(() -> {
+            try {
+                Long expiresIn = credential.getExpiresInSeconds();
+                if (credential.getRefreshToken() != null && (expiresIn == null || expiresIn <= REFRESH_AHEAD_SECONDS)) {
+                    if (credential.refreshToken()) {
+                        System.out.println("YouTubeのアクセストークンを更新しました");
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // 次の確認でもう一度試す。それでも切れたらAPI呼び出しの中でCredentialが更新する
+                System.err.println("トークン更新エラー: " + e.getMessage());
+            }
+        }, REFRESH_CHECK_SECONDS, REFRESH_CHECK_SECONDS, TimeUnit.SECONDS); // 最初の更新はcheckInBackgroundが済ませる
     }
 
     //認証処理の本体。client_secret.json を読み込んで、認証フローを構築する。
     private static Credential authorize(HttpTransport httpTransport) throws IOException {
+        GoogleAuthorizationCodeFlow flow = buildFlow(httpTransport, loadClientSecrets());
+        return new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize(STORED_USER);
+    }
+
+    //client_secret.json をクラスパスから読み込む
+    private static GoogleClientSecrets loadClientSecrets() throws IOException {
         //client_secret.json をクラスパスから読み込んでる
         InputStream inputStream = YouTubeAuth.class.getResourceAsStream(CLIENT_SECRETS_FILE);
         if (inputStream == null) {
@@ -82,9 +312,12 @@ public class YouTubeAuth {
         //これらを分けて書くとこうなる。
         //Reader reader = new InputStreamReader(inputStream);
         //GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, reader);
-        GoogleClientSecrets clientSecrets = GoogleClientSecrets.load(JSON_FACTORY, new InputStreamReader(inputStream));
+        return GoogleClientSecrets.load(JSON_FACTORY, new InputStreamReader(inputStream));
+    }
 
-        GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
+    //認証フロー。ブラウザ認証と、保存済みトークンの読み込みの両方で使う
+    private static GoogleAuthorizationCodeFlow buildFlow(HttpTransport httpTransport, GoogleClientSecrets clientSecrets) throws IOException {
+        return new GoogleAuthorizationCodeFlow.Builder(
                 httpTransport, JSON_FACTORY, clientSecrets,
                 Collections.singletonList(YouTubeScopes.YOUTUBE_READONLY))
                 .setDataStoreFactory(new FileDataStoreFactory(new java.io.File(CREDENTIALS_FOLDER)))
@@ -105,8 +338,6 @@ public class YouTubeAuth {
         //これがあると、再認証なしでAPIを使い続けられるようになる！
         //.build()
         //最後に .build() で、全部の設定をまとめて GoogleAuthorizationCodeFlow オブジェクトを完成させる。
-        
-        return new AuthorizationCodeInstalledApp(flow, new LocalServerReceiver()).authorize("user");
     }
 }
         //今まで準備してきた flow を使って実際にユーザー認証を走らせ、認証済みのクレデンシャル（資格情報）を取得する処理。
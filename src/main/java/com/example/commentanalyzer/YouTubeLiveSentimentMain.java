@@ -6,12 +6,61 @@ import com.google.api.services.youtube.YouTube;
     // YouTubeライブチャット感情分析システムのメインクラス
     // 使用方法：
     // 1. YouTube APIの認証を行う
+    //    画面のないサーバーでは YOUTUBE_TOKEN_FILE・YOUTUBE_REFRESH_TOKEN・YOUTUBE_API_KEY のどれかで
+    //    ブラウザを開かずに起動する（詳しくはYouTubeAuth.getService()）
     // 2. 分析したい動画IDを指定
     // 3. リアルタイム感情分析を開始
+    // チャンネルを見張って、ライブ配信が始まったら自動で分析する：
+    //   java ... YouTubeLiveSentimentMain --watch UC...,UC...   （省略時は環境変数 YOUTUBE_CHANNEL_IDS）
+    //   配信ごとにCSVなどを出力し、チャットが閉じたらその配信の分析を終える
+    // 複数の配信をHTTPで操作する（始める・止める・一覧・出力ファイルのダウンロード）：
+    //   java ... YouTubeLiveSentimentMain --serve   （http://127.0.0.1:8080/ 。詳しくはControlServer）
+    //   YOUTUBE_CHANNEL_IDS があれば、チャンネル監視も同じプロセスで動かす
+    //   CLUSTER_DIR（全ノードから見える共有ディレクトリ）を設定して何台（何プロセス）か起動すると、配信をノードで分け合う
+    //   （ノードが落ちたら他のノードが引き継ぐ。1台で試す時は CONTROL_PORT と作業ディレクトリをノードごとに変える。詳しくはClusterNode）
+    // 配信後のアーカイブ分析：
+    //   java ... YouTubeLiveSentimentMain --archive <チャット記録ファイル>
+    //   （このツールが書いた *_chat.jsonl か、ダウンロードしたチャットリプレイ live_chat.json）
+    // 配信を横断した検索（時系列ストア）：
+    //   java ... YouTubeLiveSentimentMain --query [channel=UC...] [video=...] [from=2024-01-01] [to=2024-02-01 18:00] [rollup=1h]
+    //   channel・videoを省略すると全配信、rollupを省略すると1時間ごと。--query series で配信の一覧
+    // ローカル感情分析モデル（貯めたAzureのスコアから学習する）：
+    //   java ... YouTubeLiveSentimentMain --train-model [channel=UC...] [epochs=5] [holdout=10] [data=...] [model=...]
+    //   java ... YouTubeLiveSentimentMain --eval-model [channel=UC...] [data=...] [model=...]
+    //   評価は学習に使わなかった分（holdout%）で、Azureのスコアとどれだけ一致するかを表示する
+    // 起動を速くする（AppCDS）：
+    //   mvn package -Pappcds でクラスのアーカイブ target/commentanalyzer.jsa を作り、scripts/start.sh で起動する
  
 public class YouTubeLiveSentimentMain {
+
+    // Ctrl+Cで止めた時に、メインスレッドが自分で終了処理を終えるのを待つ時間
+    private static final long FINALIZE_WAIT_MILLIS = 30_000;
     
     public static void main(String[] args) {
+        if (args.length >= 2 && args[0].equals("--archive")) {
+            runArchiveAnalysis(args[1]);
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("--query")) {
+            runTimeSeriesQuery(args);
+            return;
+        }
+        if (args.length >= 1 && (args[0].equals("--train-model") || args[0].equals("--eval-model"))) {
+            runLocalModel(args);
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("--cds-training")) {
+            runCdsTraining();
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("--serve")) {
+            runControlServer();
+            return;
+        }
+        if (args.length >= 1 && args[0].equals("--watch")) {
+            runChannelWatcher(args.length >= 2 ? args[1] : System.getenv("YOUTUBE_CHANNEL_IDS"));
+            return;
+        }
         try {
             // YouTube APIクライアントの初期化
             // YouTubeAuth.getService() は既存の認証メソッドを使用
@@ -31,15 +80,32 @@ public class YouTubeLiveSentimentMain {
             System.out.println("=" + "=".repeat(60));
             
             // シャットダウンフック（Ctrl+C対応）を追加
+            // ポーリング中のメインスレッドと同時に終了処理をすると、列やストアを2つのスレッドで触ってしまう
+            // （どちらもスレッドセーフではない）。止めるように頼んで、メインスレッドが自分で終了処理を終えるのを待ち、
+            // 待っても終わらなかった時だけここで出力する（SessionManager.finalizeAll()と同じ）
+            Thread mainThread = Thread.currentThread();
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
                 System.out.println("\n\n停止処理を実行中...");
-                analyzer.finalizePendingAnalysis();
+                analyzer.requestStop();
+                try {
+                    mainThread.join(FINALIZE_WAIT_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                if (mainThread.isAlive()) {
+                    System.err.println("分析が止まらないので、このまま終了処理をします");
+                    analyzer.finalizePendingAnalysis();
+                }
                 System.out.println("分析結果がCSVファイルに保存されました。");
             }));
 
             // ライブチャット感情分析を開始
-            // この処理は無限ループで、Ctrl+Cで停止するまで継続される
-            analyzer.startLiveChatAnalysis(videoId);
+            // チャットが閉じるか、Ctrl+Cで止めるように頼まれるまで継続される。どちらの場合もここで終了処理をする
+            try {
+                analyzer.startLiveChatAnalysis(videoId);
+            } finally {
+                analyzer.finalizePendingAnalysis();
+            }
             
         } catch (Exception e) {
             System.err.println("システム開始エラー: " + e.getMessage());
@@ -47,6 +113,213 @@ public class YouTubeLiveSentimentMain {
         }
     }
 
+
+    //チャンネル監視（--watch）。Ctrl+Cで止めた時は、分析中の配信の終了処理をしてから終わる
+    private static void runChannelWatcher(String channelList) {
+        if (channelList == null || channelList.isBlank()) {
+            System.err.println("監視するチャンネルIDを --watch UC...,UC... か環境変数 YOUTUBE_CHANNEL_IDS で指定してください");
+            return;
+        }
+        try {
+            YouTube youtube = YouTubeAuth.getService();
+            YouTubeAuth.awaitCredentialCheck();
+            SessionManager manager = SessionManager.fromEnvironment(youtube);
+            ChannelWatcher watcher = ChannelWatcher.create(youtube, manager, channelList);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println("\n\n停止処理を実行中...");
+                manager.finalizeAll();
+            }));
+            watcher.run();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("チャンネル監視エラー: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+
+    //HTTPの窓口で複数の配信の分析を操作する（--serve）。Ctrl+Cで止めた時は、分析中の配信の終了処理をしてから終わる
+    private static void runControlServer() {
+        try {
+            YouTube youtube = YouTubeAuth.getService();
+            YouTubeAuth.awaitCredentialCheck();
+            SessionManager manager = SessionManager.fromEnvironment(youtube);
+            ControlServer server = ControlServer.fromEnvironment(manager);
+            ClusterNode cluster = ClusterNode.fromEnvironment(manager);
+            server.setCluster(cluster);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.out.println("\n\n停止処理を実行中...");
+                // 先にリースを返して、他のノードにすぐ引き継がせてから、このノードの分を出力する
+                if (cluster != null) cluster.shutdown();
+                server.stop();
+                manager.finalizeAll();
+            }));
+            if (cluster != null) cluster.start();
+            server.start();
+            String channelList = System.getenv("YOUTUBE_CHANNEL_IDS");
+            if (channelList != null && !channelList.isBlank()) {
+                ChannelWatcher watcher = ChannelWatcher.create(youtube, manager, channelList);
+                if (cluster == null) {
+                    watcher.run();
+                } else {
+                    // 監視のリースを持っている1つのノードだけが見張る。リースを失ったら他のノードに任せて待つ
+                    watcher.setCluster(cluster);
+                    cluster.setWatching(true);
+                    while (true) {
+                        if (cluster.holdsWatcher()) watcher.run(cluster::holdsWatcher);
+                        Thread.sleep(5000);
+                    }
+                }
+            }
+            // 窓口のスレッドはデーモンなので、Ctrl+Cまでここで待つ
+            Thread.currentThread().join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.err.println("操作用HTTPサーバーのエラー: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+
+    //AppCDSアーカイブを作るための練習走行（mvn package -Pappcds から呼ばれる）
+    //失敗したら終了コードで知らせ、壊れたアーカイブを使わせないようにする
+    private static void runCdsTraining() {
+        try {
+            CdsTraining.run();
+        } catch (Exception e) {
+            System.err.println("CDS練習走行エラー: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+
+    //アーカイブ分析。YouTube APIは使わないので認証もしない
+    private static void runArchiveAnalysis(String file) {
+        try {
+            IntegratedYouTubeSentimentAnalyzer analyzer = new IntegratedYouTubeSentimentAnalyzer(null);
+            analyzer.analyzeArchive(java.nio.file.Paths.get(file));
+        } catch (Exception e) {
+            System.err.println("アーカイブ分析エラー: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+
+    //ローカル感情分析モデルの学習（--train-model）と評価（--eval-model）
+    //学習したらそのまま評価も表示する
+    private static void runLocalModel(String[] args) {
+        java.util.Map<String, String> options = parseOptions(args);
+        java.nio.file.Path data = java.nio.file.Paths.get(options.getOrDefault("data", LocalSentimentModel.DEFAULT_DATA_PATH));
+        java.nio.file.Path modelPath = java.nio.file.Paths.get(options.getOrDefault("model", LocalSentimentModel.DEFAULT_MODEL_PATH));
+        try {
+            java.util.List<LocalSentimentModel.Example> examples = LocalSentimentModel.readTrainingData(data, options.get("channel"));
+            System.out.println("学習データ: " + examples.size() + "件（" + data + "）");
+            LocalSentimentModel model;
+            if (args[0].equals("--train-model")) {
+                int epochs = Integer.parseInt(options.getOrDefault("epochs", "5"));
+                int holdout = Integer.parseInt(options.getOrDefault("holdout", "10"));
+                long started = System.nanoTime();
+                model = LocalSentimentModel.train(examples, epochs, holdout);
+                model.save(modelPath);
+                System.out.printf("学習完了: %d件 × %d周 / %.1f秒 → %s（%,dバイト）%n", model.trainedExamples(), epochs,
+                        (System.nanoTime() - started) / 1e9, modelPath, java.nio.file.Files.size(modelPath));
+            } else {
+                model = LocalSentimentModel.load(modelPath);
+            }
+
+            LocalSentimentModel.Evaluation evaluation = model.evaluate(examples);
+            if (evaluation.count == 0) {
+                System.out.println("評価用のデータがありません（学習データの " + model.holdoutPercent() + "% を評価に使います）");
+                return;
+            }
+            System.out.printf("評価（学習に使わなかった %d件、Azureのスコアと比較）%n", evaluation.count);
+            System.out.printf("  ラベル一致率: %.1f%%%n", 100.0 * evaluation.labelAgreement);
+            System.out.printf("  平均誤差: %.3f / 相関係数: %.3f%n", evaluation.meanAbsoluteError, evaluation.correlation);
+            String[] labels = {"ネガティブ", "中立", "ポジティブ"};
+            System.out.println("  Azure＼モデル  ネガティブ  中立  ポジティブ");
+            for (int i = 0; i < 3; i++) {
+                System.out.printf("  %-10s %8d %6d %8d%n", labels[i],
+                        evaluation.confusion[i][0], evaluation.confusion[i][1], evaluation.confusion[i][2]);
+            }
+            // CASCADE_THRESHOLD を決めるための表（辞書で確定する分は含まない）
+            System.out.println("  カスケードの閾値ごと: 手元で確定する割合 / そのうちAzureと一致する割合");
+            for (int t = 0; t < evaluation.thresholds.length; t++) {
+                System.out.printf("    %.1f: %5.1f%% / %5.1f%%%n", evaluation.thresholds[t],
+                        100.0 * evaluation.accepted[t] / evaluation.count,
+                        evaluation.accepted[t] == 0 ? 0.0 : 100.0 * evaluation.acceptedAgreed[t] / evaluation.accepted[t]);
+            }
+        } catch (Exception e) {
+            System.err.println("ローカルモデルのエラー: " + e.getMessage());
+        }
+    }
+
+
+    //「key=value」形式の引数を読む（=のないものは値が空文字）
+    private static java.util.Map<String, String> parseOptions(String[] args) {
+        java.util.Map<String, String> options = new java.util.HashMap<>();
+        for (int i = 1; i < args.length; i++) {
+            int eq = args[i].indexOf('=');
+            if (eq > 0) options.put(args[i].substring(0, eq), args[i].substring(eq + 1));
+            else options.put(args[i], "");
+        }
+        return options;
+    }
+
+
+    //時系列ストアを検索して、まとめ直した結果を表で表示する
+    private static void runTimeSeriesQuery(String[] args) {
+        java.util.Map<String, String> options = parseOptions(args);
+        String directory = System.getenv("TIMESERIES_DIR");
+        try {
+            TimeSeriesStore store = TimeSeriesStore.open(java.nio.file.Paths.get(
+                    directory == null || directory.isBlank() ? "timeseries" : directory));
+            if (options.containsKey("series")) {
+                for (TimeSeriesStore.Series series : store.loadSeries()) {
+                    System.out.printf("%d\t%s\t%s\t%s\t%s%n", series.id, series.channelId, series.videoId,
+                            StreamClock.formatWallClock(series.streamStartMillis), series.title);
+                }
+                return;
+            }
+            long from = options.containsKey("from") ? parseDateTime(options.get("from")) : Long.MIN_VALUE;
+            long to = options.containsKey("to") ? parseDateTime(options.get("to")) : Long.MAX_VALUE;
+            long interval = parseInterval(options.getOrDefault("rollup", "1h"));
+
+            System.out.println("時間,バケット数,コメント数,分析済み数,平均感情スコア,加重平均感情スコア,ポジティブ数,ネガティブ数,スパチャ数,売上(JPY)");
+            for (TimeSeriesStore.Row row : store.rollup(options.get("channel"), options.get("video"), from, to, interval).values()) {
+                System.out.printf("%s,%d,%d,%d,%.3f,%.3f,%d,%d,%d,%.0f%n",
+                        StreamClock.formatWallClock(row.startMillis), row.buckets, row.comments, row.analyzed,
+                        row.mean(), row.weightedMean(), row.positive, row.negative, row.superchats, row.revenue);
+            }
+        } catch (Exception e) {
+            System.err.println("検索エラー: " + e.getMessage());
+        }
+    }
+
+    //「2024-01-01」か「2024-01-01 18:00」をエポックミリ秒に（システムのタイムゾーンで解釈する）
+    private static long parseDateTime(String value) {
+        String text = value.trim();
+        java.time.LocalDateTime dateTime = text.length() <= 10
+                ? java.time.LocalDate.parse(text).atStartOfDay()
+                : java.time.LocalDateTime.parse(text.replace(' ', 'T'));
+        return dateTime.atZone(java.time.ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    //「10s」「5m」「1h」「1d」をミリ秒に
+    private static long parseInterval(String value) {
+        String text = value.trim().toLowerCase();
+        long amount = Long.parseLong(text.substring(0, text.length() - 1));
+        switch (text.charAt(text.length() - 1)) {
+            case 's': return amount * 1000L;
+            case 'm': return amount * 60_000L;
+            case 'h': return amount * 3_600_000L;
+            case 'd': return amount * 86_400_000L;
+            default: throw new IllegalArgumentException("rollupは 10s / 5m / 1h / 1d の形で指定してください: " + value);
+        }
+    }
+
      
     //動画IDを取得（ユーザー入力）
     
@@ -78,7 +351,7 @@ public class YouTubeLiveSentimentMain {
     /**
      * YouTube URLまたは動画IDから動画IDを抽出
      */
-    private static String extractVideoId(String input) {
+    static String extractVideoId(String input) {
         if (input == null || input.trim().isEmpty()) {
             return null;
         }